@@ -0,0 +1,295 @@
+package org.phash.mvp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.IntStream;
+
+/** BulkBuilder
+ * Builds a tree top-down on the heap from a whole dataset, and then writes
+ * it to the store in one pass.  Each node is given the same vantage points,
+ * splits and partition of its points that addPoints() would give it, adding
+ * the whole dataset to an empty tree: a node of no fewer than bf^nl*lm points
+ * is an internal node with nl vantage points, and a smaller one a leaf with
+ * pl vantage points, chosen by the tree's selector and moved to the front
+ * of the node's points.  The selector chooses from the same points in
+ * whatever order the nodes are built, e.g. the selectors of random choices
+ * derive them from their seed and the node's points, so the tree built
+ * does not depend on the scheduling of the tasks.
+ * The child nodes of each internal node are built as forked tasks, and the
+ * distances of a large node's points to a vantage point in parallel.
+ * Points are referred to by their index in the dataset until written.
+ * @author dgs
+ * @version 0.1
+ **/
+class BulkBuilder<T extends Number> {
+
+	/* no. points from which distances to a vantage point are computed in parallel */
+	private static final int ParallelThreshold = 8192;
+
+	private final BulkPoints<T> points;
+	private final MetricDistance<T> metric;
+	private final VantagePointSelector<T> selector;
+	private final int bf, pl, nl, fanout, leaf_limit;
+
+	/* paths of all points, 2*pl distances each, laid out as DataPoint paths */
+	private final float[] paths;
+
+	private BuildNode top = null;
+
+	/* node built on the heap */
+	private static class BuildNode {
+
+		/* vantage points */
+		int[] vps;
+
+		/* splits at each level of internal node, or null for leaf */
+		float[][] splits;
+
+		/* child nodes of internal node, null where no child */
+		BuildNode[] children;
+
+		/* points of leaf */
+		int[] points;
+	}
+
+	/* build the node for the points indices[from, to) at a level in tree */
+	private class BuildTask extends RecursiveTask<BuildNode> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int[] indices;
+		private final int from, to;
+		private final int level;
+
+		BuildTask(int[] indices, int from, int to, int level){
+			this.indices = indices;
+			this.from = from;
+			this.to = to;
+			this.level = level;
+		}
+
+		@Override
+		protected BuildNode compute(){
+			if (to - from >= leaf_limit)
+				return buildInternal(indices, from, to, level);
+			return buildLeaf(indices, from, to);
+		}
+	}
+
+	/** Constructor
+	 * @param NodeFactory<T>    nf, for the tree's parameters
+	 * @param MetricDistance<T> metric
+	 * @param VantagePointSelector<T> selector
+	 * @param BulkPoints<T>     points
+	 **/
+	protected BulkBuilder(NodeFactory<T> nf, MetricDistance<T> metric,
+						  VantagePointSelector<T> selector, BulkPoints<T> points){
+		this.points = points;
+		this.metric = metric;
+		this.selector = selector;
+		this.bf = nf.getBranchFactor();
+		this.pl = nf.getPathLength();
+		this.nl = nf.getNumLevelsPerNode();
+		this.fanout = (int)Math.pow(bf, nl);
+		this.leaf_limit = fanout*nf.getLeafMinimum();
+		long npaths = 2L*pl*points.size();
+		if (npaths > Integer.MAX_VALUE - 8)
+			throw new MVPTreeException("too many points to build on heap: " + points.size());
+		this.paths = new float[(int)npaths];
+		for (int i=0;i < points.size();i++){
+			Arrays.fill(paths, 2*pl*i + pl, 2*pl*(i+1), -1.0f);
+		}
+	}
+
+	/** Build the tree on the heap.
+	 * @param ForkJoinPool pool
+	 * @return void
+	 **/
+	protected void build(ForkJoinPool pool){
+		int[] indices = new int[points.size()];
+		for (int i=0;i < indices.length;i++){
+			indices[i] = i;
+		}
+		top = (indices.length > 0) ? pool.invoke(new BuildTask(indices, 0, indices.length, 0)) : null;
+	}
+
+	/* Build an internal node, collating its points by their distances to each
+	 * vantage point in turn, as MVPTree.collatePoints().  Its points are
+	 * partitioned in place, and child nodes built from their ranges. */
+	private BuildNode buildInternal(int[] indices, int from, int to, int level){
+		BuildNode node = new BuildNode();
+		chooseVantagePoints(indices, from, to, nl);
+		node.vps = Arrays.copyOfRange(indices, from, from + nl);
+		node.splits = new float[nl][];
+
+		int lengthM = bf - 1;
+		int start = from + nl;
+		int[] bounds = { start, to };
+		float[] dists = new float[to - start];
+		PointPartition.Swap swap = (i, j) -> {
+			int t = indices[start + i];
+			indices[start + i] = indices[start + j];
+			indices[start + j] = t;
+		};
+		for (int n=0;n < nl;n++){
+			int nbnodes = bounds.length - 1;
+			float[] msplits = new float[lengthM*nbnodes];
+			Arrays.fill(msplits, -1.0f);
+			int[] bounds2 = new int[bf*nbnodes + 1];
+			TargetPoint<T> vp = points.getData(node.vps[n]);
+			for (int nodeIndex=0;nodeIndex < nbnodes;nodeIndex++){
+				int lo = bounds[nodeIndex] - start, hi = bounds[nodeIndex+1] - start;
+				if (hi > lo){
+					calcPointDistances(vp, indices, start, dists, lo, hi);
+					if (level + n < pl){
+						for (int i=lo;i < hi;i++){
+							paths[2*pl*indices[start + i] + pl + level + n] = dists[i];
+						}
+					}
+					PointPartition.calcSplitPoints(dists, lo, hi, bf, msplits, nodeIndex*lengthM, swap);
+					PointPartition.partition(dists, lo, hi, bf, msplits, nodeIndex*lengthM,
+											 bounds2, nodeIndex*bf, swap);
+					for (int j=0;j <= bf;j++){
+						bounds2[nodeIndex*bf + j] += start;
+					}
+				} else {
+					Arrays.fill(bounds2, nodeIndex*bf, nodeIndex*bf + bf + 1, bounds[nodeIndex]);
+				}
+			}
+			node.splits[n] = msplits;
+			bounds = bounds2;
+		}
+		dists = null;
+
+		ArrayList<BuildTask> tasks = new ArrayList<>();
+		for (int i=0;i < fanout;i++){
+			if (bounds[i+1] > bounds[i])
+				tasks.add(new BuildTask(indices, bounds[i], bounds[i+1], level + nl));
+		}
+		ForkJoinTask.invokeAll(tasks);
+		node.children = new BuildNode[fanout];
+		int t = 0;
+		for (int i=0;i < fanout;i++){
+			if (bounds[i+1] > bounds[i]) node.children[i] = tasks.get(t++).join();
+		}
+		return node;
+	}
+
+	/* Build a leaf, marking the distances of its points to its vantage points on their paths */
+	private BuildNode buildLeaf(int[] indices, int from, int to){
+		BuildNode node = new BuildNode();
+		int numvps = Math.min(pl, to - from);
+		chooseVantagePoints(indices, from, to, numvps);
+		node.vps = Arrays.copyOfRange(indices, from, from + numvps);
+		node.points = Arrays.copyOfRange(indices, from + numvps, to);
+		if (node.points.length > 0){
+			float[] dists = new float[node.points.length];
+			for (int i=0;i < numvps;i++){
+				calcPointDistances(points.getData(node.vps[i]), node.points, 0, dists, 0, dists.length);
+				for (int j=0;j < dists.length;j++){
+					paths[2*pl*node.points[j] + i] = dists[j];
+				}
+			}
+		}
+		return node;
+	}
+
+	/* Move the vantage points chosen by the selector from the points
+	 * indices[from, to) to the front of the range, as MVPTree.chooseVantagePoints() */
+	private void chooseVantagePoints(int[] indices, int from, int to, int numvps){
+		if (numvps <= 0)
+			return;
+		AbstractList<TargetPoint<T>> candidates = new AbstractList<TargetPoint<T>>(){
+			@Override
+			public TargetPoint<T> get(int i){
+				return points.getData(indices[from + i]);
+			}
+
+			@Override
+			public int size(){
+				return to - from;
+			}
+		};
+		int[] vps = selector.select(candidates, numvps, metric);
+		PointPartition.moveToFront(vps, numvps, to - from, (i, j) -> {
+				int t = indices[from + i];
+				indices[from + i] = indices[from + j];
+				indices[from + j] = t;
+			});
+	}
+
+	/* Calculate distances of points indices[offset+from, offset+to) from vantage point
+	 * into dists[from, to), in parallel for a long range */
+	private void calcPointDistances(TargetPoint<T> vp, int[] indices, int offset,
+									float[] dists, int from, int to){
+		if (to - from >= ParallelThreshold){
+			IntStream.range(from, to).parallel().forEach(i -> dists[i] = distance(vp, indices[offset + i]));
+		} else {
+			for (int i=from;i < to;i++){
+				dists[i] = distance(vp, indices[offset + i]);
+			}
+		}
+	}
+
+	private float distance(TargetPoint<T> vp, int index){
+		double d = metric.primitiveDistance(vp, points.getData(index));
+		if ((float)d < 0.0 || Double.isNaN(d))
+			throw new DataPointException("bad distance calculation: " + d);
+		return (float)d;
+	}
+
+	/** Write the tree built into an empty store, in one pass, breadth first.
+	 *  Each node is released once written.
+	 * @param NodeFactory<T> nf
+	 * @return long  no. points written
+	 **/
+	protected long write(NodeFactory<T> nf){
+		try (TreeWriter<T> writer = new TreeWriter<>(nf)){
+			if (nf.getTopNode() != null)
+				throw new MVPTreeException("tree not empty");
+			ArrayDeque<BuildNode> pending = new ArrayDeque<>();
+			if (top != null) pending.add(top);
+			top = null;
+			while (!pending.isEmpty()){
+				BuildNode node = pending.poll();
+				boolean internal = (node.splits != null);
+				MVPNode<T> mvpnode = writer.createNode(internal);
+				for (int i=0;i < node.vps.length;i++){
+					mvpnode.setVantagePoint(createPoint(writer, node.vps[i]), i);
+				}
+				if (internal){
+					MVPInternal<T> internalnode = (MVPInternal<T>)mvpnode;
+					for (int n=0;n < nl;n++){
+						internalnode.setSplitsAtLevel(node.splits[n], n);
+					}
+					for (int i=0;i < fanout;i++){
+						if (node.children[i] != null){
+							writer.addChildSlot(internalnode, i);
+							pending.add(node.children[i]);
+						}
+					}
+				} else if (node.points.length > 0){
+					ArrayList<DataPoint<T>> list = new ArrayList<>(node.points.length);
+					for (int index : node.points){
+						DataPoint<T> pnt = createPoint(writer, index);
+						pnt.setPath(Arrays.copyOfRange(paths, 2*pl*index, 2*pl*(index+1)));
+						list.add(pnt);
+					}
+					((MVPLeaf<T>)mvpnode).addDataPoints(list);
+				}
+				writer.endNode();
+			}
+			return writer.finish();
+		}
+	}
+
+	private DataPoint<T> createPoint(TreeWriter<T> writer, int index){
+		return writer.createPoint(points.getId(index), true,
+								  points.getData(index).getPrimitiveDataWithoutTx());
+	}
+}
@@ -0,0 +1,95 @@
+package org.phash.mvp;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+
+/**
+ * <h1> BulkPoints </h1>
+ * A whole dataset of points, each an id and its data, held on the heap
+ * as primitive arrays, to build a tree with MVPTree.bulkLoad().
+ * Points become vantage points in the order added, as with addPoints().
+ *
+ * @author dgs
+ * @version 0.1
+ */
+public class BulkPoints<T extends Number> {
+
+	private final ArrayList<String> ids;
+	private final ArrayList<TargetPoint<T>> data;
+
+	/* class of the primitive data arrays of the points, from the first point added */
+	private Class<?> dataclass = null;
+
+	/** Constructor **/
+	public BulkPoints(){
+		this(1024);
+	}
+
+	/** Constructor
+	 * @param int capacity, expected no. points
+	 **/
+	public BulkPoints(int capacity){
+		ids = new ArrayList<>(capacity);
+		data = new ArrayList<>(capacity);
+	}
+
+	/** Add a point.  Only a primitive copy of its data is kept.
+	 * @param String id
+	 * @param T[]    data
+	 * @return void
+	 **/
+	public void add(String id, T[] data){
+		if (id == null)
+			throw new IllegalArgumentException("null id");
+		if (data == null)
+			throw new IllegalArgumentException("null data");
+		TargetPoint<T> point = new TargetPoint<>(new TargetPoint<>(data));
+		checkDataClass(point.getPrimitiveDataWithoutTx());
+		ids.add(id);
+		this.data.add(point);
+	}
+
+	/** Add a point with its data as a primitive array, without boxing it.
+	 *  Only a copy of the data is kept.
+	 * @param String id
+	 * @param Object primarray, one of float[], double[], int[], byte[], long[]
+	 *               of the tree's type, and of the same type for all points
+	 * @return void
+	 **/
+	public void add(String id, Object primarray){
+		if (id == null)
+			throw new IllegalArgumentException("null id");
+		if (primarray == null)
+			throw new IllegalArgumentException("null data");
+		if (!(primarray instanceof float[] || primarray instanceof double[]
+			  || primarray instanceof int[] || primarray instanceof byte[]
+			  || primarray instanceof long[]))
+			throw new IllegalArgumentException("data not float[], double[], int[], byte[], long[]");
+		checkDataClass(primarray);
+		ids.add(id);
+		data.add(new TargetPoint<T>(primarray, 0, Array.getLength(primarray)));
+	}
+
+	private void checkDataClass(Object primarray){
+		if (dataclass == null)
+			dataclass = primarray.getClass();
+		else if (dataclass != primarray.getClass())
+			throw new IllegalArgumentException("data of type " + primarray.getClass().getSimpleName()
+											   + " differs from " + dataclass.getSimpleName() + " of other points");
+	}
+
+	/** Get the number of points.
+	 * @return int
+	 **/
+	public int size(){
+		return ids.size();
+	}
+
+	protected String getId(int i){
+		return ids.get(i);
+	}
+
+	protected TargetPoint<T> getData(int i){
+		return data.get(i);
+	}
+}
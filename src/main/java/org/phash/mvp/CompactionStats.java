@@ -0,0 +1,55 @@
+package org.phash.mvp;
+
+/**
+ * Counts of the work done by a compaction of the tree's leaves,
+ * either for a single compaction, or totalled over all compactions.
+ * @author dgs
+ * @version 1.0
+ */
+public class CompactionStats {
+
+	/** No. compactions */
+	public long n_compactions;
+
+	/** No. leaf nodes swept */
+	public long n_leaf;
+
+	/** No. inactive points deleted */
+	public long n_removed;
+
+	/** No. leaf nodes rebuilt from their active points */
+	public long n_rebuilt;
+
+	/** No. leaf nodes left with no active points, and removed */
+	public long n_emptied;
+
+	/** No. background compactions that failed, see MVPTree.getCompactionFailure() */
+	public long n_failures;
+
+	/** Wall time in nanoseconds */
+	public long elapsed_nanos;
+
+	/** Constructor */
+	public CompactionStats(){}
+
+	/** Add another set of counts to this one.
+	 * @param CompactionStats  other
+	 * @return void
+	 **/
+	public synchronized void add(CompactionStats other){
+		n_compactions += other.n_compactions;
+		n_leaf        += other.n_leaf;
+		n_removed     += other.n_removed;
+		n_rebuilt     += other.n_rebuilt;
+		n_emptied     += other.n_emptied;
+		n_failures    += other.n_failures;
+		elapsed_nanos += other.elapsed_nanos;
+	}
+
+	@Override
+	public synchronized String toString(){
+		return String.format("compactions %d, leaf %d, removed %d, rebuilt %d, emptied %d, failures %d, %.3f ms",
+							 n_compactions, n_leaf, n_removed, n_rebuilt, n_emptied, n_failures,
+							 elapsed_nanos/1000000.0);
+	}
+}
@@ -1,5 +1,7 @@
 package org.phash.mvp;
 
+import org.apache.commons.lang3.ArrayUtils;
+
 /**
  * Interface for both DataPoint and TargetPoint objects 
  *
@@ -14,4 +16,23 @@ public interface DataObject<T extends Number>{
 	public T[] getDataWithoutTx();
 	
 	public void setData(T[] data);
+
+	/** Get the data as a primitive array, one of float[], double[],
+	 *  long[], int[] or byte[], without boxing its elements.
+	 * @return Object
+	 **/
+	public default Object getPrimitiveDataWithoutTx(){
+		T[] data = getDataWithoutTx();
+		if (data instanceof Float[])
+			return ArrayUtils.toPrimitive((Float[])data);
+		else if (data instanceof Double[])
+			return ArrayUtils.toPrimitive((Double[])data);
+		else if (data instanceof Integer[])
+			return ArrayUtils.toPrimitive((Integer[])data);
+		else if (data instanceof Byte[])
+			return ArrayUtils.toPrimitive((Byte[])data);
+		else if (data instanceof Long[])
+			return ArrayUtils.toPrimitive((Long[])data);
+		throw new DataPointException("datatype not float, double, int, byte, long");
+	}
 }
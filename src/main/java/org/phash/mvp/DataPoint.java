@@ -1,12 +1,5 @@
 package org.phash.mvp;
 
-import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.Transaction;
-import org.neo4j.graphdb.Relationship;
-import org.neo4j.graphdb.GraphDatabaseService;
-import org.neo4j.graphdb.index.IndexManager;
-import org.neo4j.graphdb.index.Index;
-import org.neo4j.graphdb.DynamicLabel;
 import org.apache.commons.lang3.ArrayUtils;
 import java.util.Arrays;
 
@@ -32,60 +25,109 @@ public class DataPoint<T extends Number> implements DataObject<T>{
 	protected final String DataPointLabel = "DATAPOINT";
 
 	/**
-	 * A path of distances between this DataPoint and each vantage point in leaf node.
+	 * A path of distances between this DataPoint and each vantage point in leaf node,
+	 * followed by its distances to the vantage points of the internal nodes above it,
+	 * indexed by level in tree, or -1 where not recorded.
 	 **/
 	private float[] path; 
 	private final Class<T> type;
-	private final Node node;
+	private final StorageNode node;
+	private final VectorCache cache;
+	private final boolean cacheData;
 	static private int num_distance_ops = 0;
 
 	/**
 	 *    Constructor
-	 * @param Node    neo4j node
-	 * @param int     pl, pathlength for float[] path variable
+	 * @param StorageNode node
+	 * @param int     pl, pathlength; path holds pl leaf and pl ancestor distances
 	 **/
-	protected DataPoint(Node node, int pl, Class<T> type){
+	protected DataPoint(StorageNode node, int pl, Class<T> type){
+		this(node, pl, type, null);
+	}
+
+	/**
+	 *    Constructor
+	 * @param StorageNode node
+	 * @param int         pl, pathlength; path holds pl leaf and pl ancestor distances
+	 * @param Class<T>    type of generic type (necessary to get type at runtime)
+	 * @param VectorCache cache of decoded data arrays (null for none)
+	 **/
+	protected DataPoint(StorageNode node, int pl, Class<T> type, VectorCache cache){
+		this(node, pl, type, cache, false);
+	}
+
+	/**
+	 *    Constructor
+	 * @param StorageNode node
+	 * @param int         pl, pathlength; path holds pl leaf and pl ancestor distances
+	 * @param Class<T>    type of generic type (necessary to get type at runtime)
+	 * @param VectorCache cache of decoded data arrays (null for none)
+	 * @param boolean     cacheData, read data through the cache (e.g. for vantage points),
+	 *                    rather than only invalidate it on change
+	 **/
+	protected DataPoint(StorageNode node, int pl, Class<T> type, VectorCache cache, boolean cacheData){
 		if (node == null)
 			throw new NullPointerException("node arg is null");
 		if (pl <= 0)
 			throw new IllegalArgumentException("pl arg value not valid");
 		this.node = node;
-		this.path = new float[pl];
+		this.path = new float[2*pl];
+		Arrays.fill(this.path, pl, 2*pl, -1.0f);
 		this.type = type;
+		this.cache = cache;
+		this.cacheData = cacheData;
 	}
 
 	/**
 	 *   Constructor
-	 * @param Node      neo4j node
+	 * @param StorageNode node
 	 * @param float[]   path
 	 * @param Class<T>  type of generic type (necessary to get type at runtime)
 	 **/
-	protected DataPoint(Node node, float[] path, Class<T> type){
+	protected DataPoint(StorageNode node, float[] path, Class<T> type){
+		this(node, path, type, null);
+	}
+
+	/**
+	 *   Constructor
+	 * @param StorageNode node
+	 * @param float[]     path
+	 * @param Class<T>    type of generic type (necessary to get type at runtime)
+	 * @param VectorCache cache of decoded data arrays (null for none)
+	 **/
+	protected DataPoint(StorageNode node, float[] path, Class<T> type, VectorCache cache){
 		if (node == null || path == null)
 			throw new NullPointerException("one or both params null");
 		this.node = node;
 		this.path = path;
 		this.type = type;
+		this.cache = cache;
+		this.cacheData = false;
 	}
 
 	/** 
-	 *  Label the node as a DataPoint in neo4j db
+	 *  Label the node as a DataPoint in store
 	 **/
 	protected void setLabel(){
-		node.addLabel(DynamicLabel.label(DataPointLabel));
+		node.addLabel(DataPointLabel);
 	}
 
 	/**
 	 * Reset counter for number of distance() operations to zero.
 	 * @return void
+	 * @deprecated the counter is never incremented; count distance evaluations
+	 *             per query with QueryStats, or for a tree with MVPTree.getQueryStats()
 	 */
+	@Deprecated
 	static public void reset(){
 		DataPoint.num_distance_ops = 0;
 	}
 
 	/**
 	 * Increment variable to count number of distance calculations
+	 * @deprecated see QueryStats
 	 **/
+	@Deprecated
 	static protected void incr(){
 		DataPoint.num_distance_ops++;
 	}
@@ -93,16 +135,18 @@ public class DataPoint<T extends Number> implements DataObject<T>{
 	/**
 	 * Get count of number for distance operations
 	 * @return int 
+	 * @deprecated the counter is never incremented; see QueryStats
 	 */
+	@Deprecated
 	static public int getNumOpsCount(){
 		return DataPoint.num_distance_ops;
 	}
 
 	/**
-	 * Get neo4j node object
-	 * @return Node
+	 * Get storage node object
+	 * @return StorageNode
 	 **/
-	protected Node getNode(){
+	protected StorageNode getNode(){
 		return node;
 	}
 
@@ -129,7 +173,7 @@ public class DataPoint<T extends Number> implements DataObject<T>{
 	 * @return void
 	 */
 	public void setId(String id){
-		try (Transaction tx = getNode().getGraphDatabase().beginTx()){
+		try (StorageTransaction tx = getNode().getBackend().beginTx()){
 			getNode().setProperty(IdProperty, id);
 			tx.success();
 		}
@@ -149,14 +193,14 @@ public class DataPoint<T extends Number> implements DataObject<T>{
 	 */
 	public String getId(){
 		String id;
-		try (Transaction tx = getNode().getGraphDatabase().beginTx()){
+		try (StorageTransaction tx = getNode().getBackend().beginTx()){
 			id = (String)getNode().getProperty(IdProperty);
 			tx.success();
 		}
 		return id;
 	}
 
-	/** Get id string of DataPoint without neo4j transactional support (internal use)
+	/** Get id string of DataPoint without transactional support (internal use)
 	 * @return String
 	 **/
 	protected String getIdWithoutTx(){
@@ -176,6 +220,19 @@ public class DataPoint<T extends Number> implements DataObject<T>{
 	}
 
 
+	/** Add a distance to an internal node's vantage point at a level in tree.
+	 *  Levels beyond the path length are not recorded.
+	 * @param int     level
+	 * @param float   d
+	 * @return void
+	 **/
+	protected void addToAncestorPath(int level, float d){
+		int pl = path.length/2;
+		if (level >= 0 && level < pl){
+			path[pl + level] = d;
+		}
+	}
+
 	/** Get a distance in its path at position, n
 	 * @param int   n
 	 * @return float
@@ -199,16 +256,26 @@ public class DataPoint<T extends Number> implements DataObject<T>{
 		return path;
 	}
 
-	/** Delete the neo4j node in db.
+	/** Delete the node in store.
 	 **/
 	protected void delete(){
-		Iterable<Relationship> rels = getNode().getRelationships();
-		for (Relationship rel : rels){
+		invalidateCachedData();
+		Iterable<StorageRelationship> rels = getNode().getRelationships();
+		for (StorageRelationship rel : rels){
 			rel.delete();
 		}
 		node.delete();
 	}
 
+	/** Remove data array from the cache of decoded arrays.
+	 *  Called before data changes and again once the change is committed,
+	 *  so that concurrent readers cannot leave the old array cached.
+	 **/
+	protected void invalidateCachedData(){
+		if (cache != null)
+			cache.invalidate(node.getId());
+	}
+
 	/** Is the same point as another point.
 	 * @param DataPoint<>   point
 	 * @return boolean
@@ -225,11 +292,13 @@ public class DataPoint<T extends Number> implements DataObject<T>{
 	 *  @return void
 	 **/
 	public void setData(T[] data){
-		try (Transaction tx = getNode().getGraphDatabase().beginTx()){
+		try (StorageTransaction tx = getNode().getBackend().beginTx()){
 			setDataWithoutTx(data);
 			tx.success();
 		} catch (Exception ex){
 			throw new DataPointException(ex);
+		} finally {
+			invalidateCachedData();
 		}
 	}
 
@@ -238,32 +307,60 @@ public class DataPoint<T extends Number> implements DataObject<T>{
 	 *  @return void
 	 **/
 	protected void setDataWithoutTx(T[] data){
+		invalidateCachedData();
+		Object primarray;
 		if (type == Float.class){
-			float[] primarray = ArrayUtils.toPrimitive((Float[])data);
-			getNode().setProperty(DataProperty, primarray);;
+			primarray = ArrayUtils.toPrimitive((Float[])data);
 		} else if (type == Double.class){
-			double[] primarray = ArrayUtils.toPrimitive((Double[])data);
-			getNode().setProperty(DataProperty, primarray);
+			primarray = ArrayUtils.toPrimitive((Double[])data);
 		} else if (type == Integer.class) {
-			int[] primarray = ArrayUtils.toPrimitive((Integer[])data);
-			getNode().setProperty(DataProperty, primarray);;
+			primarray = ArrayUtils.toPrimitive((Integer[])data);
 		} else if (type == Byte.class) {
-			byte[] primarray = ArrayUtils.toPrimitive((Byte[])data);
-			getNode().setProperty(DataProperty, primarray);
+			primarray = ArrayUtils.toPrimitive((Byte[])data);
 		} else if (type == Long.class) {
-			long[] primarray = ArrayUtils.toPrimitive((Long[])data);
-			getNode().setProperty(DataProperty, primarray);
+			primarray = ArrayUtils.toPrimitive((Long[])data);
 		} else
 			throw new DataPointException("datatype not float, double, int, byte, long");
+		getNode().setProperty(DataProperty, primarray);
+		updatePackedData(primarray);
+	}
+
+	/* Rewrite the copy of the data held by the packed leaf the point is in, if any */
+	private void updatePackedData(Object primarray){
+		for (StorageRelationship rel : getNode().getRelationships()){
+			StorageNode start = rel.getStartNode();
+			if (start.getId() != node.getId())
+				MVPLeaf.updatePackedData(start, node.getId(), primarray);
+		}
 	}
 
 
+	/** Set data as a primitive array without transactional support (internal use)
+	 *  @param Object   one of float[], double[], int[], byte[], long[] of type
+	 *  @return void
+	 **/
+	protected void setPrimitiveDataWithoutTx(Object primarray){
+		Class<?> expected;
+		if (type == Float.class) expected = float[].class;
+		else if (type == Double.class) expected = double[].class;
+		else if (type == Integer.class) expected = int[].class;
+		else if (type == Byte.class) expected = byte[].class;
+		else if (type == Long.class) expected = long[].class;
+		else
+			throw new DataPointException("datatype not float, double, int, byte, long");
+		if (!expected.isInstance(primarray))
+			throw new DataPointException("data array not of type " + type.getSimpleName());
+		invalidateCachedData();
+		getNode().setProperty(DataProperty, primarray);
+		updatePackedData(primarray);
+	}
+
 	/** Get data array
 	 * @return T[] 
 	 **/
 	public T[] getData(){
 		T[] result = null;
-		try (Transaction tx = getNode().getGraphDatabase().beginTx()){
+		try (StorageTransaction tx = getNode().getBackend().beginTx()){
 			result = getDataWithoutTx();
 			tx.success();
 		} catch (Exception ex){
@@ -279,25 +376,41 @@ public class DataPoint<T extends Number> implements DataObject<T>{
 	public T[] getDataWithoutTx(){
 		T[] result = null;
 		if (type == Float.class){
-			float[] primarray = (float[])(getNode().getProperty(DataProperty));
+			float[] primarray = (float[])(getPrimitiveDataWithoutTx());
 			result = (T[])ArrayUtils.toObject(primarray);
 		} else if (type == Double.class){
-			double[] primarray = (double[])(getNode().getProperty(DataProperty));
+			double[] primarray = (double[])(getPrimitiveDataWithoutTx());
 			result = (T[])ArrayUtils.toObject(primarray);
 		} else if (type == Integer.class){
-			int[] primarray = (int[])(getNode().getProperty(DataProperty));
+			int[] primarray = (int[])(getPrimitiveDataWithoutTx());
 			result = (T[])ArrayUtils.toObject(primarray);
 		} else if (type == Byte.class) {
-			byte[] primarray = (byte[])(getNode().getProperty(DataProperty));
+			byte[] primarray = (byte[])(getPrimitiveDataWithoutTx());
 			result = (T[])ArrayUtils.toObject(primarray);
 		} else if (type == Long.class) {
-			long[] primarray = (long[])(getNode().getProperty(DataProperty));
+			long[] primarray = (long[])(getPrimitiveDataWithoutTx());
 			result = (T[])ArrayUtils.toObject(primarray);
 		} else
 			throw new DataPointException("datatype not float, double, int, byte, long");
 
 		return result;
 	}
-}
-
 
+	/** Get data as its stored primitive array without boxing (internal use)
+	 *  The array may be shared through the cache of decoded arrays, so must
+	 *  not be modified.  Only vantage points read through the cache.
+	 *  @return Object, one of float[], double[], int[], byte[], long[]
+	 **/
+	public Object getPrimitiveDataWithoutTx(){
+		if (cache == null || !cacheData)
+			return getNode().getProperty(DataProperty);
+		long id = node.getId();
+		long generation = cache.getGeneration();
+		Object array = cache.get(id);
+		if (array == null){
+			array = getNode().getProperty(DataProperty);
+			cache.put(id, array, generation);
+		}
+		return array;
+	}
+}
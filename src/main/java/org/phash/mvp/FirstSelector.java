@@ -0,0 +1,24 @@
+package org.phash.mvp;
+
+import java.util.List;
+
+/**
+ * Vantage point selection of the first points in the list, in the
+ * order they were added.  The default strategy, and the cheapest,
+ * but poor for points added in clustered order.
+ *
+ * @author dgs
+ * @version 0.1
+ **/
+
+public class FirstSelector<T extends Number> implements VantagePointSelector<T> {
+
+	@Override
+	public int[] select(List<? extends DataObject<T>> points, int numvps, MetricDistance<T> metric){
+		int[] vps = new int[numvps];
+		for (int i=0;i < numvps;i++){
+			vps[i] = i;
+		}
+		return vps;
+	}
+}
@@ -7,17 +7,162 @@ package org.phash.mvp;
  * @version 0.1
  **/
 
-public class HammingDistance<T extends Number> implements MetricDistance<T>{
+public class HammingDistance<T extends Number> implements PrimitiveMetricDistance<T>{
 
-	public Double distance(DataObject<T> obj1, DataObject<T> obj2){
-		T[] x = obj1.getDataWithoutTx();
-		T[] y = obj2.getDataWithoutTx();
+	/* number of elements summed between checks against a bound */
+	protected static final int BlockLength = 16;
+
+	public double distance(float[] x, float[] y){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		int nbits = 0;
+		for (int i=0;i<x.length;i++){
+			nbits += Long.bitCount((long)x[i] ^ (long)y[i]);
+		}
+		return (double)nbits;
+	}
+
+	public double distance(double[] x, double[] y){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		int nbits = 0;
+		for (int i=0;i<x.length;i++){
+			nbits += Long.bitCount((long)x[i] ^ (long)y[i]);
+		}
+		return (double)nbits;
+	}
+
+	public double distance(long[] x, long[] y){
 		if (x.length != y.length)
 			throw new DataPointException("unequal data arrays in DataObjects");
 		int nbits = 0;
 		for (int i=0;i<x.length;i++){
-			long xord = x[i].longValue() ^ y[i].longValue();
-			nbits += Long.bitCount(xord);
+			nbits += Long.bitCount(x[i] ^ y[i]);
+		}
+		return (double)nbits;
+	}
+
+	public double distance(int[] x, int[] y){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		int nbits = 0;
+		for (int i=0;i<x.length;i++){
+			nbits += Long.bitCount((long)x[i] ^ (long)y[i]);
+		}
+		return (double)nbits;
+	}
+
+	public double distance(byte[] x, byte[] y){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		int nbits = 0;
+		for (int i=0;i<x.length;i++){
+			nbits += Long.bitCount((long)x[i] ^ (long)y[i]);
+		}
+		return (double)nbits;
+	}
+
+	public double distance(float[] x, float[] y, double bound){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		return distance(x, 0, y, bound);
+	}
+
+	public double distance(float[] x, int xoffset, float[] y, double bound){
+		if (xoffset < 0 || xoffset + y.length > x.length)
+			throw new DataPointException("data range outside array");
+		int nbits = 0;
+		for (int i=0;i<y.length;){
+			int end = Math.min(i + BlockLength, y.length);
+			for (;i<end;i++){
+				nbits += Long.bitCount((long)x[xoffset+i] ^ (long)y[i]);
+			}
+			if (nbits > bound)
+				return Double.POSITIVE_INFINITY;
+		}
+		return (double)nbits;
+	}
+
+	public double distance(double[] x, double[] y, double bound){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		return distance(x, 0, y, bound);
+	}
+
+	public double distance(double[] x, int xoffset, double[] y, double bound){
+		if (xoffset < 0 || xoffset + y.length > x.length)
+			throw new DataPointException("data range outside array");
+		int nbits = 0;
+		for (int i=0;i<y.length;){
+			int end = Math.min(i + BlockLength, y.length);
+			for (;i<end;i++){
+				nbits += Long.bitCount((long)x[xoffset+i] ^ (long)y[i]);
+			}
+			if (nbits > bound)
+				return Double.POSITIVE_INFINITY;
+		}
+		return (double)nbits;
+	}
+
+	public double distance(long[] x, long[] y, double bound){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		return distance(x, 0, y, bound);
+	}
+
+	public double distance(long[] x, int xoffset, long[] y, double bound){
+		if (xoffset < 0 || xoffset + y.length > x.length)
+			throw new DataPointException("data range outside array");
+		int nbits = 0;
+		for (int i=0;i<y.length;){
+			int end = Math.min(i + BlockLength, y.length);
+			for (;i<end;i++){
+				nbits += Long.bitCount(x[xoffset+i] ^ y[i]);
+			}
+			if (nbits > bound)
+				return Double.POSITIVE_INFINITY;
+		}
+		return (double)nbits;
+	}
+
+	public double distance(int[] x, int[] y, double bound){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		return distance(x, 0, y, bound);
+	}
+
+	public double distance(int[] x, int xoffset, int[] y, double bound){
+		if (xoffset < 0 || xoffset + y.length > x.length)
+			throw new DataPointException("data range outside array");
+		int nbits = 0;
+		for (int i=0;i<y.length;){
+			int end = Math.min(i + BlockLength, y.length);
+			for (;i<end;i++){
+				nbits += Long.bitCount((long)x[xoffset+i] ^ (long)y[i]);
+			}
+			if (nbits > bound)
+				return Double.POSITIVE_INFINITY;
+		}
+		return (double)nbits;
+	}
+
+	public double distance(byte[] x, byte[] y, double bound){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		return distance(x, 0, y, bound);
+	}
+
+	public double distance(byte[] x, int xoffset, byte[] y, double bound){
+		if (xoffset < 0 || xoffset + y.length > x.length)
+			throw new DataPointException("data range outside array");
+		int nbits = 0;
+		for (int i=0;i<y.length;){
+			int end = Math.min(i + BlockLength, y.length);
+			for (;i<end;i++){
+				nbits += Long.bitCount((long)x[xoffset+i] ^ (long)y[i]);
+			}
+			if (nbits > bound)
+				return Double.POSITIVE_INFINITY;
 		}
 		return (double)nbits;
 	}
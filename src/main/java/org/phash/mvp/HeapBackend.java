@@ -0,0 +1,654 @@
+package org.phash.mvp;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <h1>HeapBackend</h1>
+ * StorageBackend held in memory only, for trees that need no persistence,
+ * e.g. replicas rebuilt from a snapshot.  Properties are kept as given,
+ * so data, paths and splits stay primitive arrays, which are copied when
+ * set and when read, as Neo4j does, so that a caller changing an array
+ * can change neither the stored value nor the undo log.  Transactions lock
+ * nodes on request, and are bound to the thread that begins them, with
+ * any begun on that thread meanwhile nested in them.  Changes take effect
+ * immediately, visible to other threads, and are undone when the outermost
+ * transaction closes without success, or any nested one does.  Shutting
+ * down keeps the contents, which are lost once the backend is no longer
+ * referenced.
+ * @author dgs
+ * @version 0.1
+ */
+public class HeapBackend implements StorageBackend {
+
+	private final Map<Long,HeapNode> nodes = new ConcurrentHashMap<>();
+	private final Map<String,Set<HeapNode>> labels = new ConcurrentHashMap<>();
+	private final Map<String,HeapNode> index = new ConcurrentHashMap<>();
+	private final AtomicLong next_id = new AtomicLong();
+	private final AtomicLong next_rel_id = new AtomicLong();
+	private final AtomicLong next_tx_id = new AtomicLong(1);
+
+	/* outermost transaction of each thread */
+	private final ThreadLocal<HeapTransaction> current = new ThreadLocal<>();
+
+	/** Constructor **/
+	public HeapBackend(){}
+
+	@Override
+	public void init(){}
+
+	@Override
+	public void shutdown(){}
+
+	@Override
+	public StorageTransaction beginTx(){
+		HeapTransaction outer = current.get();
+		if (outer != null)
+			return new NestedTransaction(outer);
+		HeapTransaction tx = new HeapTransaction(next_tx_id.getAndIncrement());
+		current.set(tx);
+		return tx;
+	}
+
+	@Override
+	public StorageNode createNode(){
+		HeapNode node = new HeapNode(next_id.getAndIncrement(), this);
+		nodes.put(node.id, node);
+		HeapTransaction tx = current.get();
+		if (tx != null){
+			tx.created(node);
+			tx.undo(() -> nodes.remove(node.id));
+		}
+		nodeCreated(node.id);
+		return node;
+	}
+
+	@Override
+	public StorageNode getNodeById(long id){
+		HeapNode node = nodes.get(id);
+		if (node == null)
+			throw new MVPNodeException("no node with id " + id);
+		return node;
+	}
+
+	@Override
+	public List<StorageNode> findNodes(String label){
+		Set<HeapNode> labelled = labels.get(label);
+		if (labelled == null)
+			return Collections.emptyList();
+		return new ArrayList<StorageNode>(labelled);
+	}
+
+	@Override
+	public List<StorageNode> findNodes(String label, String key, Object value){
+		ArrayList<StorageNode> results = new ArrayList<>();
+		for (StorageNode node : findNodes(label)){
+			if (value.equals(node.getProperty(key, null)))
+				results.add(node);
+		}
+		return results;
+	}
+
+	/** Get the number of nodes held.
+	 * @return int
+	 **/
+	public int getNodeCount(){
+		return nodes.size();
+	}
+
+	@Override
+	public void indexPoint(StorageNode node, String id){
+		HeapNode previous = index.put(id, (HeapNode)node);
+		HeapTransaction tx = current.get();
+		if (tx != null){
+			tx.undo(() -> {
+					if (previous != null) index.put(id, previous);
+					else index.remove(id, node);
+				});
+		}
+		pointIndexed(node.getId(), id);
+	}
+
+	@Override
+	public StorageNode lookupPoint(String id){
+		return index.get(id);
+	}
+
+	@Override
+	public void unindexPoint(StorageNode node, String id){
+		if (index.remove(id, node)){
+			HeapTransaction tx = current.get();
+			if (tx != null)
+				tx.undo(() -> index.put(id, (HeapNode)node));
+			pointUnindexed(node.getId(), id);
+		}
+	}
+
+	@Override
+	public void clearPointIndex(){
+		HeapTransaction tx = current.get();
+		if (tx != null){
+			HashMap<String,HeapNode> cleared = new HashMap<>(index);
+			tx.undo(() -> index.putAll(cleared));
+		}
+		index.clear();
+		pointIndexCleared();
+	}
+
+	@Override
+	public int countPointIndex(){
+		return index.size();
+	}
+
+	/** Remove all nodes and indexed points, and restart ids from 0,
+	 *  without calling any of the hooks below.
+	 * @return void
+	 **/
+	protected void reset(){
+		nodes.clear();
+		labels.clear();
+		index.clear();
+		next_id.set(0);
+		next_rel_id.set(0);
+		next_tx_id.set(1);
+	}
+
+	/** Set the ids of the next node and relationship to be created, e.g. to
+	 *  recreate a node or relationship with its original id.
+	 * @param long nodeid
+	 * @param long relid
+	 * @return void
+	 **/
+	protected void setNextIds(long nodeid, long relid){
+		next_id.set(nodeid);
+		next_rel_id.set(relid);
+	}
+
+	/** Set the id of the next transaction to be begun, e.g. to keep the ids
+	 *  of transactions unique across restarts.
+	 * @param long txid, > 0
+	 * @return void
+	 **/
+	protected void setNextTransactionId(long txid){
+		next_tx_id.set(txid);
+	}
+
+	/** Get the id of the outermost transaction of the current thread, ids
+	 *  counting from 1, or 0 if the thread has none.
+	 * @return long
+	 **/
+	protected long getTransactionId(){
+		HeapTransaction tx = current.get();
+		return (tx != null) ? tx.id : 0;
+	}
+
+	/** Call the hooks for every node, label, property, relationship and
+	 *  indexed point held, as though each were created anew, in an order that
+	 *  recreates them, e.g. to write the whole graph afresh.  Property values
+	 *  are passed as held, and replaced by those the hooks return.  The graph
+	 *  must not be changed meanwhile.
+	 * @return void
+	 **/
+	protected void rewriteGraph(){
+		ArrayList<HeapNode> all = new ArrayList<>(nodes.values());
+		all.sort((a, b) -> Long.compare(a.id, b.id));
+		for (HeapNode node : all){
+			nodeCreated(node.id);
+		}
+		for (HeapNode node : all){
+			for (Map.Entry<String,Object> prop : node.properties.entrySet()){
+				prop.setValue(nodePropertySet(node.id, prop.getKey(), prop.getValue()));
+			}
+			if (node.nodelabels != null){
+				for (String label : node.nodelabels) labelAdded(node.id, label);
+			}
+		}
+		for (HeapNode node : all){
+			for (HeapRelationship rel : node.outgoing){
+				relationshipCreated(rel.id, node.id, rel.end.id, rel.type);
+				for (Map.Entry<String,Object> prop : rel.properties.entrySet()){
+					prop.setValue(relationshipPropertySet(rel.id, node.id, prop.getKey(), prop.getValue()));
+				}
+			}
+		}
+		for (Map.Entry<String,HeapNode> entry : index.entrySet()){
+			pointIndexed(entry.getValue().id, entry.getKey());
+		}
+	}
+
+	/* Hooks called after each change, for subclasses that persist the changes.
+	 * Nodes and relationships are given ids counting from 0, which
+	 * setNextIds() can set, to recreate them with the same ids. */
+
+	/** Called after a node is created. **/
+	protected void nodeCreated(long nodeid){}
+
+	/** Called after a node is deleted. **/
+	protected void nodeDeleted(long nodeid){}
+
+	/** Called before a node property is set.
+	 * @return Object value to hold for the property, e.g. a copy of the value
+	 **/
+	protected Object nodePropertySet(long nodeid, String key, Object value){ return copyArray(value);}
+
+	/** Called after a node property is removed. **/
+	protected void nodePropertyRemoved(long nodeid, String key){}
+
+	/** Called after a label is added to a node. **/
+	protected void labelAdded(long nodeid, String label){}
+
+	/** Called after a label is removed from a node. **/
+	protected void labelRemoved(long nodeid, String label){}
+
+	/** Called after a relationship is created. **/
+	protected void relationshipCreated(long relid, long startid, long endid, MVPRelationshipTypes type){}
+
+	/** Called after a relationship is deleted. **/
+	protected void relationshipDeleted(long relid, long startid){}
+
+	/** Called before a relationship property is set.
+	 * @return Object value to hold for the property, e.g. a copy of the value
+	 **/
+	protected Object relationshipPropertySet(long relid, long startid, String key, Object value){ return copyArray(value);}
+
+	/** Called after a node is added to the point index. **/
+	protected void pointIndexed(long nodeid, String id){}
+
+	/** Called after a node is removed from the point index. **/
+	protected void pointUnindexed(long nodeid, String id){}
+
+	/** Called after the point index is cleared. **/
+	protected void pointIndexCleared(){}
+
+	/** Called when a transaction that made changes closes with success,
+	 *  before its changes are final.  A failure rolls the transaction back.
+	 * @param long txid
+	 **/
+	protected void transactionCommitted(long txid){}
+
+	/** Resolve a held property value to the value returned to callers,
+	 *  a copy for arrays.
+	 * @param Object held value
+	 * @return Object
+	 **/
+	protected Object resolve(Object value){ return copyArray(value);}
+
+	/** Copy a primitive array, returning other values, which are immutable, as they are.
+	 * @param Object value
+	 * @return Object
+	 **/
+	protected static Object copyArray(Object value){
+		if (value instanceof float[]) return ((float[])value).clone();
+		if (value instanceof double[]) return ((double[])value).clone();
+		if (value instanceof long[]) return ((long[])value).clone();
+		if (value instanceof int[]) return ((int[])value).clone();
+		if (value instanceof short[]) return ((short[])value).clone();
+		if (value instanceof byte[]) return ((byte[])value).clone();
+		return value;
+	}
+
+	/** Get the relationship with an id, from the outgoing relationships of its start node.
+	 * @param long relid
+	 * @param long startid
+	 * @return StorageRelationship
+	 **/
+	protected StorageRelationship getRelationship(long relid, long startid){
+		HeapNode start = (HeapNode)getNodeById(startid);
+		synchronized (start){
+			for (HeapRelationship rel : start.outgoing){
+				if (rel.id == relid) return rel;
+			}
+		}
+		throw new MVPNodeException("no relationship with id " + relid);
+	}
+
+	/* outermost transaction of a thread, holding the locks acquired on nodes,
+	 * and a log of how to undo its changes, until closed */
+	private class HeapTransaction implements StorageTransaction {
+		private final long id;
+		private ArrayList<ReentrantLock> locks = null;
+		private ArrayList<Runnable> undos = null;
+		private HashSet<Object> created = null;
+		private boolean success = false, failed = false, closed = false;
+
+		HeapTransaction(long id){
+			this.id = id;
+		}
+
+		/* Log how to undo a change, undone in reverse order of the changes. */
+		void undo(Runnable action){
+			if (undos == null) undos = new ArrayList<>();
+			undos.add(action);
+		}
+
+		/* Note a node or relationship created, whose properties need no undoing. */
+		void created(Object entity){
+			if (created == null) created = new HashSet<>();
+			created.add(entity);
+		}
+
+		boolean isCreated(Object entity){
+			return created != null && created.contains(entity);
+		}
+
+		@Override
+		public void success(){
+			success = true;
+		}
+
+		@Override
+		public void acquireWriteLock(StorageNode node){
+			ReentrantLock lock = ((HeapNode)node).getLock();
+			lock.lock();
+			if (locks == null) locks = new ArrayList<>(1);
+			locks.add(lock);
+		}
+
+		private void rollback(){
+			for (int i=undos.size()-1;i >= 0;i--){
+				undos.get(i).run();
+			}
+		}
+
+		@Override
+		public void close(){
+			if (closed)
+				return;
+			closed = true;
+			try {
+				if (undos != null){
+					if (!success || failed){
+						rollback();
+						if (success)
+							throw new MVPNodeException("transaction rolled back: a nested transaction failed");
+					} else {
+						try {
+							transactionCommitted(id);
+						} catch (RuntimeException ex){
+							rollback();
+							throw ex;
+						}
+					}
+				}
+			} finally {
+				undos = null;
+				created = null;
+				if (current.get() == this)
+					current.remove();
+				if (locks != null){
+					for (ReentrantLock lock : locks) lock.unlock();
+					locks = null;
+				}
+			}
+		}
+	}
+
+	/* transaction begun within another on the same thread, which fails the
+	 * outer one if it closes without success */
+	private static class NestedTransaction implements StorageTransaction {
+		private final HeapTransaction outer;
+		private boolean success = false;
+
+		NestedTransaction(HeapTransaction outer){
+			this.outer = outer;
+		}
+
+		@Override
+		public void success(){
+			success = true;
+		}
+
+		@Override
+		public void acquireWriteLock(StorageNode node){
+			outer.acquireWriteLock(node);
+		}
+
+		@Override
+		public void close(){
+			if (!success)
+				outer.failed = true;
+		}
+	}
+
+	/* node with its properties, labels and relationships in both directions */
+	private static class HeapNode implements StorageNode {
+		private final long id;
+		private final HeapBackend backend;
+		private final Map<String,Object> properties = new ConcurrentHashMap<>(8);
+		private final ArrayList<HeapRelationship> outgoing = new ArrayList<>(0);
+		private final ArrayList<HeapRelationship> incoming = new ArrayList<>(0);
+		private ArrayList<String> nodelabels = null;
+		private ReentrantLock lock = null;
+
+		HeapNode(long id, HeapBackend backend){
+			this.id = id;
+			this.backend = backend;
+		}
+
+		synchronized ReentrantLock getLock(){
+			if (lock == null) lock = new ReentrantLock();
+			return lock;
+		}
+
+		@Override public long getId(){ return id;}
+		@Override public StorageBackend getBackend(){ return backend;}
+
+		@Override
+		public Object getProperty(String key){
+			Object value = properties.get(key);
+			if (value == null)
+				throw new MVPNodeException("no property " + key + " on node " + id);
+			return backend.resolve(value);
+		}
+
+		@Override
+		public Object getProperty(String key, Object defaultValue){
+			Object value = properties.get(key);
+			return (value != null) ? backend.resolve(value) : defaultValue;
+		}
+
+		@Override public boolean hasProperty(String key){ return properties.containsKey(key);}
+
+		@Override
+		public synchronized void setProperty(String key, Object value){
+			if (value == null)
+				throw new NullPointerException("property value is null");
+			Object previous = properties.put(key, backend.nodePropertySet(id, key, value));
+			HeapTransaction tx = backend.current.get();
+			if (tx != null && !tx.isCreated(this))
+				tx.undo(() -> restoreProperty(key, previous));
+		}
+
+		@Override
+		public synchronized void removeProperty(String key){
+			Object previous = properties.remove(key);
+			if (previous != null){
+				HeapTransaction tx = backend.current.get();
+				if (tx != null && !tx.isCreated(this))
+					tx.undo(() -> restoreProperty(key, previous));
+				backend.nodePropertyRemoved(id, key);
+			}
+		}
+
+		synchronized void restoreProperty(String key, Object previous){
+			if (previous != null) properties.put(key, previous);
+			else properties.remove(key);
+		}
+
+		@Override
+		public synchronized void addLabel(String label){
+			if (nodelabels == null) nodelabels = new ArrayList<>(1);
+			if (!nodelabels.contains(label)){
+				nodelabels.add(label);
+				backend.labels.computeIfAbsent(label, l -> ConcurrentHashMap.newKeySet()).add(this);
+				HeapTransaction tx = backend.current.get();
+				if (tx != null)
+					tx.undo(() -> restoreLabel(label, false));
+				backend.labelAdded(id, label);
+			}
+		}
+
+		@Override
+		public synchronized void removeLabel(String label){
+			if (nodelabels != null && nodelabels.remove(label)){
+				Set<HeapNode> labelled = backend.labels.get(label);
+				if (labelled != null) labelled.remove(this);
+				HeapTransaction tx = backend.current.get();
+				if (tx != null)
+					tx.undo(() -> restoreLabel(label, true));
+				backend.labelRemoved(id, label);
+			}
+		}
+
+		synchronized void restoreLabel(String label, boolean labelled){
+			if (labelled){
+				if (nodelabels == null) nodelabels = new ArrayList<>(1);
+				nodelabels.add(label);
+				backend.labels.computeIfAbsent(label, l -> ConcurrentHashMap.newKeySet()).add(this);
+			} else {
+				nodelabels.remove(label);
+				Set<HeapNode> nodes = backend.labels.get(label);
+				if (nodes != null) nodes.remove(this);
+			}
+		}
+
+		@Override
+		public synchronized boolean hasLabel(String label){
+			return nodelabels != null && nodelabels.contains(label);
+		}
+
+		@Override
+		public StorageRelationship createRelationshipTo(StorageNode other, MVPRelationshipTypes type){
+			HeapNode end = (HeapNode)other;
+			HeapRelationship rel = new HeapRelationship(backend.next_rel_id.getAndIncrement(), this, end, type);
+			synchronized (this){
+				outgoing.add(rel);
+			}
+			synchronized (end){
+				end.incoming.add(rel);
+			}
+			HeapTransaction tx = backend.current.get();
+			if (tx != null){
+				tx.created(rel);
+				tx.undo(() -> rel.restore(-1, -1));
+			}
+			backend.relationshipCreated(rel.id, id, end.id, type);
+			return rel;
+		}
+
+		@Override
+		public synchronized Iterable<StorageRelationship> getRelationships(MVPRelationshipTypes type){
+			ArrayList<StorageRelationship> rels = new ArrayList<>(outgoing.size());
+			for (HeapRelationship rel : outgoing){
+				if (rel.type == type) rels.add(rel);
+			}
+			return rels;
+		}
+
+		@Override
+		public synchronized Iterable<StorageRelationship> getRelationships(){
+			ArrayList<StorageRelationship> rels = new ArrayList<>(outgoing.size() + incoming.size());
+			rels.addAll(outgoing);
+			rels.addAll(incoming);
+			return rels;
+		}
+
+		@Override
+		public void delete(){
+			synchronized (this){
+				if (!outgoing.isEmpty() || !incoming.isEmpty())
+					throw new MVPNodeException("node " + id + " still has relationships");
+				if (nodelabels != null){
+					for (String label : new ArrayList<>(nodelabels)) removeLabel(label);
+				}
+			}
+			if (backend.nodes.remove(id) != null){
+				HeapTransaction tx = backend.current.get();
+				if (tx != null)
+					tx.undo(() -> backend.nodes.put(id, this));
+				backend.nodeDeleted(id);
+			}
+		}
+	}
+
+	/* relationship with its properties */
+	private static class HeapRelationship implements StorageRelationship {
+		private final long id;
+		private final HeapNode start, end;
+		private final MVPRelationshipTypes type;
+		private final Map<String,Object> properties = new ConcurrentHashMap<>(2);
+
+		HeapRelationship(long id, HeapNode start, HeapNode end, MVPRelationshipTypes type){
+			this.id = id;
+			this.start = start;
+			this.end = end;
+			this.type = type;
+		}
+
+		@Override public StorageNode getStartNode(){ return start;}
+		@Override public StorageNode getEndNode(){ return end;}
+
+		@Override
+		public Object getProperty(String key){
+			Object value = properties.get(key);
+			if (value == null)
+				throw new MVPNodeException("no property " + key + " on relationship");
+			return start.backend.resolve(value);
+		}
+
+		@Override
+		public synchronized void setProperty(String key, Object value){
+			if (value == null)
+				throw new NullPointerException("property value is null");
+			Object previous = properties.put(key, start.backend.relationshipPropertySet(id, start.id, key, value));
+			HeapTransaction tx = start.backend.current.get();
+			if (tx != null && !tx.isCreated(this))
+				tx.undo(() -> restoreProperty(key, previous));
+		}
+
+		synchronized void restoreProperty(String key, Object previous){
+			if (previous != null) properties.put(key, previous);
+			else properties.remove(key);
+		}
+
+		@Override
+		public void delete(){
+			int outpos, inpos;
+			synchronized (start){
+				outpos = start.outgoing.indexOf(this);
+				if (outpos >= 0) start.outgoing.remove(outpos);
+			}
+			synchronized (end){
+				inpos = end.incoming.indexOf(this);
+				if (inpos >= 0) end.incoming.remove(inpos);
+			}
+			if (outpos >= 0){
+				HeapTransaction tx = start.backend.current.get();
+				if (tx != null)
+					tx.undo(() -> restore(outpos, inpos));
+				start.backend.relationshipDeleted(id, start.id);
+			}
+		}
+
+		/* Restore the relationship to its positions in the relationships of its
+		 * nodes, or remove it from them for positions of -1. */
+		void restore(int outpos, int inpos){
+			synchronized (start){
+				if (outpos >= 0) start.outgoing.add(outpos, this);
+				else start.outgoing.remove(this);
+			}
+			synchronized (end){
+				if (inpos >= 0) end.incoming.add(inpos, this);
+				else end.incoming.remove(this);
+			}
+		}
+	}
+}
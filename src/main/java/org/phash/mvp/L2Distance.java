@@ -7,17 +7,178 @@ package org.phash.mvp;
  * @version 0.1
  **/
 
-public class L2Distance<T extends Number> implements MetricDistance<T>{
+public class L2Distance<T extends Number> implements PrimitiveMetricDistance<T>{
 
-	public Double distance(DataObject<T> obj1, DataObject<T> obj2){
-		T[] x = obj1.getDataWithoutTx();
-		T[] y = obj2.getDataWithoutTx();
+	/* number of elements summed between checks against a bound */
+	protected static final int BlockLength = 16;
+
+	public double distance(float[] x, float[] y){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		double sum = 0.0;
+		for (int i=0;i<x.length;i++){
+			double d = (double)x[i] - (double)y[i];
+			sum += d*d;
+		}
+		return Math.sqrt(sum)/x.length;
+	}
+
+	public double distance(double[] x, double[] y){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		double sum = 0.0;
+		for (int i=0;i<x.length;i++){
+			double d = x[i] - y[i];
+			sum += d*d;
+		}
+		return Math.sqrt(sum)/x.length;
+	}
+
+	public double distance(long[] x, long[] y){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		double sum = 0.0;
+		for (int i=0;i<x.length;i++){
+			double d = (double)x[i] - (double)y[i];
+			sum += d*d;
+		}
+		return Math.sqrt(sum)/x.length;
+	}
+
+	public double distance(int[] x, int[] y){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		double sum = 0.0;
+		for (int i=0;i<x.length;i++){
+			double d = (double)x[i] - (double)y[i];
+			sum += d*d;
+		}
+		return Math.sqrt(sum)/x.length;
+	}
+
+	public double distance(byte[] x, byte[] y){
 		if (x.length != y.length)
 			throw new DataPointException("unequal data arrays in DataObjects");
-		Double sum = 0.0;
+		double sum = 0.0;
 		for (int i=0;i<x.length;i++){
-			sum = sum + Math.pow(x[i].doubleValue() - y[i].doubleValue(), 2.0);
+			double d = (double)x[i] - (double)y[i];
+			sum += d*d;
 		}
 		return Math.sqrt(sum)/x.length;
 	}
+
+	public double distance(float[] x, float[] y, double bound){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		return distance(x, 0, y, bound);
+	}
+
+	public double distance(float[] x, int xoffset, float[] y, double bound){
+		if (xoffset < 0 || xoffset + y.length > x.length)
+			throw new DataPointException("data range outside array");
+		double sum = 0.0;
+		double limit = (bound*y.length)*(bound*y.length);
+		for (int i=0;i<y.length;){
+			int end = Math.min(i + BlockLength, y.length);
+			for (;i<end;i++){
+				double d = (double)x[xoffset+i] - y[i];
+				sum += d*d;
+			}
+			if (sum > limit && Math.sqrt(sum)/y.length > bound)
+				return Double.POSITIVE_INFINITY;
+		}
+		return Math.sqrt(sum)/y.length;
+	}
+
+	public double distance(double[] x, double[] y, double bound){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		return distance(x, 0, y, bound);
+	}
+
+	public double distance(double[] x, int xoffset, double[] y, double bound){
+		if (xoffset < 0 || xoffset + y.length > x.length)
+			throw new DataPointException("data range outside array");
+		double sum = 0.0;
+		double limit = (bound*y.length)*(bound*y.length);
+		for (int i=0;i<y.length;){
+			int end = Math.min(i + BlockLength, y.length);
+			for (;i<end;i++){
+				double d = x[xoffset+i] - y[i];
+				sum += d*d;
+			}
+			if (sum > limit && Math.sqrt(sum)/y.length > bound)
+				return Double.POSITIVE_INFINITY;
+		}
+		return Math.sqrt(sum)/y.length;
+	}
+
+	public double distance(long[] x, long[] y, double bound){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		return distance(x, 0, y, bound);
+	}
+
+	public double distance(long[] x, int xoffset, long[] y, double bound){
+		if (xoffset < 0 || xoffset + y.length > x.length)
+			throw new DataPointException("data range outside array");
+		double sum = 0.0;
+		double limit = (bound*y.length)*(bound*y.length);
+		for (int i=0;i<y.length;){
+			int end = Math.min(i + BlockLength, y.length);
+			for (;i<end;i++){
+				double d = (double)x[xoffset+i] - y[i];
+				sum += d*d;
+			}
+			if (sum > limit && Math.sqrt(sum)/y.length > bound)
+				return Double.POSITIVE_INFINITY;
+		}
+		return Math.sqrt(sum)/y.length;
+	}
+
+	public double distance(int[] x, int[] y, double bound){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		return distance(x, 0, y, bound);
+	}
+
+	public double distance(int[] x, int xoffset, int[] y, double bound){
+		if (xoffset < 0 || xoffset + y.length > x.length)
+			throw new DataPointException("data range outside array");
+		double sum = 0.0;
+		double limit = (bound*y.length)*(bound*y.length);
+		for (int i=0;i<y.length;){
+			int end = Math.min(i + BlockLength, y.length);
+			for (;i<end;i++){
+				double d = (double)x[xoffset+i] - y[i];
+				sum += d*d;
+			}
+			if (sum > limit && Math.sqrt(sum)/y.length > bound)
+				return Double.POSITIVE_INFINITY;
+		}
+		return Math.sqrt(sum)/y.length;
+	}
+
+	public double distance(byte[] x, byte[] y, double bound){
+		if (x.length != y.length)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		return distance(x, 0, y, bound);
+	}
+
+	public double distance(byte[] x, int xoffset, byte[] y, double bound){
+		if (xoffset < 0 || xoffset + y.length > x.length)
+			throw new DataPointException("data range outside array");
+		double sum = 0.0;
+		double limit = (bound*y.length)*(bound*y.length);
+		for (int i=0;i<y.length;){
+			int end = Math.min(i + BlockLength, y.length);
+			for (;i<end;i++){
+				double d = (double)x[xoffset+i] - y[i];
+				sum += d*d;
+			}
+			if (sum > limit && Math.sqrt(sum)/y.length > bound)
+				return Double.POSITIVE_INFINITY;
+		}
+		return Math.sqrt(sum)/y.length;
+	}
 }
@@ -1,11 +1,6 @@
 package org.phash.mvp;
 
 import java.util.ArrayList;
-import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.Direction;
-import org.neo4j.graphdb.Relationship;
-import org.neo4j.graphdb.Transaction;
-import org.neo4j.graphdb.DynamicLabel;
 
 
 /** MVPInternal node 
@@ -18,14 +13,17 @@ class MVPInternal<T extends Number> extends MVPNode<T> {
 	private static final String SplitsProperty = "SPLITS"; 
 
 	/** int property on relationship TO_CHILD **/
-	private static final String ChildOrdinalProperty =  "CHILD";  
+	protected static final String ChildOrdinalProperty =  "CHILD";  
 
-	private static final String InternalLabel = "INTERNAL";
+	/** long[] property of child node ids by ordinal, -1 where none **/
+	protected static final String ChildIdsProperty = "CHILDIDS";
+
+	protected static final String InternalLabel = "INTERNAL";
 
 	/** Constructor
-	 * @param Node neo4j node
+	 * @param StorageNode node
 	 **/
-	protected MVPInternal(Node node){
+	protected MVPInternal(StorageNode node){
 		super(node);
 	}
 
@@ -35,7 +33,7 @@ class MVPInternal<T extends Number> extends MVPNode<T> {
 	}
 	
 	protected void setLabel(){
-		getNode().addLabel(DynamicLabel.label(InternalLabel));
+		getNode().addLabel(InternalLabel);
 	}
 	
 	protected void setSplitsAtLevel(float[] splits, int n){
@@ -44,6 +42,31 @@ class MVPInternal<T extends Number> extends MVPNode<T> {
 		getNode().setProperty(str.toString(), splits);
 	}
 
+	@Override
+	protected void initNodeIds(){
+		super.initNodeIds();
+		getNode().setProperty(ChildIdsProperty, new long[0]);
+	}
+
+	/* Also rebuild the child id array, keeping the first child found at each
+	 * ordinal and deleting any duplicate links to the same child. */
+	@Override
+	protected void migrateNodeIds(){
+		super.migrateNodeIds();
+		long[] ids = new long[0];
+		Iterable<StorageRelationship> rels = getNode().getRelationships(
+								MVPRelationshipTypes.TO_CHILD);
+		for (StorageRelationship rel : rels){
+			int ordinalValue = (int)rel.getProperty(ChildOrdinalProperty);
+			long id = rel.getEndNode().getId();
+			if (ordinalValue >= ids.length || ids[ordinalValue] < 0)
+				ids = setNodeIdAt(ids, ordinalValue, id);
+			else if (ids[ordinalValue] == id)
+				rel.delete();
+		}
+		getNode().setProperty(ChildIdsProperty, ids);
+	}
+
 	protected float[] getSplitsAtLevel(int n){
 		StringBuilder str = new StringBuilder(SplitsProperty);
 		str.append(n);
@@ -52,40 +75,60 @@ class MVPInternal<T extends Number> extends MVPNode<T> {
 	}
 
 	protected void setChildNodeAt(MVPNode<?> childNode, int n){
-		Relationship rel = getNode().createRelationshipTo(
+		long id = childNode.getNode().getId();
+		long[] ids = getNodeIds(ChildIdsProperty);
+		if (ids != null && n < ids.length && ids[n] >= 0){
+			if (ids[n] == id)
+				return;          /* already linked */
+			deleteAsChildNode(n);
+			ids = getNodeIds(ChildIdsProperty);
+		}
+		StorageRelationship rel = getNode().createRelationshipTo(
 							  childNode.getNode(), MVPRelationshipTypes.TO_CHILD);
 		rel.setProperty(ChildOrdinalProperty, n);
+		if (ids != null) getNode().setProperty(ChildIdsProperty, setNodeIdAt(ids, n, id));
 	}
 
 	protected MVPNode<T> getChildNode(int n){
 		MVPNode<T> childNode = null;
-		Iterable<Relationship> rels = getNode().getRelationships(
-								MVPRelationshipTypes.TO_CHILD, Direction.OUTGOING);
-		for (Relationship rel : rels){
+		long[] ids = getNodeIds(ChildIdsProperty);
+		if (ids != null){
+			if (n < ids.length && ids[n] >= 0)
+				childNode = wrapChildNode(getNode().getBackend().getNodeById(ids[n]));
+			return childNode;
+		}
+		Iterable<StorageRelationship> rels = getNode().getRelationships(
+								MVPRelationshipTypes.TO_CHILD);
+		for (StorageRelationship rel : rels){
 			int ordinalValue = (int)rel.getProperty(ChildOrdinalProperty);
 			if (ordinalValue == n){
-				Node endNode = rel.getEndNode();
-				int nodetype = (int)endNode.getProperty(NodeTypeProperty);
-				if (nodetype == NodeType.INTERNAL_NODE.ordinal())
-					childNode = new MVPInternal<>(endNode);
-				else 
-					childNode = new MVPLeaf<>(endNode);
+				childNode = wrapChildNode(rel.getEndNode());
 				break;
 			}
 		}
 		return childNode;
 	}
 
+	private MVPNode<T> wrapChildNode(StorageNode endNode){
+		int nodetype = (int)endNode.getProperty(NodeTypeProperty);
+		if (nodetype == NodeType.INTERNAL_NODE.ordinal())
+			return new MVPInternal<>(endNode);
+		return new MVPLeaf<>(endNode);
+	}
+
 	protected void deleteAsChildNode(int n){
-		Iterable<Relationship> rels = getNode().getRelationships(
-								 MVPRelationshipTypes.TO_CHILD, Direction.OUTGOING);
-		for (Relationship rel : rels){
+		Iterable<StorageRelationship> rels = getNode().getRelationships(
+								 MVPRelationshipTypes.TO_CHILD);
+		for (StorageRelationship rel : rels){
 			int ordinalValue = (int)rel.getProperty(ChildOrdinalProperty);
 			if (ordinalValue == n){
 				rel.delete();
 				break;
 			}
 		}
+		long[] ids = getNodeIds(ChildIdsProperty);
+		if (ids != null && n < ids.length)
+			getNode().setProperty(ChildIdsProperty, setNodeIdAt(ids, n, -1L));
 	}
 }
 
@@ -2,20 +2,27 @@ package org.phash.mvp;
 
 import java.util.Collection;
 import java.util.Vector;
-import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.Relationship;
-import org.neo4j.graphdb.Direction;
-import org.neo4j.graphdb.Transaction;
-import org.neo4j.graphdb.DynamicLabel;
 
+import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
 
 class MVPLeaf<T extends Number> extends MVPNode<T> {
 
 	private static final String PathProperty = "PATH";
-	private static final String LeafLabel = "LEAF";
+	protected static final String LeafLabel = "LEAF";
+
+	/* Packed leaf format: node ids, paths and data of all the leaf's points,
+	 * in the same order, in a long[], a float[] and one primitive array of the
+	 * data type.  The TO_DP relationships are kept alongside. */
+	private static final String PackedIdsProperty = "PACKEDIDS";
+	private static final String PackedPathsProperty = "PACKEDPATHS";
+	private static final String PackedDataProperty = "PACKEDDATA";
 	
-	protected MVPLeaf(Node node){
+	protected MVPLeaf(StorageNode node){
 		super(node);
 	}
 
@@ -25,86 +32,500 @@ class MVPLeaf<T extends Number> extends MVPNode<T> {
 	}
 	
 	protected void setLabel(){
-		getNode().addLabel(DynamicLabel.label(LeafLabel));
+		getNode().addLabel(LeafLabel);
 	}
 	
 	protected int getDataPointCount(){
+		if (isPacked())
+			return ((long[])getNode().getProperty(PackedIdsProperty)).length;
 		int count = 0;
-		Iterable<Relationship> rels = getNode().getRelationships(
-						  MVPRelationshipTypes.TO_DP, Direction.OUTGOING);
-		for (Relationship rel : rels) count++;
+		Iterable<StorageRelationship> rels = getNode().getRelationships(
+						  MVPRelationshipTypes.TO_DP);
+		for (StorageRelationship rel : rels) count++;
 		return count;
 	}
 
-	protected void addDataPoint(DataPoint<?> point){
-		Relationship rel = getNode().createRelationshipTo(
+	protected void addDataPoint(DataPoint<T> point){
+		StorageRelationship rel = getNode().createRelationshipTo(
 							point.getNode(), MVPRelationshipTypes.TO_DP);
 		rel.setProperty(PathProperty, point.getPath());
+		if (isPacked())
+			packDataPoints(Collections.singletonList(point));
 	}
 
 
 	protected void addDataPoints(ArrayList<DataPoint<T>> points){
 		for (DataPoint pnt : points){
-			Relationship rel = getNode().createRelationshipTo(
+			StorageRelationship rel = getNode().createRelationshipTo(
 							  pnt.getNode(), MVPRelationshipTypes.TO_DP);
 			rel.setProperty(PathProperty, pnt.getPath());
 		}
+		if (isPacked())
+			packDataPoints(points);
 		points.clear();
 	}
 
+	/* Set an empty leaf to keep its points in packed arrays */
+	protected void setPacked(){
+		getNode().setProperty(PackedIdsProperty, new long[0]);
+		getNode().setProperty(PackedPathsProperty, new float[0]);
+		getNode().removeProperty(PackedDataProperty);
+	}
+
+	protected boolean isPacked(){
+		return getNode().hasProperty(PackedIdsProperty);
+	}
+
+	/* Convert the leaf to packed arrays, deleting its inactive points.
+	 * Only to be called while holding the tree's write lock. */
+	protected void pack(NodeFactory<T> nf){
+		ArrayList<DataPoint<T>> points = getAllDataPoints(nf);
+		setPacked();
+		packDataPoints(points);
+	}
+
+	/* Append the node ids, paths and data of points to the packed arrays.
+	 * Paths are packed at the length of the longest path, packed or new,
+	 * padded with unknown (-1) ancestor distances, as paths stored before
+	 * ancestor distances were recorded are shorter. */
+	private void packDataPoints(List<DataPoint<T>> points){
+		if (points.isEmpty())
+			return;
+		long[] ids = (long[])getNode().getProperty(PackedIdsProperty);
+		float[] paths = (float[])getNode().getProperty(PackedPathsProperty);
+		Object data = getNode().getProperty(PackedDataProperty, null);
+		int n = ids.length;
+		int m = points.size();
+		int packedlength = (n > 0) ? paths.length/n : 0;
+		int pathlength = packedlength;
+		for (DataPoint<T> pnt : points){
+			pathlength = Math.max(pathlength, pnt.getPath().length);
+		}
+		Object first = points.get(0).getPrimitiveDataWithoutTx();
+		int dim = Array.getLength(first);
+		if (n > 0 && (paths.length != n*packedlength || Array.getLength(data) != n*dim))
+			throw new MVPNodeException("inconsistent packed leaf arrays");
+
+		ids = Arrays.copyOf(ids, n + m);
+		paths = padPaths(paths, n, packedlength, n + m, pathlength);
+		Object newdata = Array.newInstance(first.getClass().getComponentType(), (n + m)*dim);
+		if (n > 0)
+			System.arraycopy(data, 0, newdata, 0, n*dim);
+		for (int i=0;i < m;i++){
+			DataPoint<T> pnt = points.get(i);
+			Object pntdata = pnt.getPrimitiveDataWithoutTx();
+			if (Array.getLength(pntdata) != dim)
+				throw new DataPointException("data length differs from other points in leaf");
+			ids[n + i] = pnt.getNode().getId();
+			float[] path = pnt.getPath();
+			System.arraycopy(path, 0, paths, (n + i)*pathlength, path.length);
+			System.arraycopy(pntdata, 0, newdata, (n + i)*dim, dim);
+		}
+		getNode().setProperty(PackedIdsProperty, ids);
+		getNode().setProperty(PackedPathsProperty, paths);
+		getNode().setProperty(PackedDataProperty, newdata);
+	}
+
+	/* Copy n packed paths of length packedlength into an array of size paths of
+	 * length pathlength, filled with unknown (-1) distances where not copied */
+	private static float[] padPaths(float[] paths, int n, int packedlength, int size, int pathlength){
+		float[] padded = new float[size*pathlength];
+		Arrays.fill(padded, -1.0f);
+		for (int i=0;i < n;i++){
+			System.arraycopy(paths, i*packedlength, padded, i*pathlength, packedlength);
+		}
+		return padded;
+	}
+
+	/* Rewrite the data of the point with node id in the packed arrays of a node,
+	 * if it is a packed leaf holding the point. */
+	protected static void updatePackedData(StorageNode node, long id, Object pntdata){
+		if (!node.hasLabel(LeafLabel) || !node.hasProperty(PackedIdsProperty))
+			return;
+		long[] ids = (long[])node.getProperty(PackedIdsProperty);
+		for (int i=0;i < ids.length;i++){
+			if (ids[i] != id)
+				continue;
+			Object data = node.getProperty(PackedDataProperty);
+			int dim = Array.getLength(data)/ids.length;
+			if (Array.getLength(pntdata) != dim || data.getClass() != pntdata.getClass())
+				throw new DataPointException("data length differs from other points in leaf");
+			Object newdata = Array.newInstance(data.getClass().getComponentType(), Array.getLength(data));
+			System.arraycopy(data, 0, newdata, 0, Array.getLength(data));
+			System.arraycopy(pntdata, 0, newdata, i*dim, dim);
+			node.setProperty(PackedDataProperty, newdata);
+			return;
+		}
+	}
+
+	/* Wrap the i'th point of a packed leaf in a DataPoint */
+	private DataPoint<T> wrapPackedDataPoint(long[] ids, float[] paths, int i, int pathlength,
+											 NodeFactory<T> nf){
+		float[] path = Arrays.copyOfRange(paths, i*pathlength, (i + 1)*pathlength);
+		return nf.wrapDataPoint(nf.getBackend().getNodeById(ids[i]), path);
+	}
+
+	/* Test whether a point's path places it within radius of a query target.
+	 * The first numvps entries of pdists are compared to the target's distances to
+	 * the leaf's vantage points, the rest to its distances to ancestor vantage points
+	 * wherever both the point's and the target's distance is known (not -1). */
+	private static boolean isPathInRange(float[] pdists, float[] qdists, int numvps,
+										 float[] qpath, float radius){
+		return isPathInRange(pdists, 0, pdists.length, qdists, numvps, qpath, radius);
+	}
+
+	/* Test the path of length pathlength at offset in an array of packed paths */
+	private static boolean isPathInRange(float[] paths, int offset, int pathlength,
+										 float[] qdists, int numvps,
+										 float[] qpath, float radius){
+		for (int i=0;i < numvps;i++){
+			float p = paths[offset + i];
+			if (!(p >= qdists[i] - radius && p <= qdists[i] + radius))
+				return false;
+		}
+		int pl = qpath.length;
+		for (int i=0;i < pl && pl + i < pathlength;i++){
+			float p = paths[offset + pl + i];
+			float q = qpath[i];
+			if (p >= 0 && q >= 0 && !(p >= q - radius && p <= q + radius))
+				return false;
+		}
+		return true;
+	}
+
+	/* Add the leaf's points within radius of target to results.
+	 * qpath holds the target's distances to the vantage points of the leaf's
+	 * ancestors, indexed by level in tree, or -1 where unknown.  Distances to
+	 * points passing the path filter are bounded by radius, so points far
+	 * outside it are abandoned before their full distance is summed. */
 	protected int filterDataPoints(TargetPoint<T> target,
-								   ArrayList<DataPoint<T>> results,
+								   float[] qpath,
+								   ArrayList<QueryResult<T>> results,
 								   float radius,
-								   MetricDistance metric,
-								   NodeFactory<T> nf){
+								   MetricDistance<T> metric,
+								   NodeFactory<T> nf,
+								   QueryStats stats){
 		int count = 0;
 		int numvps = getNumVantagePoints();
-		ArrayList<Float> qdists = new ArrayList<Float>();
+		stats.n_leaf++;
+		stats.n_distances += numvps;
+		float[] qdists = new float[numvps];
 		for (int i=0;i<numvps;i++){
 			DataPoint<T> vp = getVantagePoint(i, nf);
-			Double d = metric.distance(vp, target);
-			if (vp.isActive() && d.floatValue() <= radius)
-				results.add(vp);
-			qdists.add(d.floatValue());
+			float d = (float)metric.primitiveDistance(vp, target);
+			if (vp.isActive() && d <= radius)
+				results.add(new QueryResult<>(vp, d));
+			qdists[i] = d;
 		}
 
-		Iterable<Relationship> rels = getNode().getRelationships(
-									 MVPRelationshipTypes.TO_DP, Direction.OUTGOING);
-		for (Relationship rel : rels){
+		if (isPacked())
+			return filterPackedDataPoints(target, qdists, numvps, qpath, results, radius, metric, nf, stats);
+
+		/* distances rounding to radius as float must not be abandoned */
+		float bound = Math.nextUp(radius);
+		Iterable<StorageRelationship> rels = getNode().getRelationships(
+									 MVPRelationshipTypes.TO_DP);
+		for (StorageRelationship rel : rels){
 			float[] pdists = (float[])rel.getProperty(PathProperty);
-			boolean skip = false;
-			for (int i=0;i < numvps;i++){
-				if (!(pdists[i] >= qdists.get(i) - radius && pdists[i] <= qdists.get(i) + radius)){
-					skip=true;
-					break;
+			if (isPathInRange(pdists, qdists, numvps, qpath, radius)){
+				DataPoint<T> pnt = nf.wrapDataPoint(rel.getEndNode(), pdists);
+				if (pnt.isActive()){
+					float d = (float)metric.distance(pnt, target, bound);
+					stats.n_distances++;
+					if (d <= radius){
+						results.add(new QueryResult<>(pnt, d));
+						count++;
+					}
 				}
+			} else {
+				stats.n_rejected++;
 			}
-			if (!skip){
-				DataPoint<T> pnt = nf.wrapDataPoint(rel.getEndNode(), pdists);
-				Double d = metric.distance(pnt, target);
-				if (!pnt.isActive()) pnt.delete();
-				else if (d.floatValue() <= radius){
-					results.add(pnt);
+		}
+		return count;
+	}
+
+	/* Packed version of filterDataPoints, a sequential pass over the leaf's arrays.
+	 * A point's node is only read when it is within radius, to check it is active. */
+	private int filterPackedDataPoints(TargetPoint<T> target,
+									   float[] qdists,
+									   int numvps,
+									   float[] qpath,
+									   ArrayList<QueryResult<T>> results,
+									   float radius,
+									   MetricDistance<T> metric,
+									   NodeFactory<T> nf,
+									   QueryStats stats){
+		long[] ids = (long[])getNode().getProperty(PackedIdsProperty);
+		int n = ids.length;
+		if (n == 0)
+			return 0;
+		float[] paths = (float[])getNode().getProperty(PackedPathsProperty);
+		Object data = getNode().getProperty(PackedDataProperty);
+		int pathlength = paths.length/n;
+		int dim = Array.getLength(data)/n;
+
+		int count = 0;
+		float bound = Math.nextUp(radius);
+		for (int i=0;i < n;i++){
+			if (!isPathInRange(paths, i*pathlength, pathlength, qdists, numvps, qpath, radius)){
+				stats.n_rejected++;
+				continue;
+			}
+			float d = (float)packedDistance(data, i*dim, dim, target, metric, bound);
+			stats.n_distances++;
+			if (d <= radius){
+				DataPoint<T> pnt = wrapPackedDataPoint(ids, paths, i, pathlength, nf);
+				if (pnt.isActive()){
+					results.add(new QueryResult<>(pnt, d));
 					count++;
 				}
 			}
 		}
 		return count;
 	}
-	
+
+	/* Batch version of filterDataPoints for the targets in target_indices.
+	 * Vantage points are decoded once, and each point's path is read once and
+	 * its data decoded at most once, for all targets in the batch. */
+	protected void filterDataPoints(List<TargetPoint<T>> targets,
+									List<Integer> target_indices,
+									List<float[]> target_qpaths,
+									List<? extends List<QueryResult<T>>> results,
+									float radius,
+									MetricDistance<T> metric,
+									NodeFactory<T> nf,
+									QueryStats stats){
+		int numvps = getNumVantagePoints();
+		int ntargets = target_indices.size();
+		stats.n_leaf++;
+		stats.n_distances += numvps*ntargets;
+		float[][] qdists = new float[ntargets][numvps];
+		for (int i=0;i<numvps;i++){
+			DataPoint<T> vp = getVantagePoint(i, nf);
+			TargetPoint<T> vpdata = new TargetPoint<>(vp);
+			boolean active = vp.isActive();
+			for (int t=0;t<ntargets;t++){
+				int target_index = target_indices.get(t);
+				float d = (float)metric.primitiveDistance(vpdata, targets.get(target_index));
+				if (active && d <= radius)
+					results.get(target_index).add(new QueryResult<>(vp, d));
+				qdists[t][i] = d;
+			}
+		}
+
+		if (isPacked()){
+			filterPackedDataPoints(targets, target_indices, target_qpaths, qdists, numvps,
+								   results, radius, metric, nf, stats);
+			return;
+		}
+
+		float bound = Math.nextUp(radius);
+		Iterable<StorageRelationship> rels = getNode().getRelationships(
+									 MVPRelationshipTypes.TO_DP);
+		for (StorageRelationship rel : rels){
+			float[] pdists = (float[])rel.getProperty(PathProperty);
+			DataPoint<T> pnt = null;
+			TargetPoint<T> pntdata = null;
+			for (int t=0;t<ntargets;t++){
+				if (!isPathInRange(pdists, qdists[t], numvps, target_qpaths.get(t), radius)){
+					stats.n_rejected++;
+					continue;
+				}
+				if (pnt == null){
+					pnt = nf.wrapDataPoint(rel.getEndNode(), pdists);
+					if (!pnt.isActive()) break;
+					pntdata = new TargetPoint<>(pnt);
+				}
+				int target_index = target_indices.get(t);
+				float d = (float)metric.distance(pntdata, targets.get(target_index), bound);
+				stats.n_distances++;
+				if (d <= radius){
+					results.get(target_index).add(new QueryResult<>(pnt, d));
+				}
+			}
+		}
+	}
+
+	/* Packed version of the batch filterDataPoints.  Each point's node is read
+	 * at most once, for all targets in the batch. */
+	private void filterPackedDataPoints(List<TargetPoint<T>> targets,
+										List<Integer> target_indices,
+										List<float[]> target_qpaths,
+										float[][] qdists,
+										int numvps,
+										List<? extends List<QueryResult<T>>> results,
+										float radius,
+										MetricDistance<T> metric,
+										NodeFactory<T> nf,
+										QueryStats stats){
+		long[] ids = (long[])getNode().getProperty(PackedIdsProperty);
+		int n = ids.length;
+		if (n == 0)
+			return;
+		float[] paths = (float[])getNode().getProperty(PackedPathsProperty);
+		Object data = getNode().getProperty(PackedDataProperty);
+		int pathlength = paths.length/n;
+		int dim = Array.getLength(data)/n;
+		int ntargets = target_indices.size();
+
+		float bound = Math.nextUp(radius);
+		for (int i=0;i < n;i++){
+			DataPoint<T> pnt = null;
+			for (int t=0;t<ntargets;t++){
+				if (!isPathInRange(paths, i*pathlength, pathlength, qdists[t], numvps,
+								   target_qpaths.get(t), radius)){
+					stats.n_rejected++;
+					continue;
+				}
+				int target_index = target_indices.get(t);
+				float d = (float)packedDistance(data, i*dim, dim, targets.get(target_index),
+												metric, bound);
+				stats.n_distances++;
+				if (d <= radius){
+					if (pnt == null){
+						pnt = wrapPackedDataPoint(ids, paths, i, pathlength, nf);
+						if (!pnt.isActive()) break;
+					}
+					results.get(target_index).add(new QueryResult<>(pnt, d));
+				}
+			}
+		}
+	}
+
+	/* Bounded distance from the point at offset in a packed data array to target.
+	 * Primitive metrics read the point in place; others are given a copy. */
+	private static <T extends Number> double packedDistance(Object data,
+															int offset,
+															int dim,
+															TargetPoint<T> target,
+															MetricDistance<T> metric,
+															double bound){
+		Object targetdata = target.getPrimitiveDataWithoutTx();
+		if (Array.getLength(targetdata) != dim)
+			throw new DataPointException("unequal data arrays in DataObjects");
+		if (metric instanceof PrimitiveMetricDistance)
+			return ((PrimitiveMetricDistance<T>)metric).arrayDistance(data, offset, targetdata, bound);
+		return metric.distance(new TargetPoint<>(data, offset, dim), target, bound);
+	}
+
+	/* Offer the leaf's points to a bounded queue of the k nearest points found so far.
+	 * The search radius is the distance of the current kth nearest point, so the
+	 * path filter rejects more points as closer points are found. */
+	protected void nearestDataPoints(TargetPoint<T> target,
+									 float[] qpath,
+									 PriorityQueue<QueryResult<T>> nearest,
+									 int k,
+									 MetricDistance<T> metric,
+									 NodeFactory<T> nf,
+									 QueryStats stats){
+		int numvps = getNumVantagePoints();
+		float[] qdists = new float[numvps];
+		stats.n_leaf++;
+		stats.n_distances += numvps;
+		for (int i=0;i<numvps;i++){
+			DataPoint<T> vp = getVantagePoint(i, nf);
+			float d = (float)metric.primitiveDistance(vp, target);
+			if (vp.isActive())
+				QueryResult.offer(nearest, k, vp, d);
+			qdists[i] = d;
+		}
+
+		if (isPacked()){
+			nearestPackedDataPoints(target, qdists, numvps, qpath, nearest, k, metric, nf, stats);
+			return;
+		}
+
+		Iterable<StorageRelationship> rels = getNode().getRelationships(
+									 MVPRelationshipTypes.TO_DP);
+		for (StorageRelationship rel : rels){
+			float radius = QueryResult.radius(nearest, k);
+			float bound = Math.nextUp(radius);
+			float[] pdists = (float[])rel.getProperty(PathProperty);
+			if (isPathInRange(pdists, qdists, numvps, qpath, radius)){
+				DataPoint<T> pnt = nf.wrapDataPoint(rel.getEndNode(), pdists);
+				if (pnt.isActive()){
+					float d = (float)metric.distance(pnt, target, bound);
+					stats.n_distances++;
+					QueryResult.offer(nearest, k, pnt, d);
+				}
+			} else {
+				stats.n_rejected++;
+			}
+		}
+	}
+
+	/* Packed version of nearestDataPoints */
+	private void nearestPackedDataPoints(TargetPoint<T> target,
+										 float[] qdists,
+										 int numvps,
+										 float[] qpath,
+										 PriorityQueue<QueryResult<T>> nearest,
+										 int k,
+										 MetricDistance<T> metric,
+										 NodeFactory<T> nf,
+										 QueryStats stats){
+		long[] ids = (long[])getNode().getProperty(PackedIdsProperty);
+		int n = ids.length;
+		if (n == 0)
+			return;
+		float[] paths = (float[])getNode().getProperty(PackedPathsProperty);
+		Object data = getNode().getProperty(PackedDataProperty);
+		int pathlength = paths.length/n;
+		int dim = Array.getLength(data)/n;
+
+		for (int i=0;i < n;i++){
+			float radius = QueryResult.radius(nearest, k);
+			if (!isPathInRange(paths, i*pathlength, pathlength, qdists, numvps, qpath, radius)){
+				stats.n_rejected++;
+				continue;
+			}
+			float d = (float)packedDistance(data, i*dim, dim, target, metric, Math.nextUp(radius));
+			stats.n_distances++;
+			if (d <= radius){
+				DataPoint<T> pnt = wrapPackedDataPoint(ids, paths, i, pathlength, nf);
+				if (pnt.isActive())
+					QueryResult.offer(nearest, k, pnt, d);
+			}
+		}
+	}
+
+	/* Get the active data points in leaf without removing inactive ones.
+	 * Safe to call from concurrent read-only queries. */
+	protected ArrayList<DataPoint<T>> getActiveDataPoints(NodeFactory<T> nf){
+		ArrayList<DataPoint<T>> points = new ArrayList<>();
+		Iterable<StorageRelationship> rels = getNode().getRelationships(
+						   MVPRelationshipTypes.TO_DP);
+		for (StorageRelationship rel : rels){
+			float[] path = (float[])rel.getProperty(PathProperty);
+			DataPoint<T> point = nf.wrapDataPoint(rel.getEndNode(), path);
+			if (point.isActive()){
+				points.add(point);
+			}
+		}
+		return points;
+	}
+
+	/* Get the active data points in leaf, deleting inactive ones.
+	 * Only to be called while holding the tree's write lock. */
 	protected ArrayList<DataPoint<T>> getAllDataPoints(NodeFactory<T> nf){
 		ArrayList<DataPoint<T>> points = new ArrayList<>();
-		Iterable<Relationship> rels = getNode().getRelationships(
-						   MVPRelationshipTypes.TO_DP, Direction.OUTGOING);
-		for (Relationship rel : rels){
+		boolean deleted = false;
+		Iterable<StorageRelationship> rels = getNode().getRelationships(
+						   MVPRelationshipTypes.TO_DP);
+		for (StorageRelationship rel : rels){
 			float[] path = (float[])rel.getProperty(PathProperty);
 			DataPoint<T> point = nf.wrapDataPoint(rel.getEndNode(), path);
 			if (point.isActive()){
 				points.add(point);
 			} else {
 				point.delete();
+				deleted = true;
 			}
 		}
+		if (deleted && isPacked()){
+			setPacked();
+			packDataPoints(points);
+		}
 		return points;
 	}
 }
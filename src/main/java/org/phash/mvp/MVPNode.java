@@ -1,15 +1,10 @@
 package org.phash.mvp;
 
 import java.util.ArrayList;
-import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.Direction;
-import org.neo4j.graphdb.Transaction;
-import org.neo4j.graphdb.GraphDatabaseService;
-import org.neo4j.graphdb.Relationship;
-import org.neo4j.graphdb.Label;
+import java.util.Arrays;
 
 
-/* Node type (for internal use)*/
+/* StorageNode type (for internal use)*/
 enum NodeType {	INTERNAL_NODE, LEAF_NODE;}
 
 
@@ -21,40 +16,82 @@ enum NodeType {	INTERNAL_NODE, LEAF_NODE;}
  **/
 
 abstract class MVPNode<T extends Number> {
-	/* neo4j node */
-	private final Node node;
+	/* storage node */
+	private final StorageNode node;
 	
-	/* relevant neo4j properties */
+	/* relevant node properties */
 	protected static final String NodeTypeProperty = "NODETYPE";
 	protected static final String VPOrdinalProperty = "VP";
 
+	/* long[] property of vantage point node ids by ordinal, -1 where none */
+	protected static final String VPIdsProperty = "VPIDS";
+
 	/** Constructor 
-	 * @param Node neo4j node
+	 * @param StorageNode node
 	 **/
-	protected MVPNode(Node node){
+	protected MVPNode(StorageNode node){
 		this.node = node;
 	}
 
-	protected Node getNode(){ return node;}
+	protected StorageNode getNode(){ return node;}
 
 	/* Mark as the top node in the tree */
 	protected void setAsTop(NodeFactory nf){
-		getNode().addLabel(Label.label(NodeFactory.TopLabel));
+		getNode().addLabel(NodeFactory.TopLabel);
 		getNode().setProperty(NodeFactory.TopProperty, NodeFactory.TopN);
 		nf.saveParameters();
 	}
 
 	/* Is the node the top node in the tree? */
 	protected boolean isTopNode(){
-		boolean is_top  = getNode().hasLabel(Label.label(NodeFactory.TopLabel));
+		boolean is_top  = getNode().hasLabel(NodeFactory.TopLabel);
 		return is_top;
 	}
 
 	protected void removeAsTop(){
-		getNode().removeLabel(Label.label(NodeFactory.TopLabel));
+		getNode().removeLabel(NodeFactory.TopLabel);
 		getNode().removeProperty(NodeFactory.TopProperty);
 	}
 	
+	/* Initialize the ordinal-indexed id arrays of a new node */
+	protected void initNodeIds(){
+		getNode().setProperty(VPIdsProperty, new long[0]);
+	}
+
+	/* Get an ordinal-indexed array of node ids, or null if the node was
+	 * stored before the ids were kept and has not been migrated. */
+	protected long[] getNodeIds(String property){
+		return (long[])getNode().getProperty(property, null);
+	}
+
+	/* Record node id at ordinal n of a copy of an id array, extending it with -1 as needed.
+	 * The array read from the store is never changed in place, as a backend may hold
+	 * it, and the change must only take effect once set on the node. */
+	protected static long[] setNodeIdAt(long[] ids, int n, long id){
+		if (ids == null)
+			ids = new long[0];
+		int length = ids.length;
+		ids = Arrays.copyOf(ids, Math.max(length, n+1));
+		if (n >= length)
+			Arrays.fill(ids, length, n+1, -1L);
+		ids[n] = id;
+		return ids;
+	}
+
+	/* Rebuild the ordinal-indexed id arrays from the node's relationships,
+	 * for a node stored before the arrays were kept. */
+	protected void migrateNodeIds(){
+		long[] ids = new long[0];
+		Iterable<StorageRelationship> rels = getNode().getRelationships(
+					MVPRelationshipTypes.TO_VP);
+		for (StorageRelationship rel : rels){
+			int ordinalValue = (int)rel.getProperty(VPOrdinalProperty);
+			if (ordinalValue >= ids.length || ids[ordinalValue] < 0)
+				ids = setNodeIdAt(ids, ordinalValue, rel.getEndNode().getId());
+		}
+		getNode().setProperty(VPIdsProperty, ids);
+	}
+
 	boolean isSameAs(MVPNode mvpnode){
 		if  (mvpnode != null && getNode().getId() == mvpnode.getNode().getId())
 			return true;
@@ -62,37 +99,52 @@ abstract class MVPNode<T extends Number> {
 	}
 
 	protected void setVantagePoint(DataPoint<?> point, int n){
-		Relationship rel = getNode().createRelationshipTo(
+		StorageRelationship rel = getNode().createRelationshipTo(
 				 point.getNode(), MVPRelationshipTypes.TO_VP);
 		rel.setProperty(VPOrdinalProperty, n);
+		getNode().setProperty(VPIdsProperty, setNodeIdAt(getNodeIds(VPIdsProperty), n, point.getNode().getId()));
 	}
 
 	protected int getNumVantagePoints(){
 		int count = 0;
-		Iterable<Relationship> rels = getNode().getRelationships(
-					  MVPRelationshipTypes.TO_VP, Direction.OUTGOING);
-		for (Relationship rel : rels) count++;
+		long[] ids = getNodeIds(VPIdsProperty);
+		if (ids != null){
+			for (long id : ids)
+				if (id >= 0) count++;
+			return count;
+		}
+		Iterable<StorageRelationship> rels = getNode().getRelationships(
+					  MVPRelationshipTypes.TO_VP);
+		for (StorageRelationship rel : rels) count++;
 		return count;
 	}
 	
 	protected void selectVantagePoints(ArrayList<DataPoint<T>> points, int count, int numvps){
 		int i = count;
-		while (i <  numvps && points.size() > 0) {
-			DataPoint<?> vp = points.remove(0);
-			Relationship rel = getNode().createRelationshipTo(
+		int nselected = Math.max(0, Math.min(numvps - count, points.size()));
+		long[] ids = getNodeIds(VPIdsProperty);
+		for (DataPoint<?> vp : points.subList(0, nselected)){
+			StorageRelationship rel = getNode().createRelationshipTo(
 					vp.getNode(), MVPRelationshipTypes.TO_VP);
+			ids = setNodeIdAt(ids, i, vp.getNode().getId());
 			rel.setProperty(VPOrdinalProperty, i++);
-		};
+		}
+		points.subList(0, nselected).clear();
+		if (ids != null) getNode().setProperty(VPIdsProperty, ids);
 	}
 
 	protected DataPoint<T> getVantagePoint(int n, NodeFactory<T> nf){
+		long[] ids = getNodeIds(VPIdsProperty);
+		if (ids != null)
+			return getVantagePoint(ids, n, nf);
+
 		DataPoint<T> dp = null;
-		Iterable<Relationship> rels = getNode().getRelationships(
-					MVPRelationshipTypes.TO_VP, Direction.OUTGOING);
-		for (Relationship rel : rels){
+		Iterable<StorageRelationship> rels = getNode().getRelationships(
+					MVPRelationshipTypes.TO_VP);
+		for (StorageRelationship rel : rels){
 			int ordinalValue = (int)rel.getProperty(VPOrdinalProperty);
 			if (ordinalValue == n){
-				dp = nf.wrapDataPoint(rel.getEndNode());
+				dp = nf.wrapVantagePoint(rel.getEndNode());
 				break;
 			}
 		}
@@ -101,10 +153,18 @@ abstract class MVPNode<T extends Number> {
 		return dp;
 	}
 
+	/* Get vantage point at ordinal n by its node id */
+	private DataPoint<T> getVantagePoint(long[] ids, int n, NodeFactory<T> nf){
+		if (n >= ids.length || ids[n] < 0)
+			throw new MVPNodeException("no vantage point at " + n);
+		return nf.wrapVantagePoint(nf.getBackend().getNodeById(ids[n]));
+	}
+
 	protected ArrayList<DataPoint<T>> getVantagePoints(int numvps, NodeFactory<T> nf){
 		ArrayList<DataPoint<T>> vps = new ArrayList<DataPoint<T>>();
+		long[] ids = getNodeIds(VPIdsProperty);
 		for (int i=0;i<numvps;i++){
-			DataPoint<T> vp = getVantagePoint(i, nf);
+			DataPoint<T> vp = (ids != null) ? getVantagePoint(ids, i, nf) : getVantagePoint(i, nf);
 			vps.add(vp);
 		}
 		return vps;
@@ -112,8 +172,8 @@ abstract class MVPNode<T extends Number> {
 
 	protected void delete(){
 		removeAsTop();
-		Iterable<Relationship> rels = getNode().getRelationships();
-		for (Relationship rel : rels){
+		Iterable<StorageRelationship> rels = getNode().getRelationships();
+		for (StorageRelationship rel : rels){
 			rel.delete();
 		}
 		getNode().delete();
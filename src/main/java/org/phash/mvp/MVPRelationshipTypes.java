@@ -2,6 +2,7 @@ package org.phash.mvp;
 
 import org.neo4j.graphdb.RelationshipType;
 
-enum MVPRelationshipTypes implements RelationshipType {
+/** Types of relationship between nodes of the tree and DataPoints **/
+public enum MVPRelationshipTypes implements RelationshipType {
 	TO_VP, TO_CHILD, TO_DP
 }
@@ -1,20 +1,43 @@
 package org.phash.mvp;
 
 import java.util.Arrays;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Vector;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.Hashtable;
+import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Iterator;
-import java.util.ListIterator;
 import java.util.Enumeration;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintStream;
-
-import org.neo4j.graphdb.Transaction;
-
-enum ComparatorType {
-	LESS_THAN, GREATER_THAN
-}
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 /** <h1>MVPTree</h1>
  * @author dgs
@@ -25,6 +48,49 @@ public class MVPTree<T extends Number> {
 	private final NodeFactory<T> nf;
 	private final Class<T> type;
 	private final MetricDistance<T> metric;
+	private final VantagePointSelector<T> selector;
+
+	/* Queries share the read lock and run concurrently, each in its own
+	 * transaction.  Operations that restructure the tree take the write lock. */
+	private final ReentrantReadWriteLock rwlock = new ReentrantReadWriteLock();
+
+	/* Totals of QueryStats over all queries, updated without locking */
+	private final LongAdder total_queries   = new LongAdder();
+	private final LongAdder total_internal  = new LongAdder();
+	private final LongAdder total_leaf      = new LongAdder();
+	private final LongAdder total_rejected  = new LongAdder();
+	private final LongAdder total_distances = new LongAdder();
+	private final LongAdder total_results   = new LongAdder();
+	private final LongAdder total_nanos     = new LongAdder();
+
+	/* Heap copy of the internal nodes of the tree, when enabled, so queries select
+	 * child nodes without reading the graph.  Loaded whole on opening, importing or
+	 * bulk loading the tree, and updated in place, under the write lock, with the
+	 * nodes created by addPoints() and compact(); null when disabled or the tree
+	 * is empty.  Its internal nodes are indexed by node id, and by the node ids of
+	 * their vantage points, to find the nodes to update. */
+	private boolean skeleton_enabled = false;
+	private SkeletonNode<T> skeleton = null;
+	private final HashMap<Long,SkeletonNode<T>> skeleton_nodes = new HashMap<>();
+	private final HashMap<Long,SkeletonNode<T>> skeleton_vps = new HashMap<>();
+
+	/* Executor on which the distances of a long list of points to a vantage point
+	 * are computed in parallel when adding points, or null for the calling thread,
+	 * and the min. no. points to do so.  Replaced under the write lock. */
+	private static final int DefaultParallelDistanceThreshold = 16384;
+	private static final int MinDistanceChunkSize = 1024;
+	private ExecutorService distance_executor = ForkJoinPool.commonPool();
+	private int distance_threshold = DefaultParallelDistanceThreshold;
+
+	/* no. leaves compacted per hold of the write lock */
+	private static final int CompactionBatchSize = 64;
+
+	/* Background compaction, when started, and totals of all compactions */
+	private ScheduledExecutorService compactor = null;
+	private final CompactionStats compaction_totals = new CompactionStats();
+
+	/* failure of the last background compaction that failed, or null */
+	private volatile Exception compaction_failure = null;
 
 	/** Constructor
 	 * Uses default values for:
@@ -38,6 +104,7 @@ public class MVPTree<T extends Number> {
 	 **/
 	public MVPTree(String graphdbdir, String propsfile, Class<T> type){
 		this.metric = new L1Distance<>();
+		this.selector = new FirstSelector<>();
 		this.type = type;
 		int default_bf = 2;
 		int default_pl = 8;
@@ -75,6 +142,7 @@ public class MVPTree<T extends Number> {
 		default:
 			throw new MVPTreeException("no such distance metric");
 		}
+		this.selector = new FirstSelector<>();
 		
 		this.nf = new NodeFactory<T>(graphdbdir, propsfile, bf, pl, lm, nl, type);
 	}
@@ -92,25 +160,102 @@ public class MVPTree<T extends Number> {
 	 **/
 	public MVPTree(String graphdbdir, String propsfile, int bf, int pl, int lm, int nl,
 				   MetricDistance<T> metric, Class<T> type){
+		this(graphdbdir, propsfile, bf, pl, lm, nl, metric, new FirstSelector<T>(), type);
+	}
+
+	/**
+	 * Constructor
+	 * @param String graph db directory
+	 * @param String neo4j properties file
+	 * @param int    branchfactor, bf (e.g. 2, 3)
+	 * @param int    pathlength, pl   (e.g. 4, 8, ...)
+     * @param int    leaf minimum, lm (e.g. 10)
+     * @param int    no. levels per node (e.g. 2, 4)
+	 * @param MetricDistance     custom metric distance implementation
+	 * @param VantagePointSelector strategy to choose the vantage points of new nodes
+	 * @param Class<T> type  Class of generic type (necessary to determine at runtime)
+	 **/
+	public MVPTree(String graphdbdir, String propsfile, int bf, int pl, int lm, int nl,
+				   MetricDistance<T> metric, VantagePointSelector<T> selector, Class<T> type){
 		if (metric == null)
 			throw new NullPointerException("metric distance object is null");
+		if (selector == null)
+			throw new NullPointerException("vantage point selector is null");
 		
 		this.type = type;
 		this.metric = metric;
+		this.selector = selector;
 		this.nf = new NodeFactory<T>(graphdbdir, propsfile, bf, pl, lm, nl, type);
 	}
 
+	/**
+	 * Constructor
+	 * Keep the tree in the given storage backend, e.g. a HeapBackend
+	 * for a tree held in memory only.
+	 * @param StorageBackend backend
+	 * @param int    branchfactor, bf (e.g. 2, 3)
+	 * @param int    pathlength, pl   (e.g. 4, 8, ...)
+     * @param int    leaf minimum, lm (e.g. 10)
+     * @param int    no. levels per node (e.g. 2, 4)
+	 * @param MetricDistance     custom metric distance implementation
+	 * @param Class<T> type  Class of generic type (necessary to determine at runtime)
+	 **/
+	public MVPTree(StorageBackend backend, int bf, int pl, int lm, int nl,
+				   MetricDistance<T> metric, Class<T> type){
+		this(backend, bf, pl, lm, nl, metric, new FirstSelector<T>(), type);
+	}
+
+	/**
+	 * Constructor
+	 * Keep the tree in the given storage backend, choosing the vantage
+	 * points of new nodes with the given strategy, e.g. a MaxVarianceSelector
+	 * for points added in clustered order.
+	 * @param StorageBackend backend
+	 * @param int    branchfactor, bf (e.g. 2, 3)
+	 * @param int    pathlength, pl   (e.g. 4, 8, ...)
+     * @param int    leaf minimum, lm (e.g. 10)
+     * @param int    no. levels per node (e.g. 2, 4)
+	 * @param MetricDistance     custom metric distance implementation
+	 * @param VantagePointSelector strategy to choose the vantage points of new nodes
+	 * @param Class<T> type  Class of generic type (necessary to determine at runtime)
+	 **/
+	public MVPTree(StorageBackend backend, int bf, int pl, int lm, int nl,
+				   MetricDistance<T> metric, VantagePointSelector<T> selector, Class<T> type){
+		if (metric == null)
+			throw new NullPointerException("metric distance object is null");
+		if (selector == null)
+			throw new NullPointerException("vantage point selector is null");
+
+		this.type = type;
+		this.metric = metric;
+		this.selector = selector;
+		this.nf = new NodeFactory<T>(backend, bf, pl, lm, nl, type);
+	}
+
 	/**
 	 * Initialize graph database. This only needs to be called, if
 	 * the graphdb was purposefully shutdown by calling
 	 *  shutdown().
 	 */
 	public void initGraphdb(){
-		nf.initGraphDatabase();
+		rwlock.writeLock().lock();
+		try {
+			nf.initGraphDatabase();
+			reloadSkeleton();
+		} finally {
+			rwlock.writeLock().unlock();
+		}
 	}
 
 	public void shutdown(){
-		nf.shutdown();
+		stopCompaction();
+		rwlock.writeLock().lock();
+		try {
+			unloadSkeleton();
+			nf.shutdown();
+		} finally {
+			rwlock.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -121,13 +266,205 @@ public class MVPTree<T extends Number> {
 	public int getNumLevelsPerNode(){return nf.getNumLevelsPerNode();}
 	public int getLeafMinimum(){return nf.getLeafMinimum();}
 
+	/** Get the cache of decoded data arrays of vantage points, e.g. to set its
+	 *  capacity or read its hit and miss counts.
+	 * @return VectorCache
+	 */
+	public VectorCache getVectorCache(){return nf.getVectorCache();}
+
+	/** Get the strategy choosing the vantage points of new nodes.
+	 * @return VantagePointSelector<T>
+	 */
+	public VantagePointSelector<T> getVantagePointSelector(){return selector;}
+
+	/** Set whether leaves keep their points in packed arrays: the node ids,
+	 *  paths and data of all a leaf's points in one array each, so that a
+	 *  query scans a leaf in sequential passes over the arrays, and reads
+	 *  a point's node only for a result.  Applies to new leaves, and to
+	 *  existing leaves as points are next added to them.  The setting is
+	 *  saved with the tree's parameters.  setData() on a point in a packed
+	 *  leaf rewrites the leaf's copy of its data as well, which must keep
+	 *  the same length.  Points keep their own node, data and path as well,
+	 *  to be looked up by id, so packed leaves store data twice, and adding
+	 *  points to a packed leaf rewrites its three arrays: it suits trees
+	 *  queried far more often than they change.
+	 * @param boolean packed
+	 * @return void
+	 * @throws MVPTreeException
+	 */
+	public void setPackedLeaves(boolean packed){
+		rwlock.writeLock().lock();
+		try (StorageTransaction tx = nf.getBackend().beginTx()){
+			nf.setPackedLeaves(packed);
+			nf.saveParameters();
+			tx.success();
+		} catch (Exception ex){
+			throw new MVPTreeException("unable to set leaf format", ex);
+		} finally {
+			rwlock.writeLock().unlock();
+		}
+	}
+
+	/** Whether leaves keep their points in packed arrays.
+	 * @return boolean
+	 */
+	public boolean isPackedLeaves(){return nf.isPackedLeaves();}
+
+	/** Enable or disable holding the internal nodes of the tree in memory.
+	 *  When enabled, the vantage points, their data and the splits of every
+	 *  internal node are loaded once, and queries only read the leaf nodes
+	 *  from the graph database.  The skeleton is loaded whole when enabled,
+	 *  and on opening, importing or bulk loading the tree; addPoints() and
+	 *  compact() load only the nodes they create into it.
+	 * @param boolean enabled
+	 * @return void
+	 * @throws MVPTreeException
+	 */
+	public void setSkeletonEnabled(boolean enabled){
+		rwlock.writeLock().lock();
+		try {
+			skeleton_enabled = enabled;
+			reloadSkeleton();
+		} finally {
+			rwlock.writeLock().unlock();
+		}
+	}
+
+	/** Set the executor on which the distances of points to a vantage point are
+	 *  computed in parallel when adding points, and the min. no. points for which
+	 *  to do so.  The points are divided into chunks, one computed on the calling
+	 *  thread and the others as tasks on the executor, each in its own read
+	 *  transaction.  The distances, and so the splits and partitions, are the same
+	 *  as those computed on one thread.  By default, the common ForkJoinPool is
+	 *  used for lists of no fewer than 16384 points.
+	 * @param ExecutorService executor, or null to compute all distances on the calling thread
+	 * @param int             threshold, min. no. points to compute in parallel
+	 * @return void
+	 */
+	public void setParallelDistances(ExecutorService executor, int threshold){
+		if (threshold <= 0)
+			throw new IllegalArgumentException("threshold <= 0");
+		rwlock.writeLock().lock();
+		try {
+			distance_executor = executor;
+			distance_threshold = threshold;
+		} finally {
+			rwlock.writeLock().unlock();
+		}
+	}
+
+	/** Get the executor on which distances are computed in parallel when adding points.
+	 * @return ExecutorService, or null if computed on the calling thread
+	 */
+	public ExecutorService getParallelDistanceExecutor(){
+		rwlock.readLock().lock();
+		try {
+			return distance_executor;
+		} finally {
+			rwlock.readLock().unlock();
+		}
+	}
+
+	/** Get the min. no. points for which distances are computed in parallel when adding points.
+	 * @return int
+	 */
+	public int getParallelDistanceThreshold(){
+		rwlock.readLock().lock();
+		try {
+			return distance_threshold;
+		} finally {
+			rwlock.readLock().unlock();
+		}
+	}
+
+	/** Whether the internal nodes of the tree are held in memory.
+	 * @return boolean
+	 */
+	public boolean isSkeletonEnabled(){
+		rwlock.readLock().lock();
+		try {
+			return skeleton_enabled;
+		} finally {
+			rwlock.readLock().unlock();
+		}
+	}
+
+	/* Reload the skeleton of the tree, if enabled.  Must hold the write lock. */
+	private void reloadSkeleton(){
+		unloadSkeleton();
+		if (!skeleton_enabled)
+			return;
+		try (StorageTransaction tx = nf.getBackend().beginTx()){
+			skeleton = SkeletonNode.load(nf.getTopNode(), nf, skeleton_nodes, skeleton_vps);
+			tx.success();
+		} catch (Exception ex){
+			unloadSkeleton();
+			throw new MVPTreeException("unable to load tree skeleton", ex);
+		}
+	}
+
+	/* Drop the skeleton of the tree.  Must hold the write lock. */
+	private void unloadSkeleton(){
+		skeleton = null;
+		skeleton_nodes.clear();
+		skeleton_vps.clear();
+	}
+
+	/* A node put at a slot of an internal node of the skeleton, given by its node
+	 * id (-1 for the top node), with the skeleton loaded beneath it, and its
+	 * internal nodes indexed as for the whole skeleton. */
+	private static class SkeletonChange<T extends Number> {
+		final long parentid;
+		final int slot;
+		final SkeletonNode<T> node;
+		final HashMap<Long,SkeletonNode<T>> nodes = new HashMap<>();
+		final HashMap<Long,SkeletonNode<T>> vps = new HashMap<>();
+
+		SkeletonChange(long parentid, int slot, MVPNode<T> node, NodeFactory<T> nf){
+			this.parentid = parentid;
+			this.slot = slot;
+			this.node = SkeletonNode.load(node, nf, nodes, vps);
+		}
+	}
+
+	/* Load the skeleton beneath a node put at a slot of an internal node, given
+	 * by its node id (-1 for the top node), or null for no node, if the skeleton
+	 * holds the parent.  Returns null if it does not, as when the skeleton is not
+	 * enabled, or the parent is new as well, so loaded with its own change.
+	 * Must hold the write lock, within the transaction making the change, which
+	 * linkSkeleton() links into the skeleton once it commits. */
+	private SkeletonChange<T> loadSkeletonChange(long parentid, int slot, MVPNode<T> node){
+		if (!skeleton_enabled || (parentid >= 0 && !skeleton_nodes.containsKey(parentid)))
+			return null;
+		return new SkeletonChange<>(parentid, slot, node, nf);
+	}
+
+	/* Link a change loaded by loadSkeletonChange() into the skeleton, replacing
+	 * the node at its slot.  Must hold the write lock. */
+	private void linkSkeleton(SkeletonChange<T> change){
+		if (change == null || !skeleton_enabled)
+			return;
+		if (change.parentid < 0){
+			SkeletonNode.unload(skeleton, skeleton_nodes, skeleton_vps);
+			skeleton = change.node;
+		} else {
+			SkeletonNode<T> parent = skeleton_nodes.get(change.parentid);
+			if (parent == null)
+				return;
+			SkeletonNode.unload(parent.children[change.slot], skeleton_nodes, skeleton_vps);
+			parent.children[change.slot] = change.node;
+		}
+		skeleton_nodes.putAll(change.nodes);
+		skeleton_vps.putAll(change.vps);
+	}
+
 	/** create a DataPoint in graph database
 	 *  setId() and setData() must still be called on DataPoints
 	 * @return DataPoint
 	 */
 	public DataPoint<T> createDataPoint(){
 		DataPoint<T> pnt = null;
-		try (Transaction tx = nf.getGraphdb().beginTx()){
+		try (StorageTransaction tx = nf.getBackend().beginTx()){
 			pnt = nf.createDataPoint();
 			tx.success();
 		} catch (Exception ex){
@@ -144,7 +481,7 @@ public class MVPTree<T extends Number> {
 	 */
 	public ArrayList<DataPoint<T>> createDataPoints(int n){
 		ArrayList<DataPoint<T>> points = null;
-		try (Transaction tx = nf.getGraphdb().beginTx()){
+		try (StorageTransaction tx = nf.getBackend().beginTx()){
 			points = nf.createDataPoints(n);
 			tx.success();
 		} catch (Exception ex){
@@ -161,7 +498,7 @@ public class MVPTree<T extends Number> {
 	 */
 	public Double distanceBetweenPoints(DataPoint<T> pntA, DataObject<T> pntB){
 		Double result = 0.0;
-		try (Transaction tx = nf.getGraphdb().beginTx()){
+		try (StorageTransaction tx = nf.getBackend().beginTx()){
 			result = metric.distance(pntA, pntB);
 			tx.success();
 		} catch (Exception ex){
@@ -172,11 +509,13 @@ public class MVPTree<T extends Number> {
 
 
 	/** Get total number of points indexed in tree.
+	 *  The count is kept up to date as points are added and removed,
+	 *  so this does not query the index.
 	 * @return int
 	 */
 	public int getDataPointCount(){
 		int count = 0;
-		try (Transaction tx = nf.getGraphdb().beginTx()){
+		try (StorageTransaction tx = nf.getBackend().beginTx()){
 			count = nf.getCount();
 			tx.success();
 		} catch (Exception ex){
@@ -185,19 +524,185 @@ public class MVPTree<T extends Number> {
 		return count;
 	}
 
+	/** Recount the points indexed in tree by a query of the whole index,
+	 *  and correct the kept count to it.  Slow on a large tree; for repair
+	 *  of a store whose count has drifted.
+	 * @return int number of points
+	 * @throws MVPTreeException
+	 */
+	public int recountDataPoints(){
+		int count = 0;
+		rwlock.writeLock().lock();
+		try (StorageTransaction tx = nf.getBackend().beginTx()){
+			count = nf.recount(tx);
+			tx.success();
+		} catch (Exception ex){
+			throw new MVPTreeException("unable to recount data points in index", ex);
+		} finally {
+			rwlock.writeLock().unlock();
+		}
+		return count;
+	}
+
+	/** Write a binary snapshot of the tree to a file, from which a tree can be
+	 *  restored with importSnapshot() without recomputing any distances.
+	 *  Deleted points not yet removed from the tree's leaves are not written.
+	 * @param Path file
+	 * @return long number of points written
+	 * @throws MVPTreeException
+	 */
+	public long exportSnapshot(Path file){
+		try (OutputStream out = Files.newOutputStream(file)){
+			return exportSnapshot(out);
+		} catch (IOException ex){
+			throw new MVPTreeException("unable to write snapshot to " + file, ex);
+		}
+	}
+
+	/** Write a binary snapshot of the tree to a stream.
+	 *  The stream is not closed.
+	 * @param OutputStream out
+	 * @return long number of points written
+	 * @throws MVPTreeException
+	 */
+	public long exportSnapshot(OutputStream out){
+		long count = 0;
+		rwlock.readLock().lock();
+		try (StorageTransaction tx = nf.getBackend().beginTx()){
+			DataOutputStream dataout = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+			count = TreeSnapshot.write(nf, dataout);
+			dataout.flush();
+			tx.success();
+		} catch (Exception ex){
+			throw new MVPTreeException("unable to export snapshot", ex);
+		} finally {
+			rwlock.readLock().unlock();
+		}
+		return count;
+	}
+
+	/** Restore the tree from a binary snapshot file written by exportSnapshot().
+	 *  The tree must be empty, and takes the parameters of the snapshot.
+	 *  Points are added in batches of transactions; if restoring fails, the
+	 *  tree is cleared.
+	 * @param Path file
+	 * @return long number of points restored
+	 * @throws MVPTreeException
+	 */
+	public long importSnapshot(Path file){
+		try (InputStream in = Files.newInputStream(file)){
+			return importSnapshot(in);
+		} catch (IOException ex){
+			throw new MVPTreeException("unable to read snapshot from " + file, ex);
+		}
+	}
+
+	/** Restore the tree from a binary snapshot read from a stream.
+	 *  The stream is not closed.
+	 * @param InputStream in
+	 * @return long number of points restored
+	 * @throws MVPTreeException
+	 */
+	public long importSnapshot(InputStream in){
+		long count = 0;
+		rwlock.writeLock().lock();
+		try {
+			try (StorageTransaction tx = nf.getBackend().beginTx()){
+				if (nf.getTopNode() != null)
+					throw new MVPTreeException("unable to import snapshot into a tree that is not empty");
+				tx.success();
+			}
+			try {
+				count = TreeSnapshot.read(nf, new DataInputStream(new BufferedInputStream(in, 1 << 16)));
+			} catch (Exception ex){
+				clear();
+				throw new MVPTreeException("unable to import snapshot", ex);
+			}
+			nf.getVectorCache().clear();
+			reloadSkeleton();
+		} finally {
+			rwlock.writeLock().unlock();
+		}
+		return count;
+	}
+
+	/** Build an empty tree from a whole dataset at once.  The tree is built
+	 *  top-down on the heap, with the same nodes as addPoints() would give the
+	 *  dataset, its nodes built in parallel in the common fork/join pool, and
+	 *  then written in one pass, in batches of transactions.  If writing
+	 *  fails, the tree is cleared.
+	 * @param BulkPoints<T> points
+	 * @return long number of points added
+	 * @throws MVPTreeException
+	 */
+	public long bulkLoad(BulkPoints<T> points){
+		return bulkLoad(points, ForkJoinPool.commonPool());
+	}
+
+	/** Build an empty tree from a whole dataset at once, its nodes
+	 *  built in parallel in the given fork/join pool.
+	 *  See bulkLoad(BulkPoints).
+	 * @param BulkPoints<T> points
+	 * @param ForkJoinPool  pool
+	 * @return long number of points added
+	 * @throws MVPTreeException
+	 */
+	public long bulkLoad(BulkPoints<T> points, ForkJoinPool pool){
+		long count = 0;
+		rwlock.writeLock().lock();
+		try {
+			try (StorageTransaction tx = nf.getBackend().beginTx()){
+				if (nf.getTopNode() != null)
+					throw new MVPTreeException("unable to bulk load a tree that is not empty");
+				tx.success();
+			}
+			BulkBuilder<T> builder;
+			try {
+				builder = new BulkBuilder<>(nf, metric, selector, points);
+				builder.build(pool);
+			} catch (Exception ex){
+				throw new MVPTreeException("unable to build tree", ex);
+			}
+			try {
+				count = builder.write(nf);
+			} catch (Exception ex){
+				clear();
+				throw new MVPTreeException("unable to bulk load points", ex);
+			}
+			nf.getVectorCache().clear();
+			reloadSkeleton();
+		} finally {
+			rwlock.writeLock().unlock();
+		}
+		return count;
+	}
+
 	/** Remove a data point from index by its String id
 	 *  for points that have been added to tree.
 	 *  Does not delete the node, but removes it from the
 	 *  index and marks it inactive for a later deletion.
+	 *  Queries skip inactive points; the nodes are deleted when
+	 *  their leaf is next restructured by addPoints(), or by compact().
+	 *  Takes the write lock, as the flag, the index, the point count and
+	 *  the tree skeleton change together.
 	 *  @param String     id
 	 *  @return void
 	 */
 	public void removePoint(String id){
-		try (Transaction tx = nf.getGraphdb().beginTx()){
-			nf.deleteDataPoint(id);
-			tx.success();
+		rwlock.writeLock().lock();
+		try {
+			long nodeid;
+			try (StorageTransaction tx = nf.getBackend().beginTx()){
+				nodeid = nf.deleteDataPoint(id, tx);
+				tx.success();
+			}
+			SkeletonNode<T> skel = skeleton_vps.get(nodeid);
+			if (skel != null)
+				skel.deactivate(nodeid);
 		} catch (Exception ex) {
 			throw new MVPTreeException("unable to remove point", ex);
+		} finally {
+			rwlock.writeLock().unlock();
 		}
 	}
 
@@ -208,9 +713,11 @@ public class MVPTree<T extends Number> {
 	 *  @return void
 	 */
 	public void deletePoint(DataPoint<T> pnt){
-		try (Transaction tx = nf.getGraphdb().beginTx()){
+		try (StorageTransaction tx = nf.getBackend().beginTx()){
 			pnt.delete();
 			tx.success();
+		} finally {
+			pnt.invalidateCachedData();
 		}
 	}
 
@@ -220,7 +727,7 @@ public class MVPTree<T extends Number> {
 	 **/
 	public DataPoint<T> lookup(String id){
 		DataPoint<T> pnt = null;
-		try (Transaction tx = nf.getGraphdb().beginTx()){
+		try (StorageTransaction tx = nf.getBackend().beginTx()){
 			pnt = nf.lookupDataPoint(id);
 			tx.success();
 		} catch (Exception ex){
@@ -230,21 +737,67 @@ public class MVPTree<T extends Number> {
 	}
 
 
-	/* Calculate distances of all DataPoints from given vantage point, vp. */
-	/* Called when collating points for internal node */
-	private ArrayList<Float> calcPointDistances(DataPoint<T> vp,
-												ArrayList<DataPoint<T>> points){
-		ArrayList<Float> dists = null;
-		if (points != null && points.size() > 0){
-			dists = new ArrayList<Float>(points.size());
-			for (int i = 0;i < points.size();i++){
-				Double d = metric.distance(vp, points.get(i));
-				if (d.floatValue() < 0.0 || d.isNaN())
-					throw new DataPointException("bad distance calculation: " + d);
-				dists.add(d.floatValue());
+	/* Calculate distances of points[from, to) from vantage point data into dists[from, to) */
+	private void calcDistances(TargetPoint<T> vpdata, ArrayList<DataPoint<T>> points,
+							   float[] dists, int from, int to){
+		for (int i = from;i < to;i++){
+			double d = metric.primitiveDistance(vpdata, points.get(i));
+			if ((float)d < 0.0 || Double.isNaN(d))
+				throw new DataPointException("bad distance calculation: " + d);
+			dists[i] = (float)d;
+		}
+	}
+
+	/* Calculate distances of DataPoints points[from, to) from given vantage point, vp,
+	 * into dists[from, to).  A range of no fewer than distance_threshold points is
+	 * divided into chunks, the first computed on the calling thread, and the others
+	 * as tasks on distance_executor, each in its own read transaction.  Must hold
+	 * the write lock. */
+	private void calcDistances(DataPoint<T> vp, ArrayList<DataPoint<T>> points,
+							   float[] dists, int from, int to){
+		TargetPoint<T> vpdata = new TargetPoint<>(vp);
+		int n = to - from;
+		if (distance_executor == null || n < distance_threshold){
+			calcDistances(vpdata, points, dists, from, to);
+			return;
+		}
+		int nchunks = Math.min((n + MinDistanceChunkSize - 1)/MinDistanceChunkSize,
+							   4*Runtime.getRuntime().availableProcessors());
+		int chunksize = (n + nchunks - 1)/nchunks;
+		/* every chunk is waited for before returning, even if one fails, so none
+		 * is left writing dists or reading the store; chunks not yet started are
+		 * skipped once abort is set */
+		AtomicBoolean abort = new AtomicBoolean(false);
+		ArrayList<Future<Object>> chunks = new ArrayList<>(nchunks);
+		RuntimeException failure = null;
+		try {
+			for (int start = from + chunksize;start < to;start += chunksize){
+				final int chunkstart = start, chunkend = Math.min(start + chunksize, to);
+				chunks.add(distance_executor.submit(() -> {
+					if (abort.get())
+						return null;
+					try (StorageTransaction tx = nf.getBackend().beginTx()){
+						calcDistances(vpdata, points, dists, chunkstart, chunkend);
+						tx.success();
+					} catch (RuntimeException ex){
+						abort.set(true);
+						throw ex;
+					}
+					return null;
+				}));
 			}
+			calcDistances(vpdata, points, dists, from, Math.min(from + chunksize, to));
+		} catch (RuntimeException ex){
+			abort.set(true);
+			failure = ex;
+		}
+		try {
+			awaitAll(chunks, abort);
+		} catch (RuntimeException ex){
+			if (failure == null) failure = ex;
 		}
-		return dists;
+		if (failure != null)
+			throw failure;
 	}
 
 	/* Calculate distances of all DataPoints from given vantage point, vp.
@@ -254,12 +807,10 @@ public class MVPTree<T extends Number> {
 										  ArrayList<DataPoint<T>> points,
 										  int level){
 		if (points != null && points.size() > 0){
-			for (int i = 0;i < points.size();i++){
-				DataPoint<T> pnt = points.get(i);
-				Double d = metric.distance(vp, pnt);
-				if (d < 0 || d.isNaN())
-					throw new DataPointException("bad distance value: " + d);
-				pnt.addToPath(level, d.floatValue());
+			float[] dists = new float[points.size()];
+			calcDistances(vp, points, dists, 0, dists.length);
+			for (int i = 0;i < dists.length;i++){
+				points.get(i).addToPath(level, dists[i]);
 			}
 		}
 	}
@@ -270,30 +821,22 @@ public class MVPTree<T extends Number> {
 	 *  Note: this still does not guarantee a perfectly balanced tree, since it is 
      *  based on the current set of points, and there is no way to know the 
      *  distribution of subsequent points added to the tree.
-	 *@param ArrayList<Float>  array of distances
+	 *  The distances are reordered in place, with the points by swap.
+	 *@param float[]           array of distances
+	 *@param int               from, to range of distances
 	 *@param float[]           splits (out)
 	 *@param int              split_index position in splits array
+	 *@param PointPartition.Swap swap
 	 *@return void
 	*/
-	private void calcSplitPoints(ArrayList<Float> dists, float[] splits, int split_index){
+	private void calcSplitPoints(float[] dists, int from, int to, float[] splits, int split_index,
+								 PointPartition.Swap swap){
 		//split dataset in equal portions
 		int bf = nf.getBranchFactor();
 		int lengthM = bf-1;
-		if (dists.size() > 0){
+		if (to > from){
 			if (splits[split_index*lengthM] == -1){
-				float[] tmpdists = new float[dists.size()];
-				for (int i=0;i<tmpdists.length;i++){
-					tmpdists[i] = dists.get(i);
-				}
-				Arrays.sort(tmpdists);
-				float factor = (float)tmpdists.length/(float)bf;
-				for (int i=0;i < lengthM;i++){
-					float pos = (float)(i+1)*factor;
-					int hi = (pos <= tmpdists.length-1) ? (int)Math.ceil(pos) : 0;
-					int lo = (int)Math.floor(pos);
-					float slice = (tmpdists[lo] + tmpdists[hi])/2.0f;
-					splits[split_index*lengthM + i] = slice;
-				}
+				PointPartition.calcSplitPoints(dists, from, to, bf, splits, split_index*lengthM, swap);
 			}
 		}
 	}
@@ -302,18 +845,17 @@ public class MVPTree<T extends Number> {
      * by maximum/minimum distance values instead of by equal number
      * of points.  
 	 */
-	private void calcSplitPoints2(ArrayList<Float> dists, float[] splits, int split_index){
+	private void calcSplitPoints2(float[] dists, int from, int to, float[] splits, int split_index){
 		//split points according to median
 		int bf = nf.getBranchFactor();
 		int lengthM = bf-1;
-		if (dists.size() > 0){
+		if (to > from){
 			if (splits[split_index*lengthM] == -1){
 				float minf = Float.MAX_VALUE;
 				float maxf = Float.MIN_VALUE;
-				int N = dists.size();
-				for (int i=0;i<N;i++){
-					if (dists.get(i) < minf) minf = dists.get(i);
-					if (dists.get(i) > maxf) maxf = dists.get(i);
+				for (int i=from;i<to;i++){
+					if (dists[i] < minf) minf = dists[i];
+					if (dists[i] > maxf) maxf = dists[i];
 				}
 				float slice = (maxf + minf)/bf;
 				for (int i=0;i < lengthM;i++){
@@ -323,45 +865,6 @@ public class MVPTree<T extends Number> {
 		}
 	}
 
-	/* Compare value to split according to ComparatorType enum (less than or greater than)
-	 *@param float          value
-     *@param float          split
-	 *@param ComparatorType comp
-     *@return boolean
-	 **/
-	private boolean compareDistanceToSplitPoint(float value, float split, ComparatorType comp){
-		if (comp == ComparatorType.LESS_THAN)
-			return (value <= split);
-		return (value > split);
-	}
-
-	/* Cull points from list that satisfy a particular relation from a split value.
-	 * @param ArrayList<DataPoint<T>>    points to compare to split value
-	 * @param ArrayList<Float>           dists, distances of each point to a particular vp.
-	 * @param float                      split value.
-	 * @param enum ComparatorType        less than/greater than
-	 * @return ArrayList<DataPoint>  
-	 */
-	private ArrayList<DataPoint<T>> cullPoints(ArrayList<DataPoint<T>> points,
-											   ArrayList<Float> dists,
-											   float split,
-											   ComparatorType comp){
-		ListIterator<DataPoint<T>> iter = points.listIterator();
-		ListIterator<Float> iter_dists = dists.listIterator();
-		ArrayList<DataPoint<T>> culledlist = null;
-		while (iter.hasNext()){
-			float d = iter_dists.next();
-			DataPoint<T> pnt = iter.next();
-			if (compareDistanceToSplitPoint(d, split, comp)){
-				if (culledlist == null) culledlist = new ArrayList<DataPoint<T>>();
-				culledlist.add(pnt);
-				iter.remove();
-				iter_dists.remove();
-			}
-		}
-		return culledlist;
-	}
-
 	// expand node by getting its child nodes (if it is internal node) and adding them
 	// to hashtable of childnodes with Integer Key that represents its position within
 	// next layer of tree.
@@ -379,29 +882,34 @@ public class MVPTree<T extends Number> {
 	}
 
 	/* Collate points for an internal node by adding each point in points
-	 *  to an ArrayList in childpoints.
+	 *  to an ArrayList in childpoints.  At each level within the node, the
+	 *  range of points of each node at that level is partitioned in place into
+	 *  bf ranges, with their distances in a parallel array.
 	 * @param MVPInternal           mvpnode to which points are being added.
 	 * @param ArrayList<DataPoint>  list of DataPoints to collate
 	 * @param HashTable<Integer, ArrayList<DataPoint<T>>  hash of datapoint lists
 	 * @param index int index of current node being processed at a current level.
+	 * @param level int level of internal node in tree.  Each point's distance to the
+	 *              vantage point at level + n is recorded in its path of ancestor distances.
 	 */
     private void collatePoints(MVPInternal<T> internalNode,
 							   ArrayList<DataPoint<T>> points, 
                                Hashtable<Integer,ArrayList<DataPoint<T>>> childpoints, 
-							   int index){
-	
-		Hashtable<Integer, ArrayList<DataPoint<T>>> pnts = new Hashtable<>();
-		pnts.put(0, points);
-
+							   int index,
+							   int level){
 		int bf = nf.getBranchFactor();
 		int nl = nf.getNumLevelsPerNode();
 		int lengthM = bf - 1;
 		int fanout = (int)Math.pow(bf, nl);
+
+		/* points of node i at level n are points[bounds[i], bounds[i+1]) */
+		int[] bounds = { 0, points.size() };
+		float[] dists = new float[points.size()];
+		PointPartition.Swap swap = (i, j) -> Collections.swap(points, i, j);
 		int n=0;
 		do {
 			int nbnodes = (int)Math.pow(bf,n);
-			int nbchildnodes = (int)Math.pow(bf, n+1);
-			Hashtable<Integer,ArrayList<DataPoint<T>>> pnts2 = new Hashtable<>();
+			int[] bounds2 = new int[nbnodes*bf + 1];
 			
 			int lengthMn = (lengthM)*(int)Math.pow(bf, n);
 			float[] msplits = internalNode.getSplitsAtLevel(n);
@@ -412,40 +920,30 @@ public class MVPTree<T extends Number> {
 
 			DataPoint<T> vp = internalNode.getVantagePoint(n, nf);
 
-			for (Enumeration<Integer> e = pnts.keys();e.hasMoreElements();){
-				int nodeIndex = e.nextElement();
-				ArrayList<DataPoint<T>> list = pnts.get(nodeIndex);
-				ArrayList<Float> dists = calcPointDistances(vp, list);
-				if (dists != null && dists.size() > 0){
-					calcSplitPoints(dists, msplits, nodeIndex);
-					float m;
-					for (int j=0;j<lengthM;j++){
-						m = msplits[nodeIndex*lengthM+j];
-						ArrayList<DataPoint<T>> culledpts = cullPoints(
-								   list, dists,m,ComparatorType.LESS_THAN);
-						if (culledpts != null) pnts2.put(nodeIndex*bf+j, culledpts);
+			for (int nodeIndex=0;nodeIndex < nbnodes;nodeIndex++){
+				int from = bounds[nodeIndex], to = bounds[nodeIndex+1];
+				if (to > from){
+					calcDistances(vp, points, dists, from, to);
+					for (int i=from;i<to;i++){
+						points.get(i).addToAncestorPath(level + n, dists[i]);
 					}
-					m = msplits[nodeIndex*lengthM+lengthM-1];
-					ArrayList<DataPoint<T>> culledpts = cullPoints(
-								list, dists, m, ComparatorType.GREATER_THAN);
-					if (culledpts != null) pnts2.put(nodeIndex*bf+bf-1, culledpts);
-				}
-				if (list != null && list.size() > 0){
-					StringBuilder msg = new StringBuilder();
-					msg.append("list " + nodeIndex + " n = " + n);
-					msg.append(" not fully collated, " + list.size() + " points remaining ");
-					throw new MVPTreeException(msg.toString());
+					calcSplitPoints(dists, from, to, msplits, nodeIndex, swap);
+					PointPartition.partition(dists, from, to, bf, msplits, nodeIndex*lengthM,
+											 bounds2, nodeIndex*bf, swap);
+				} else {
+					Arrays.fill(bounds2, nodeIndex*bf, nodeIndex*bf + bf + 1, from);
 				}
 			}
 			internalNode.setSplitsAtLevel(msplits, n);
-			pnts = pnts2;
+			bounds = bounds2;
 			n++;
 		} while (n < nl);
 	
 		for (int i=0;i<fanout;i++){
-			ArrayList<DataPoint<T>> childlist = pnts.get(i);
-			if (childlist != null) childpoints.put(index*fanout+i, childlist);
+			if (bounds[i+1] > bounds[i])
+				childpoints.put(index*fanout+i, new ArrayList<>(points.subList(bounds[i], bounds[i+1])));
 		}
+		points.clear();
     }
 
 	/* Link nodes in one layer of tree to next layer (nodes --> childnodes), 
@@ -476,6 +974,32 @@ public class MVPTree<T extends Number> {
 		}
 	}
 
+	/* Move the vantage points chosen by the selector from points to the front of
+	 * the list, in order, for a new node to take.  Must hold the write lock. */
+	private void chooseVantagePoints(ArrayList<DataPoint<T>> points, int numvps){
+		int n = Math.min(numvps, points.size());
+		if (n <= 0)
+			return;
+		int[] vps = selector.select(points, n, metric);
+		PointPartition.moveToFront(vps, n, points.size(), (i, j) -> Collections.swap(points, i, j));
+	}
+
+	/* Create a leaf node for points, marking the distances of its points to its
+	 * vantage points on their paths. */
+	private MVPLeaf<T> createLeaf(ArrayList<DataPoint<T>> points){
+		int pl = nf.getPathLength();
+		chooseVantagePoints(points, pl);
+		MVPLeaf<T> leaf = nf.createLeafNode(points);
+		if (points.size() > 0){
+			for (int i = 0;i < pl;i++){
+				DataPoint<T> vp = leaf.getVantagePoint(i, nf);
+				markPointDistancesOnPath(vp, points, i);
+			}
+			leaf.addDataPoints(points);
+		}
+		return leaf;
+	}
+
 	/* process a current list at a particular node position in tree (level and node index),
 	 * creating nodes as needed, or adding points to a particular node.  
 	 * Process a current list at a particular node position in tree (level, node index).
@@ -495,23 +1019,16 @@ public class MVPTree<T extends Number> {
 		MVPNode<T> retnode = node;
 		if (node == null){        //create node 
 			if (points.size() >= leaf_limit){
+				chooseVantagePoints(points, nl);
 				MVPInternal<T> internal = nf.createInternalNode(points);
-				collatePoints(internal, points, childpoints, index);
+				collatePoints(internal, points, childpoints, index, level);
 				retnode = internal;
 			} else if (points.size() > 0){                  // create leaf node
-				MVPLeaf<T> leaf = nf.createLeafNode(points);
-				if (points.size() > 0){
-					for (int i = 0;i < pl;i++){
-						DataPoint<T> vp = leaf.getVantagePoint(i, nf);
-						markPointDistancesOnPath(vp, points, i);
-					}
-					leaf.addDataPoints(points);
-				}
-				retnode = leaf;
+				retnode = createLeaf(points);
 			}
 		} else { // node exists
 			if (MVPInternal.class.isInstance(node)){ // internal node
-				collatePoints((MVPInternal<T>)node, points, childpoints, index);
+				collatePoints((MVPInternal<T>)node, points, childpoints, index, level);
 			} else if (MVPLeaf.class.isInstance(node)){  // leaf node
 				MVPLeaf<T> leaf = (MVPLeaf<T>)node;
 				int numvps = leaf.getNumVantagePoints();
@@ -521,11 +1038,15 @@ public class MVPTree<T extends Number> {
 					ArrayList<DataPoint<T>> existing_pnts = leaf.getAllDataPoints(nf);
 					points.addAll(existing_pnts);
 					points.addAll(vps);
+					chooseVantagePoints(points, nl);
 					MVPInternal<T> internal = nf.createInternalNode(points);
-					collatePoints(internal, points, childpoints, index);
+					collatePoints(internal, points, childpoints, index, level);
 					leaf.delete();
 					retnode = internal;
 				} else {
+					if (nf.isPackedLeaves() && !leaf.isPacked())
+						leaf.pack(nf);
+					chooseVantagePoints(points, pl - numvps);
 					leaf.selectVantagePoints(points, numvps, pl);
 					if (points.size() > 0){
 						for (int i=0;i<pl;i++){
@@ -549,53 +1070,121 @@ public class MVPTree<T extends Number> {
 	 * @return void
 	 * @throws MVPTreeException 
 	 */
-	public synchronized void addPoints(ArrayList<DataPoint<T>> points){
+	public void addPoints(ArrayList<DataPoint<T>> points){
+		rwlock.writeLock().lock();
+		try {
+			ArrayList<SkeletonChange<T>> changes = new ArrayList<>();
+			try (StorageTransaction tx = nf.getBackend().beginTx()){
+				insertPoints(points, tx, changes);
+				tx.success();
+			}
+			for (SkeletonChange<T> change : changes){
+				linkSkeleton(change);
+			}
+		} catch (Exception ex) {
+			throw new MVPTreeException("unable to add points", ex);
+		} finally {
+			rwlock.writeLock().unlock();
+		}
+	}
+
+	/* Add points to tree within a transaction, loading the skeleton beneath the nodes
+	 * put in new places into changes, to link once committed.  Must hold the write lock. */
+	private void insertPoints(ArrayList<DataPoint<T>> points, StorageTransaction tx,
+							  List<SkeletonChange<T>> changes){
 		int bf = nf.getBranchFactor();
 		int nl = nf.getNumLevelsPerNode();
+		MVPNode<T> topnode = nf.getTopNode();
+		Hashtable<Integer, MVPNode<T>> prevnodes = null;
+		Hashtable<Integer, MVPNode<T>> currentnodes = new Hashtable<Integer, MVPNode<T>>(1);
+		if (topnode != null) currentnodes.put(0, topnode);
 
-		try (Transaction tx = nf.getGraphdb().beginTx()){
-			MVPNode<T> topnode = nf.getTopNode();
-			Hashtable<Integer, MVPNode<T>> prevnodes = null;
-			Hashtable<Integer, MVPNode<T>> currentnodes = new Hashtable<Integer, MVPNode<T>>(1);
-			if (topnode != null) currentnodes.put(0, topnode);
-			
-			Hashtable<Integer, ArrayList<DataPoint<T>>> pnts = new Hashtable<>(1);
-			pnts.put(0,points);
-			
-			int n = 0;
-			int fanout = (int)Math.pow(bf, nl);
-			boolean done = true;
-			
-			nf.indexPoints(points);
-			do {
-				done = true;
-				int nbnodes = (int)Math.pow(bf, n);
-				int nbchildnodes = (int)Math.pow(bf, n+nl);
-				Hashtable<Integer, MVPNode<T>> childNodes = new Hashtable<>();
-				Hashtable<Integer, ArrayList<DataPoint<T>>> pnts2 = new Hashtable<>();
-				
-				for (Enumeration<Integer> e = pnts.keys();e.hasMoreElements();){
-					int index = e.nextElement();
-					MVPNode<T> newnode = null, mvpnode = currentnodes.get(index);
-					ArrayList<DataPoint<T>> list = pnts.get(index);
-					newnode = processNode(n, index, mvpnode, list, childNodes, pnts2);
-					if (newnode != null && !newnode.isSameAs(mvpnode)){
-						currentnodes.put(index, newnode);
-						if (n == 0)	newnode.setAsTop(nf);
-					}
+		Hashtable<Integer, ArrayList<DataPoint<T>>> pnts = new Hashtable<>(1);
+		pnts.put(0,points);
+
+		/* nodes put in new places, each with its parent's node id (-1 for top node) and slot */
+		ArrayList<MVPNode<T>> placed = new ArrayList<>();
+		ArrayList<long[]> places = new ArrayList<>();
+
+		int n = 0;
+		int fanout = (int)Math.pow(bf, nl);
+		boolean done = true;
+
+		nf.indexPoints(points, tx);
+		do {
+			done = true;
+			Hashtable<Integer, MVPNode<T>> childNodes = new Hashtable<>();
+			Hashtable<Integer, ArrayList<DataPoint<T>>> pnts2 = new Hashtable<>();
+
+			for (Enumeration<Integer> e = pnts.keys();e.hasMoreElements();){
+				int index = e.nextElement();
+				MVPNode<T> newnode = null, mvpnode = currentnodes.get(index);
+				ArrayList<DataPoint<T>> list = pnts.get(index);
+				newnode = processNode(n, index, mvpnode, list, childNodes, pnts2);
+				if (newnode != null && !newnode.isSameAs(mvpnode)){
+					currentnodes.put(index, newnode);
+					if (n == 0)	newnode.setAsTop(nf);
+					long parentid = (n == 0) ? -1L : prevnodes.get(index/fanout).getNode().getId();
+					placed.add(newnode);
+					places.add(new long[] {parentid, index % fanout});
 				}
-				if (prevnodes != null) linkNodes(prevnodes, currentnodes, n);
-				prevnodes = currentnodes;
-				currentnodes = childNodes;
-				pnts = pnts2;
-				n += nf.getNumLevelsPerNode();
-				if (!pnts2.isEmpty()) done = false;
-			} while (!done);
-			nf.saveParameters();
-			tx.success();
-		} catch (Exception ex) {
-			throw new MVPTreeException("unable to add points", ex);
+			}
+			if (prevnodes != null) linkNodes(prevnodes, currentnodes, n);
+			prevnodes = currentnodes;
+			currentnodes = childNodes;
+			pnts = pnts2;
+			n += nf.getNumLevelsPerNode();
+			if (!pnts2.isEmpty()) done = false;
+		} while (!done);
+		nf.saveParameters();
+		for (int i=0;i < placed.size();i++){
+			SkeletonChange<T> change = loadSkeletonChange(places.get(i)[0], (int)places.get(i)[1], placed.get(i));
+			if (change != null)
+				changes.add(change);
+		}
+	}
+
+	/** Add points to tree in chunks, from an iterator of any length.  Each
+	 *  chunk is added by addPoints() in its own transaction, so no more than
+	 *  a chunk of points is held at once, the tree is consistent for queries
+	 *  between chunks, and a failure rolls back only the chunk being added.
+	 * @param Iterator<DataPoint<T>> points
+	 * @param int          chunksize, no. points per chunk (e.g. 10000)
+	 * @param LongConsumer progress, called with the total no. points added
+	 *                     after each chunk, or null
+	 * @return long total no. points added
+	 * @throws MVPTreeException
+	 */
+	public long addPoints(Iterator<DataPoint<T>> points, int chunksize, LongConsumer progress){
+		if (chunksize <= 0)
+			throw new IllegalArgumentException("chunksize <= 0");
+		long total = 0;
+		ArrayList<DataPoint<T>> chunk = new ArrayList<>(Math.min(chunksize, 65536));
+		while (points.hasNext()){
+			chunk.add(points.next());
+			if (chunk.size() >= chunksize || !points.hasNext()){
+				int n = chunk.size();
+				addPoints(chunk);
+				chunk.clear();
+				total += n;
+				if (progress != null)
+					progress.accept(total);
+			}
 		}
+		return total;
+	}
+
+	/** Add points to tree in chunks, from a stream of any length.
+	 *  See addPoints(Iterator, int, LongConsumer).
+	 * @param Stream<DataPoint<T>> points
+	 * @param int          chunksize, no. points per chunk (e.g. 10000)
+	 * @param LongConsumer progress, called with the total no. points added
+	 *                     after each chunk, or null
+	 * @return long total no. points added
+	 * @throws MVPTreeException
+	 */
+	public long addPoints(Stream<DataPoint<T>> points, int chunksize, LongConsumer progress){
+		return addPoints(points.iterator(), chunksize, progress);
 	}
 
 	/**
@@ -604,7 +1193,7 @@ public class MVPTree<T extends Number> {
 	 * @return void
 	 * @throws MVPTreeException
 	 */
-	public synchronized void stats(MVPTreeStats stats){
+	public void stats(MVPTreeStats stats){
 		int bf = nf.getBranchFactor();
 		int lm = nf.getLeafMinimum();
 		int nl = nf.getNumLevelsPerNode();
@@ -621,7 +1210,8 @@ public class MVPTree<T extends Number> {
 		stats.min_leaf_size = 1000000;
 		stats.avg_leaf_size = 0.0f;
 		
-		try (Transaction tx = nf.getGraphdb().beginTx()){
+		rwlock.readLock().lock();
+		try (StorageTransaction tx = nf.getBackend().beginTx()){
 			MVPNode<T> topnode = nf.getTopNode();
 			Hashtable<Integer,MVPNode<T>> currentnodes = new Hashtable<>(1);
 			if (topnode != null) currentnodes.put(0,topnode);
@@ -667,6 +1257,8 @@ public class MVPTree<T extends Number> {
 			tx.success();
 		} catch (Exception ex) {
 			throw new MVPTreeException("unable to stat tree", ex);
+		} finally {
+			rwlock.readLock().unlock();
 		}
 	}
 
@@ -676,12 +1268,13 @@ public class MVPTree<T extends Number> {
 	 * @return void
 	 * @throws MVPTreeException
 	 */
-	public synchronized void printTree(PrintStream stream){
+	public void printTree(PrintStream stream){
 		int bf = nf.getBranchFactor();
 		int nl = nf.getNumLevelsPerNode();
 		int fanout = (int)Math.pow(bf, nl);
 
-		try (Transaction tx = nf.getGraphdb().beginTx()){
+		rwlock.readLock().lock();
+		try (StorageTransaction tx = nf.getBackend().beginTx()){
 			MVPNode<T> topnode = nf.getTopNode();
 			Hashtable<Integer,MVPNode<T>> currentnodes = new Hashtable<>(1);
 			if (topnode != null)
@@ -730,7 +1323,7 @@ public class MVPTree<T extends Number> {
 						for (DataPoint<T> vp : vps){
 							System.out.printf("  vp: %s\n", vp.getIdWithoutTx());
 						}
-						ArrayList<DataPoint<T>> pnts = leaf.getAllDataPoints(nf);
+						ArrayList<DataPoint<T>> pnts = leaf.getActiveDataPoints(nf);
 						for (DataPoint<T> pnt : pnts){
 							float[] path = pnt.getPath();
 							stream.printf("  %s ", pnt.getIdWithoutTx());
@@ -751,38 +1344,255 @@ public class MVPTree<T extends Number> {
 			tx.success();
 		} catch (Exception ex){
 			throw new MVPTreeException("unable to print tree", ex);
+		} finally {
+			rwlock.readLock().unlock();
 		}
 	}
 
-	/**
-	 * Clear graph database. Use with care.
-	 * @return void
+	/** Compact the tree's leaves: delete the inactive points left by removePoint(),
+	 *  and rebuild each leaf with inactive vantage points, or left with fewer
+	 *  than the leaf minimum of active points by the deletions, choosing new
+	 *  vantage points from its active points.  Leaves left with no active points
+	 *  are removed.  Inactive vantage points of internal nodes are kept.
+	 *  Leaves are compacted in small batches, each under the write lock, so
+	 *  queries and additions proceed in between.
+	 * @return CompactionStats counts of the compaction
 	 * @throws MVPTreeException
 	 */
-	public synchronized void clear(){
-		int n = 0, depth = 0;
-		int bf = nf.getBranchFactor();
-		int nl = nf.getNumLevelsPerNode();
-		int fanout = (int)Math.pow(bf, nl);
+	public CompactionStats compact(){
+		long start = System.nanoTime();
+		CompactionStats stats = new CompactionStats();
+		stats.n_compactions = 1;
 
-		try (Transaction tx = nf.getGraphdb().beginTx()){
+		/* leaf node ids, each with its parent node id (-1 for top node) and slot */
+		ArrayList<long[]> leaves = new ArrayList<>();
+		int fanout = (int)Math.pow(nf.getBranchFactor(), nf.getNumLevelsPerNode());
+		rwlock.readLock().lock();
+		try (StorageTransaction tx = nf.getBackend().beginTx()){
 			MVPNode<T> topnode = nf.getTopNode();
-			Hashtable<Integer,MVPNode<T>> currentnodes = new Hashtable<>(1);
-			if (topnode != null) currentnodes.put(0,topnode);
-			nf.clearDataPointIndex();
-			
-			boolean done;
-			do {
-				done = true;
-				int nbnodes = (int)Math.pow(bf,n);
-				int nbchildnodes = (int)Math.pow(bf,n+nl);
-				Hashtable<Integer,MVPNode<T>> childnodes = new Hashtable<>();
-				
-				for (Enumeration<Integer> e = currentnodes.keys();e.hasMoreElements();){
-					int index = e.nextElement();
-					MVPNode<T> mvpnode = currentnodes.get(index);
-					int numvps = mvpnode.getNumVantagePoints();
-					ArrayList<DataPoint<T>> vps = mvpnode.getVantagePoints(numvps, nf);
+			ArrayDeque<MVPInternal<T>> pending = new ArrayDeque<>();
+			if (MVPLeaf.class.isInstance(topnode))
+				leaves.add(new long[] {-1L, 0, topnode.getNode().getId()});
+			else if (topnode != null)
+				pending.add((MVPInternal<T>)topnode);
+			while (!pending.isEmpty()){
+				MVPInternal<T> internal = pending.poll();
+				for (int i=0;i < fanout;i++){
+					MVPNode<T> child = internal.getChildNode(i);
+					if (MVPLeaf.class.isInstance(child))
+						leaves.add(new long[] {internal.getNode().getId(), i, child.getNode().getId()});
+					else if (child != null)
+						pending.add((MVPInternal<T>)child);
+				}
+			}
+			tx.success();
+		} catch (Exception ex){
+			throw new MVPTreeException("unable to compact tree", ex);
+		} finally {
+			rwlock.readLock().unlock();
+		}
+
+		for (int i=0;i < leaves.size();i += CompactionBatchSize){
+			rwlock.writeLock().lock();
+			try {
+				int end = Math.min(i + CompactionBatchSize, leaves.size());
+				for (int j=i;j < end;j++){
+					SkeletonChange<T> change;
+					try (StorageTransaction tx = nf.getBackend().beginTx()){
+						change = compactLeaf(leaves.get(j), stats);
+						tx.success();
+					}
+					linkSkeleton(change);
+				}
+			} catch (Exception ex){
+				throw new MVPTreeException("unable to compact tree", ex);
+			} finally {
+				rwlock.writeLock().unlock();
+			}
+		}
+		stats.elapsed_nanos = System.nanoTime() - start;
+		compaction_totals.add(stats);
+		return stats;
+	}
+
+	/* Compact a leaf, given as its parent node id (-1 for top node), slot and
+	 * node id, unless it has since been replaced in the tree.  Returns the change
+	 * to the skeleton if the leaf is replaced, else null. */
+	private SkeletonChange<T> compactLeaf(long[] entry, CompactionStats stats){
+		long parentid = entry[0];
+		int slot = (int)entry[1];
+		long leafid = entry[2];
+		MVPInternal<T> parent = null;
+		MVPNode<T> node;
+		if (parentid < 0){
+			node = nf.getTopNode();
+		} else {
+			StorageNode parentnode;
+			try {
+				parentnode = nf.getBackend().getNodeById(parentid);
+			} catch (Exception ex){
+				return null;       /* deleted by clear() */
+			}
+			if (!parentnode.hasProperty(MVPNode.NodeTypeProperty)
+				|| !MVPInternal.class.isInstance(nf.wrapNode(parentnode)))
+				return null;
+			parent = (MVPInternal<T>)nf.wrapNode(parentnode);
+			node = parent.getChildNode(slot);
+		}
+		if (!MVPLeaf.class.isInstance(node) || node.getNode().getId() != leafid)
+			return null;
+		MVPLeaf<T> leaf = (MVPLeaf<T>)node;
+		stats.n_leaf++;
+
+		/* getAllDataPoints() deletes the leaf's inactive points, other than its vantage points */
+		int before = leaf.getDataPointCount();
+		ArrayList<DataPoint<T>> points = leaf.getAllDataPoints(nf);
+		int removed = before - points.size();
+		stats.n_removed += removed;
+
+		ArrayList<DataPoint<T>> vps = leaf.getVantagePoints(leaf.getNumVantagePoints(), nf);
+		ArrayList<DataPoint<T>> inactive_vps = new ArrayList<>();
+		ArrayList<DataPoint<T>> active_vps = new ArrayList<>();
+		for (DataPoint<T> vp : vps){
+			if (vp.isActive())
+				active_vps.add(vp);
+			else
+				inactive_vps.add(vp);
+		}
+		/* inactive vantage points are only deleted by rebuilding the leaf, which is
+		 * also rebuilt when removals leave it with fewer than the leaf minimum */
+		boolean underfull = points.size() + active_vps.size() < nf.getLeafMinimum();
+		if (inactive_vps.isEmpty() && (removed == 0 || !underfull))
+			return null;
+
+		/* rebuild leaf from its active points, with the distances of former
+		 * vantage points to ancestor vantage points unknown */
+		int pl = nf.getPathLength();
+		for (DataPoint<T> vp : active_vps){
+			float[] path = new float[2*pl];
+			Arrays.fill(path, -1.0f);
+			vp.setPath(path);
+			points.add(vp);
+		}
+		if (parent != null)
+			parent.deleteAsChildNode(slot);
+		leaf.delete();
+		for (DataPoint<T> vp : inactive_vps){
+			vp.delete();
+		}
+		stats.n_removed += inactive_vps.size();
+		if (points.isEmpty()){
+			stats.n_emptied++;
+			return loadSkeletonChange(parentid, slot, null);
+		}
+		MVPLeaf<T> newleaf = createLeaf(points);
+		if (parent != null)
+			parent.setChildNodeAt(newleaf, slot);
+		else
+			newleaf.setAsTop(nf);
+		stats.n_rebuilt++;
+		return loadSkeletonChange(parentid, slot, newleaf);
+	}
+
+	/** Start compacting the tree's leaves in a background thread, repeatedly
+	 *  with a delay between the end of one compaction and the start of the next.
+	 *  Stopped by stopCompaction() or shutdown().
+	 * @param long     delay
+	 * @param TimeUnit unit of delay
+	 * @return void
+	 */
+	public synchronized void startCompaction(long delay, TimeUnit unit){
+		if (delay <= 0)
+			throw new IllegalArgumentException("delay <= 0");
+		stopCompaction();
+		compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "mvptree-compaction");
+				thread.setDaemon(true);
+				return thread;
+			});
+		compactor.scheduleWithFixedDelay(() -> {
+				try {
+					compact();
+				} catch (Exception ex){
+					CompactionStats failed = new CompactionStats();
+					failed.n_failures = 1;
+					compaction_totals.add(failed);
+					compaction_failure = ex;
+				}
+			}, delay, delay, unit);
+	}
+
+	/** Stop background compaction, if started, waiting for a compaction
+	 *  in progress to finish.
+	 * @return void
+	 */
+	public synchronized void stopCompaction(){
+		if (compactor == null)
+			return;
+		compactor.shutdown();
+		try {
+			compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException ex){
+			Thread.currentThread().interrupt();
+		}
+		compactor = null;
+	}
+
+	/** Is background compaction started
+	 * @return boolean
+	 */
+	public synchronized boolean isCompactionStarted(){
+		return compactor != null;
+	}
+
+	/** Get the totals of CompactionStats of all compactions of this tree.
+	 * @return CompactionStats
+	 */
+	public CompactionStats getCompactionStats(){
+		CompactionStats totals = new CompactionStats();
+		totals.add(compaction_totals);
+		return totals;
+	}
+
+	/** Get the failure of the last background compaction that failed, counted
+	 *  in CompactionStats.n_failures, or null if none has failed.  Background
+	 *  compaction continues after a failure, with the next compaction.
+	 * @return Exception
+	 */
+	public Exception getCompactionFailure(){
+		return compaction_failure;
+	}
+
+	/**
+	 * Clear graph database. Use with care.
+	 * @return void
+	 * @throws MVPTreeException
+	 */
+	public void clear(){
+		int n = 0, depth = 0;
+		int bf = nf.getBranchFactor();
+		int nl = nf.getNumLevelsPerNode();
+		int fanout = (int)Math.pow(bf, nl);
+
+		rwlock.writeLock().lock();
+		try (StorageTransaction tx = nf.getBackend().beginTx()){
+			MVPNode<T> topnode = nf.getTopNode();
+			Hashtable<Integer,MVPNode<T>> currentnodes = new Hashtable<>(1);
+			if (topnode != null) currentnodes.put(0,topnode);
+			nf.clearDataPointIndex(tx);
+			
+			boolean done;
+			do {
+				done = true;
+				int nbnodes = (int)Math.pow(bf,n);
+				int nbchildnodes = (int)Math.pow(bf,n+nl);
+				Hashtable<Integer,MVPNode<T>> childnodes = new Hashtable<>();
+				
+				for (Enumeration<Integer> e = currentnodes.keys();e.hasMoreElements();){
+					int index = e.nextElement();
+					MVPNode<T> mvpnode = currentnodes.get(index);
+					int numvps = mvpnode.getNumVantagePoints();
+					ArrayList<DataPoint<T>> vps = mvpnode.getVantagePoints(numvps, nf);
 					for (DataPoint<T> pnt: vps){
 						pnt.delete();
 					}
@@ -803,20 +1613,26 @@ public class MVPTree<T extends Number> {
 			tx.success();
 		} catch (Exception ex){
 			throw new MVPTreeException("unable to clear tree", ex);
+		} finally {
+			unloadSkeleton();
+			nf.getVectorCache().clear();
+			rwlock.writeLock().unlock();
 		}
 
 	}
 
-	private void selectChildNodesToQuery(MVPInternal<T> internal,
-										 TargetPoint<T> target,
-										 Hashtable<Integer,MVPNode<T>> childnodes,
-										 int index,
-										 ArrayList<DataPoint<T>> results,
-										 float radius){
+	/* Select child nodes of an internal node that may hold points within radius
+	 * of a target, given the target's distance to the node's vantage point at each
+	 * level and the node's splits at each level.
+	 * @param float[][]   splits, one array for each level
+	 * @param float[]     distances, target distance to vantage point of each level
+	 * @param float       radius
+	 * @return boolean[]  mask of child nodes to query, of length bf^nl
+	 */
+	private boolean[] selectChildNodesToQuery(float[][] splits, float[] distances, float radius){
 		int bf = nf.getBranchFactor();
 		int lengthM = bf - 1;
 		int nl = nf.getNumLevelsPerNode();
-		int fanout = (int)Math.pow(bf,nl);
 		int n = 0;
 
 		boolean[] current_nodes = { true };
@@ -825,21 +1641,12 @@ public class MVPTree<T extends Number> {
 			int nbchildnodes = (int)Math.pow(bf, n+1);
 			boolean[] child_nodes = new boolean[nbchildnodes];
 			Arrays.fill(child_nodes, false);
-			
-			DataPoint<T> vp = internal.getVantagePoint(n, nf);
-			if (vp == null)
-				throw new MVPNodeException("no vantage in internal node " + n);
 
-			Double distance = metric.distance(vp, target);
-			if (vp.isActive() && distance.floatValue() <= radius){
-				results.add(vp);
-			}
-			
-			int lengthMn = lengthM*nbnodes;
-			float[] msplits = internal.getSplitsAtLevel(n);
-			if (lengthMn != msplits.length)
+			float distance = distances[n];
+			float[] msplits = splits[n];
+			if (lengthM*nbnodes != msplits.length)
 				throw new MVPNodeException("inconsistent splits array length");
-			
+
 			for (int node_index=0;node_index < nbnodes;node_index++){
 				if (current_nodes[node_index]){
 					if (msplits[node_index*lengthM] >= 0){
@@ -859,33 +1666,337 @@ public class MVPTree<T extends Number> {
 			current_nodes = child_nodes;
 			n++;
 		} while (n < nl);
-		
+		return current_nodes;
+	}
+
+	/* A node pending in a query, along with its level in tree, the query target's
+	 * distances to the vantage points of the node's ancestors, and a lower bound
+	 * on the target's distance to any point beneath the node.  */
+	private static class QueryNode<T extends Number> {
+		final MVPNode<T> node;
+		final int level;
+		final float[] qpath;
+		final float bound;
+
+		/* node's place in the tree skeleton, or null when not loaded */
+		final SkeletonNode<T> skel;
+
+		QueryNode(MVPNode<T> node, int level, float[] qpath, float bound, SkeletonNode<T> skel){
+			this.node = node;
+			this.level = level;
+			this.qpath = qpath;
+			this.bound = bound;
+			this.skel = skel;
+		}
+	}
+
+	/* Get a query node for the top node of the tree, from the skeleton if loaded,
+	 * or null for an empty tree.  Must be called within a transaction. */
+	private QueryNode<T> getTopQueryNode(){
+		SkeletonNode<T> top = skeleton;
+		if (top != null)
+			return new QueryNode<>(top.node, 0, newQueryPath(), 0.0f, top);
+		MVPNode<T> topnode = nf.getTopNode();
+		if (topnode == null)
+			return null;
+		return new QueryNode<>(topnode, 0, newQueryPath(), 0.0f, null);
+	}
+
+	/* Get the vantage points and splits of a pending internal node, from the skeleton
+	 * if loaded, else read from the graph. */
+	private SkeletonNode<T> getSkeletonNode(QueryNode<T> pending){
+		if (pending.skel != null)
+			return pending.skel;
+		return new SkeletonNode<>(pending.node, nf);
+	}
+
+	/* Get a query node for the i'th child of a pending internal node, or null if no child. */
+	private QueryNode<T> getChildQueryNode(QueryNode<T> pending, SkeletonNode<T> skel, int i,
+										   float[] childpath, float bound){
+		int level = pending.level + nf.getNumLevelsPerNode();
+		if (skel.children != null){
+			SkeletonNode<T> child = skel.children[i];
+			if (child == null)
+				return null;
+			return new QueryNode<>(child.node, level, childpath, bound, child);
+		}
+		MVPNode<T> child = ((MVPInternal<T>)pending.node).getChildNode(i);
+		if (child == null)
+			return null;
+		return new QueryNode<>(child, level, childpath, bound, null);
+	}
+
+	/* Create an empty path of a query target's distances to ancestor vantage
+	 * points, indexed by level in tree, with -1 marking levels not yet known. */
+	private float[] newQueryPath(){
+		float[] qpath = new float[nf.getPathLength()];
+		Arrays.fill(qpath, -1.0f);
+		return qpath;
+	}
+
+	/* Extend a query path with the target's distances to the vantage points
+	 * of an internal node at a given level, for the levels the path holds. */
+	private float[] extendQueryPath(float[] qpath, int level, float[] distances){
+		float[] childpath = qpath.clone();
+		for (int n=0;n < distances.length && level + n < childpath.length;n++){
+			childpath[level + n] = distances[n];
+		}
+		return childpath;
+	}
+
+	private void selectChildNodesToQuery(QueryNode<T> pending,
+										 TargetPoint<T> target,
+										 Collection<QueryNode<T>> childnodes,
+										 ArrayList<QueryResult<T>> results,
+										 float radius,
+										 QueryStats stats){
+		SkeletonNode<T> skel = getSkeletonNode(pending);
+		int nl = nf.getNumLevelsPerNode();
+		int fanout = (int)Math.pow(nf.getBranchFactor(),nl);
+		stats.n_internal++;
+		stats.n_distances += nl;
+
+		float[] distances = new float[nl];
+		for (int n=0;n < nl;n++){
+			distances[n] = (float)metric.primitiveDistance(skel.vpdata[n], target);
+			if (distances[n] <= radius && skel.active[n]){
+				results.add(new QueryResult<>(skel.vps[n], distances[n]));
+			}
+		}
+
+		boolean[] current_nodes = selectChildNodesToQuery(skel.splits, distances, radius);
+		float[] childpath = extendQueryPath(pending.qpath, pending.level, distances);
 		for (int i=0;i < fanout;i++){
 			if (current_nodes[i]){
-				MVPNode<T> child = internal.getChildNode(i);
+				QueryNode<T> child = getChildQueryNode(pending, skel, i, childpath, 0.0f);
+				if (child != null){
+					childnodes.add(child);
+				}
+			}
+		}
+	}
+
+	/* Batch version of selectChildNodesToQuery for a list of targets. Vantage points
+	 * and splits are loaded once for all the targets that reach this node, and each
+	 * selected child node is queued with the targets for which it was selected.
+	 */
+	private void selectChildNodesToQuery(QueryNode<T> pending,
+										 List<TargetPoint<T>> targets,
+										 ArrayList<Integer> target_indices,
+										 ArrayList<float[]> target_qpaths,
+										 Hashtable<Integer,QueryNode<T>> childnodes,
+										 Hashtable<Integer,ArrayList<Integer>> childtargets,
+										 Hashtable<Integer,ArrayList<float[]>> childqpaths,
+										 int index,
+										 ArrayList<ArrayList<QueryResult<T>>> results,
+										 float radius,
+										 QueryStats stats){
+		int nl = nf.getNumLevelsPerNode();
+		int fanout = (int)Math.pow(nf.getBranchFactor(),nl);
+		stats.n_internal++;
+		stats.n_distances += nl*target_indices.size();
+
+		SkeletonNode<T> skel = getSkeletonNode(pending);
+		boolean[] active = new boolean[nl];
+		for (int n=0;n < nl;n++){
+			active[n] = skel.active[n];
+		}
+
+		ArrayList<ArrayList<Integer>> selected = new ArrayList<>(fanout);
+		ArrayList<ArrayList<float[]>> selected_qpaths = new ArrayList<>(fanout);
+		for (int i=0;i < fanout;i++){
+			selected.add(null);
+			selected_qpaths.add(null);
+		}
+
+		float[] distances = new float[nl];
+		for (int k=0;k < target_indices.size();k++){
+			int t = target_indices.get(k);
+			TargetPoint<T> target = targets.get(t);
+			for (int n=0;n < nl;n++){
+				distances[n] = (float)metric.primitiveDistance(skel.vpdata[n], target);
+				if (active[n] && distances[n] <= radius){
+					results.get(t).add(new QueryResult<>(skel.vps[n], distances[n]));
+				}
+			}
+			boolean[] current_nodes = selectChildNodesToQuery(skel.splits, distances, radius);
+			float[] childpath = extendQueryPath(target_qpaths.get(k), pending.level, distances);
+			for (int i=0;i < fanout;i++){
+				if (current_nodes[i]){
+					if (selected.get(i) == null){
+						selected.set(i, new ArrayList<Integer>());
+						selected_qpaths.set(i, new ArrayList<float[]>());
+					}
+					selected.get(i).add(t);
+					selected_qpaths.get(i).add(childpath);
+				}
+			}
+		}
+
+		for (int i=0;i < fanout;i++){
+			if (selected.get(i) != null){
+				QueryNode<T> child = getChildQueryNode(pending, skel, i, null, 0.0f);
 				if (child != null){
 					childnodes.put(index*fanout+i, child);
+					childtargets.put(index*fanout+i, selected.get(i));
+					childqpaths.put(index*fanout+i, selected_qpaths.get(i));
 				}
 			}
 		}
 	}
 
-	private ArrayList<DataPoint<T>> sortResults(TargetPoint<T> target,
-												ArrayList<DataPoint<T>> points){
-		ArrayList<DataPoint<T>> results = new ArrayList<>();
-		while (points.size() > 0){
-			DataPoint<T> pnt = points.remove(0);
-			Double d = metric.distance(pnt, target);
-			boolean inserted = false;
-			for (int i=0;i<results.size();i++){
-				if (d.floatValue() <= metric.distance(results.get(i), target)){
-					results.add(i, pnt);
-					inserted = true;
+	/* Get the DataPoints of a list of query results, in the same order. */
+	private ArrayList<DataPoint<T>> getPoints(List<QueryResult<T>> results){
+		ArrayList<DataPoint<T>> points = new ArrayList<>(results.size());
+		for (QueryResult<T> result : results){
+			points.add(result.getPoint());
+		}
+		return points;
+	}
+
+	/* Query one layer of nodes for a target, adding points within radius to results.
+	 * @param ArrayList<QueryNode<T>> nodes in current layer of tree
+	 * @param TargetPoint<T> target
+	 * @param float          radius
+	 * @param ArrayList<QueryResult<T>> results (out)
+	 * @param QueryStats     stats (out)
+	 * @return ArrayList<QueryNode<T>> nodes to query in next layer of tree
+	 */
+	private ArrayList<QueryNode<T>> queryLayer(ArrayList<QueryNode<T>> currentnodes,
+											   TargetPoint<T> target,
+											   float radius,
+											   ArrayList<QueryResult<T>> results,
+											   QueryStats stats){
+		ArrayList<QueryNode<T>> childnodes = new ArrayList<>();
+		for (QueryNode<T> pending : currentnodes){
+			MVPNode<T> mvpnode = pending.node;
+			if (MVPInternal.class.isInstance(mvpnode)){
+				selectChildNodesToQuery(pending, target, childnodes, results, radius, stats);
+			} else if (MVPLeaf.class.isInstance(mvpnode)){
+				MVPLeaf<T> leaf = (MVPLeaf<T>)mvpnode;
+				leaf.filterDataPoints(target, pending.qpath, results, radius, metric, nf, stats);
+			} else {
+				throw new MVPNodeException("unrecognized node type");
+			}
+		}
+		return childnodes;
+	}
+
+	/* Wait for every one of tasks to finish, and get their results in order.
+	 *  Once any task fails, abort is set, for the tasks still to run or running
+	 *  to stop early; they are not cancelled, since get() of a cancelled Future
+	 *  does not wait for its task to finish.  The first failure is rethrown only
+	 *  once all tasks are done, so none is left reading the store after the
+	 *  caller releases its lock. */
+	private static <V> ArrayList<V> awaitAll(List<Future<V>> tasks, AtomicBoolean abort){
+		ArrayList<V> values = new ArrayList<>(tasks.size());
+		Throwable failure = null;
+		boolean interrupted = false;
+		for (Future<V> task : tasks){
+			while (true){
+				try {
+					values.add(task.get());
+					break;
+				} catch (InterruptedException ex){
+					interrupted = true;
+					abort.set(true);
+					if (failure == null) failure = ex;
+				} catch (ExecutionException ex){
+					abort.set(true);
+					if (failure == null) failure = ex.getCause();
+					values.add(null);
 					break;
 				}
 			}
-			if (!inserted)results.add(pnt);
 		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException)failure;
+		if (failure instanceof Error)
+			throw (Error)failure;
+		if (failure != null)
+			throw new MVPTreeException("task failed", failure);
+		return values;
+	}
+
+	/* Start counting the work of a query of ntargets targets. */
+	private QueryStats startQuery(int ntargets){
+		QueryStats query = new QueryStats();
+		query.n_queries = ntargets;
+		query.elapsed_nanos = System.nanoTime();
+		return query;
+	}
+
+	/* Finish counting the work of a query, adding it to the tree's totals
+	 * and to the caller's stats, if any. */
+	private void finishQuery(QueryStats query, QueryStats stats){
+		query.elapsed_nanos = System.nanoTime() - query.elapsed_nanos;
+		total_queries.add(query.n_queries);
+		total_internal.add(query.n_internal);
+		total_leaf.add(query.n_leaf);
+		total_rejected.add(query.n_rejected);
+		total_distances.add(query.n_distances);
+		total_results.add(query.n_results);
+		total_nanos.add(query.elapsed_nanos);
+		if (stats != null) stats.add(query);
+	}
+
+	/** Get the totals of QueryStats for all queries completed on this tree.
+	 *  The totals are kept without locking, so may be read while queries run.
+	 * @return QueryStats
+	 */
+	public QueryStats getQueryStats(){
+		QueryStats totals = new QueryStats();
+		totals.n_queries     = total_queries.sum();
+		totals.n_internal    = total_internal.sum();
+		totals.n_leaf        = total_leaf.sum();
+		totals.n_rejected    = total_rejected.sum();
+		totals.n_distances   = total_distances.sum();
+		totals.n_results     = total_results.sum();
+		totals.elapsed_nanos = total_nanos.sum();
+		return totals;
+	}
+
+	/** Reset the totals of QueryStats for this tree to zero.
+	 * @return void
+	 */
+	public void resetQueryStats(){
+		total_queries.reset();
+		total_internal.reset();
+		total_leaf.reset();
+		total_rejected.reset();
+		total_distances.reset();
+		total_results.reset();
+		total_nanos.reset();
+	}
+
+	/* Query tree with a target for all DataPoints that lie within a given
+	 * radius, along with their distances from the target.  The counts of the
+	 * query are added to stats, unless null. */
+	private ArrayList<QueryResult<T>> searchTarget(TargetPoint<T> target, float radius,
+												   QueryStats stats){
+		ArrayList<QueryResult<T>> results = new ArrayList<>();
+		QueryStats query = startQuery(1);
+
+		rwlock.readLock().lock();
+		try (StorageTransaction tx = nf.getBackend().beginTx()){
+			QueryNode<T> topnode = getTopQueryNode();
+
+			ArrayList<QueryNode<T>> currentnodes = new ArrayList<>(1);
+			if (topnode != null) currentnodes.add(topnode);
+
+			while (!currentnodes.isEmpty()){
+				currentnodes = queryLayer(currentnodes, target, radius, results, query);
+			}
+			tx.success();
+		} catch (Exception ex) {
+			throw new MVPTreeException("Unable to query", ex);
+		} finally {
+			rwlock.readLock().unlock();
+		}
+		query.n_results = results.size();
+		finishQuery(query, stats);
 		return results;
 	}
 
@@ -896,54 +2007,605 @@ public class MVPTree<T extends Number> {
 	 * @return Collection<DataPoint<T>>
 	 * @throws MVPTreeException
 	 */
-	public synchronized Collection<DataPoint<T>> queryTarget(TargetPoint<T> target,
-															 float radius){
-		int bf = nf.getBranchFactor();
-		int nl = nf.getNumLevelsPerNode();
-		int fanout = (int)Math.pow(bf, nl);
+	public Collection<DataPoint<T>> queryTarget(TargetPoint<T> target,
+												float radius){
+		return getPoints(searchTarget(target, radius, null));
+	}
 
-		ArrayList<DataPoint<T>> results = new ArrayList<>();
-		
-		try (Transaction tx = nf.getGraphdb().beginTx()){
-			MVPNode<T> topnode = nf.getTopNode();
+	/** Query tree with a target all DataPoints that lie within a given radius,
+	 *  counting the work done by the query.
+	 * @param TargetPoint<T> target data
+	 * @param float          radius
+	 * @param QueryStats     stats, counts of the query are added to it
+	 * @return Collection<DataPoint<T>>
+	 * @throws MVPTreeException
+	 */
+	public Collection<DataPoint<T>> queryTarget(TargetPoint<T> target,
+												float radius,
+												QueryStats stats){
+		return getPoints(searchTarget(target, radius, stats));
+	}
 
-			Hashtable<Integer,MVPNode<T>> currentnodes = new Hashtable<>(1);
-			if (topnode != null) currentnodes.put(0,topnode);
+	/** Query tree with a target for all DataPoints that lie within a given
+	 *  radius.  Each result carries the distance computed for it during the
+	 *  query, so there is no need to compute it again.
+	 * @param TargetPoint<T> target data
+	 * @param float          radius
+	 * @return List<QueryResult<T>> in no particular order
+	 * @throws MVPTreeException
+	 */
+	public List<QueryResult<T>> queryResults(TargetPoint<T> target, float radius){
+		return searchTarget(target, radius, null);
+	}
+
+	/** Query tree with a target for all DataPoints that lie within a given
+	 *  radius, with their distances, counting the work done by the query.
+	 * @param TargetPoint<T> target data
+	 * @param float          radius
+	 * @param QueryStats     stats, counts of the query are added to it
+	 * @return List<QueryResult<T>> in no particular order
+	 * @throws MVPTreeException
+	 */
+	public List<QueryResult<T>> queryResults(TargetPoint<T> target, float radius, QueryStats stats){
+		return searchTarget(target, radius, stats);
+	}
+
+	/** Query tree with a target for all DataPoints that lie within a given
+	 *  radius, ranked by their distance from the target.
+	 * @param TargetPoint<T> target data
+	 * @param float          radius
+	 * @return List<QueryResult<T>> in order of increasing distance
+	 * @throws MVPTreeException
+	 */
+	public List<QueryResult<T>> queryResultsSorted(TargetPoint<T> target, float radius){
+		ArrayList<QueryResult<T>> results = searchTarget(target, radius, null);
+		Collections.sort(results);
+		return results;
+	}
+
+	/** Query tree with a target for the nearest limit DataPoints that lie
+	 *  within a given radius, ranked by their distance from the target.
+	 *  Results are selected with a heap bounded to limit entries.
+	 * @param TargetPoint<T> target data
+	 * @param float          radius
+	 * @param int            limit, max. number of results
+	 * @return List<QueryResult<T>> in order of increasing distance
+	 * @throws MVPTreeException
+	 */
+	public List<QueryResult<T>> queryResultsSorted(TargetPoint<T> target, float radius, int limit){
+		if (limit <= 0)
+			throw new IllegalArgumentException("limit <= 0");
+		PriorityQueue<QueryResult<T>> nearest = new PriorityQueue<>(limit, QueryResult.farthestFirst());
+		for (QueryResult<T> result : searchTarget(target, radius, null)){
+			QueryResult.offer(nearest, limit, result);
+		}
+		ArrayList<QueryResult<T>> results = new ArrayList<>(nearest);
+		Collections.sort(results);
+		return results;
+	}
+
+	/** Query tree with a target for all DataPoints that lie within a given
+	 *  radius, traversing independent subtrees in parallel on the common
+	 *  ForkJoinPool.
+	 * @param TargetPoint<T> target data
+	 * @param float          radius
+	 * @param int            threshold, min. number of nodes in a layer of tree
+	 *                       before its subtrees are queried in parallel.
+	 * @return Collection<DataPoint<T>>
+	 * @throws MVPTreeException
+	 */
+	public Collection<DataPoint<T>> queryTarget(TargetPoint<T> target,
+												float radius,
+												int threshold){
+		return queryTarget(target, radius, threshold, ForkJoinPool.commonPool(), null);
+	}
+
+	/** Query tree with a target for all DataPoints that lie within a given
+	 *  radius, traversing independent subtrees in parallel.
+	 *  Layers of the tree are queried on the calling thread until a layer holds
+	 *  at least threshold nodes.  The subtree under each of those nodes is then
+	 *  queried as a separate task on executor, each in its own read transaction
+	 *  and into its own list of results, and the lists are merged once all tasks
+	 *  are done.
+	 * @param TargetPoint<T>  target data
+	 * @param float           radius
+	 * @param int             threshold, min. number of nodes in a layer of tree
+	 *                        before its subtrees are queried in parallel.
+	 * @param ExecutorService executor to run subtree queries
+	 * @return Collection<DataPoint<T>>
+	 * @throws MVPTreeException
+	 */
+	public Collection<DataPoint<T>> queryTarget(TargetPoint<T> target,
+												float radius,
+												int threshold,
+												ExecutorService executor){
+		return queryTarget(target, radius, threshold, executor, null);
+	}
+
+	/** Query tree with a target for all DataPoints that lie within a given
+	 *  radius, traversing independent subtrees in parallel, and counting the
+	 *  work done by the query.  Each subtree task counts its own work, and the
+	 *  counts are merged with the results.
+	 * @param TargetPoint<T>  target data
+	 * @param float           radius
+	 * @param int             threshold, min. number of nodes in a layer of tree
+	 *                        before its subtrees are queried in parallel.
+	 * @param ExecutorService executor to run subtree queries
+	 * @param QueryStats      stats, counts of the query are added to it
+	 * @return Collection<DataPoint<T>>
+	 * @throws MVPTreeException
+	 */
+	public Collection<DataPoint<T>> queryTarget(TargetPoint<T> target,
+												float radius,
+												int threshold,
+												ExecutorService executor,
+												QueryStats stats){
+		if (threshold <= 0)
+			throw new IllegalArgumentException("threshold <= 0");
+		if (executor == null)
+			throw new NullPointerException("executor is null");
+
+		ArrayList<QueryResult<T>> results = new ArrayList<>();
+		QueryStats query = startQuery(1);
+
+		rwlock.readLock().lock();
+		try {
+			ArrayList<QueryNode<T>> currentnodes = new ArrayList<>(1);
+			try (StorageTransaction tx = nf.getBackend().beginTx()){
+				QueryNode<T> topnode = getTopQueryNode();
+				if (topnode != null) currentnodes.add(topnode);
+
+				while (!currentnodes.isEmpty() && currentnodes.size() < threshold){
+					currentnodes = queryLayer(currentnodes, target, radius, results, query);
+				}
+				tx.success();
+			}
+
+			/* every subtree task is waited for before the read lock is released, even if one fails */
+			AtomicBoolean abort = new AtomicBoolean(false);
+			ArrayList<Future<ArrayList<QueryResult<T>>>> subtrees = new ArrayList<>(currentnodes.size());
+			ArrayList<QueryStats> subtree_stats = new ArrayList<>(currentnodes.size());
+			RuntimeException submit_failure = null;
+			try {
+				for (QueryNode<T> pending : currentnodes){
+					final ArrayList<QueryNode<T>> subtree = new ArrayList<>(1);
+					final QueryStats substats = new QueryStats();
+					subtree.add(pending);
+					subtrees.add(executor.submit(() -> {
+						ArrayList<QueryResult<T>> subtree_results = new ArrayList<>();
+						try (StorageTransaction tx = nf.getBackend().beginTx()){
+							ArrayList<QueryNode<T>> nodes = subtree;
+							while (!nodes.isEmpty() && !abort.get()){
+								nodes = queryLayer(nodes, target, radius, subtree_results, substats);
+							}
+							tx.success();
+						} catch (RuntimeException ex){
+							abort.set(true);
+							throw ex;
+						}
+						return subtree_results;
+					}));
+					subtree_stats.add(substats);
+				}
+			} catch (RuntimeException ex){
+				abort.set(true);
+				submit_failure = ex;
+			}
+			ArrayList<ArrayList<QueryResult<T>>> subtree_results = awaitAll(subtrees, abort);
+			if (submit_failure != null)
+				throw submit_failure;
+			for (int i=0;i < subtree_results.size();i++){
+				results.addAll(subtree_results.get(i));
+				query.add(subtree_stats.get(i));
+			}
+		} catch (Exception ex) {
+			throw new MVPTreeException("Unable to query", ex);
+		} finally {
+			rwlock.readLock().unlock();
+		}
+		query.n_results = results.size();
+		finishQuery(query, stats);
+		return getPoints(results);
+	}
+
+	/* Cursor over the results of a radius query.  Nodes are visited depth first,
+	 * so pending nodes never number more than fanout per layer of tree, and only
+	 * the results of the current node are held at a time.  The cursor closes
+	 * itself once exhausted or once limit results are returned. */
+	private class TargetCursor implements QueryCursor<T> {
+		private final TargetPoint<T> target;
+		private final float radius;
+		private final ArrayDeque<QueryNode<T>> pending = new ArrayDeque<>();
+		private final ArrayList<QueryResult<T>> buffer = new ArrayList<>();
+		private int position = 0;
+		private int remaining;
+		private StorageTransaction tx;
+		private boolean locked = false;
+		private final QueryStats query;
+		private final QueryStats stats;
+
+		TargetCursor(TargetPoint<T> target, float radius, int limit, QueryStats stats){
+			if (limit <= 0)
+				throw new IllegalArgumentException("limit <= 0");
+			this.target = target;
+			this.radius = radius;
+			this.remaining = limit;
+			this.stats = stats;
+			this.query = startQuery(1);
+			rwlock.readLock().lock();
+			locked = true;
+			try {
+				tx = nf.getBackend().beginTx();
+				QueryNode<T> topnode = getTopQueryNode();
+				if (topnode != null) pending.push(topnode);
+			} catch (Exception ex){
+				close();
+				throw new MVPTreeException("Unable to query", ex);
+			}
+		}
+
+		@Override
+		public boolean hasNext(){
+			if (!locked)
+				return false;
+			if (remaining <= 0){
+				close();
+				return false;
+			}
+			try {
+				while (position >= buffer.size() && !pending.isEmpty()){
+					buffer.clear();
+					position = 0;
+					QueryNode<T> next = pending.pop();
+					MVPNode<T> mvpnode = next.node;
+					if (MVPInternal.class.isInstance(mvpnode)){
+						ArrayList<QueryNode<T>> childnodes = new ArrayList<>();
+						selectChildNodesToQuery(next, target, childnodes, buffer, radius, query);
+						for (QueryNode<T> child : childnodes){
+							pending.push(child);
+						}
+					} else if (MVPLeaf.class.isInstance(mvpnode)){
+						MVPLeaf<T> leaf = (MVPLeaf<T>)mvpnode;
+						leaf.filterDataPoints(target, next.qpath, buffer, radius, metric, nf, query);
+					} else {
+						throw new MVPNodeException("unrecognized node type");
+					}
+				}
+			} catch (Exception ex){
+				close();
+				throw new MVPTreeException("Unable to query", ex);
+			}
+			if (position < buffer.size())
+				return true;
+			close();
+			return false;
+		}
+
+		@Override
+		public QueryResult<T> next(){
+			if (!hasNext())
+				throw new NoSuchElementException();
+			query.n_results++;
+			QueryResult<T> result = buffer.get(position++);
+			if (--remaining == 0)
+				close();
+			return result;
+		}
+
+		@Override
+		public void close(){
+			if (!locked)
+				return;
+			try {
+				if (tx != null){
+					tx.success();
+					tx.close();
+				}
+			} finally {
+				tx = null;
+				locked = false;
+				pending.clear();
+				buffer.clear();
+				rwlock.readLock().unlock();
+				finishQuery(query, stats);
+			}
+		}
+	}
+
+	/** Open a cursor over all DataPoints within a given radius of a target.
+	 *  Results are found as the cursor is advanced, so that only one node's
+	 *  results are held in memory at a time, and no more of the tree is
+	 *  traversed than is needed for the results consumed.  The cursor holds the
+	 *  tree's read lock and a read transaction until it is exhausted or closed,
+	 *  blocking writers meanwhile, and must be used and closed on the calling
+	 *  thread.  Points cannot be added or removed on a
+	 *  thread while it has a cursor open: the read lock the cursor holds cannot
+	 *  be upgraded to the write lock addPoints and removePoint take, so the
+	 *  thread deadlocks on itself.
+	 * @param TargetPoint<T> target data
+	 * @param float          radius
+	 * @return QueryCursor<T>
+	 * @throws MVPTreeException
+	 */
+	public QueryCursor<T> openCursor(TargetPoint<T> target, float radius){
+		return new TargetCursor(target, radius, Integer.MAX_VALUE, null);
+	}
+
+	/** Open a cursor over at most limit DataPoints within a given radius of a
+	 *  target.  The traversal stops, and the cursor releases its read lock and
+	 *  transaction, as soon as limit results are returned, even if the cursor
+	 *  is not closed.
+	 * @param TargetPoint<T> target data
+	 * @param float          radius
+	 * @param int            limit, max. number of results
+	 * @return QueryCursor<T>
+	 * @throws MVPTreeException
+	 */
+	public QueryCursor<T> openCursor(TargetPoint<T> target, float radius, int limit){
+		return new TargetCursor(target, radius, limit, null);
+	}
+
+	/** Open a cursor over all DataPoints within a given radius of a target,
+	 *  counting the work done by the query.  The counts are added to stats
+	 *  when the cursor is exhausted or closed, with the results counting
+	 *  those consumed.
+	 * @param TargetPoint<T> target data
+	 * @param float          radius
+	 * @param QueryStats     stats, counts of the query are added to it
+	 * @return QueryCursor<T>
+	 * @throws MVPTreeException
+	 */
+	public QueryCursor<T> openCursor(TargetPoint<T> target, float radius, QueryStats stats){
+		return new TargetCursor(target, radius, Integer.MAX_VALUE, stats);
+	}
+
+	/** Stream at most limit DataPoints within a given radius of a target.
+	 *  The stream is lazy, and the traversal stops once limit points are found.
+	 *  The stream holds the tree's read lock and a read transaction until it
+	 *  has returned all its points or is closed, so an operation that consumes
+	 *  every point, e.g. collect or count, releases them without close.  An
+	 *  operation that may stop early, e.g. findFirst or anyMatch, holds them,
+	 *  blocking writers, until the stream is closed, e.g. with
+	 *  try-with-resources.  The stream must be consumed on the calling thread.
+	 * @param TargetPoint<T> target data
+	 * @param float          radius
+	 * @param int            limit, max. number of points
+	 * @return Stream<DataPoint<T>>
+	 * @throws MVPTreeException
+	 */
+	public Stream<DataPoint<T>> streamTarget(TargetPoint<T> target, float radius, int limit){
+		QueryCursor<T> cursor = openCursor(target, radius, limit);
+		Spliterator<QueryResult<T>> spliterator = Spliterators.spliteratorUnknownSize(
+			cursor, Spliterator.ORDERED | Spliterator.NONNULL);
+		return StreamSupport.stream(spliterator, false).onClose(cursor::close).map(QueryResult::getPoint);
+	}
+
+	/** Query tree for all DataPoints within a given radius of each of a list
+	 *  of targets.  The tree is traversed once for the whole batch: each node
+	 *  visited is loaded once, and its vantage points decoded once, for all of
+	 *  the targets that reach it.
+	 * @param List<TargetPoint<T>> targets
+	 * @param float                radius
+	 * @return List<Collection<DataPoint<T>>> results for each target, in order of targets
+	 * @throws MVPTreeException
+	 */
+	public List<Collection<DataPoint<T>>> queryTargets(List<TargetPoint<T>> targets,
+													   float radius){
+		return queryTargets(targets, radius, null);
+	}
+
+	/** Query tree for all DataPoints within a given radius of each of a list
+	 *  of targets, counting the work done by the batch as a whole.
+	 * @param List<TargetPoint<T>> targets
+	 * @param float                radius
+	 * @param QueryStats           stats, counts of the batch are added to it
+	 * @return List<Collection<DataPoint<T>>> results for each target, in order of targets
+	 * @throws MVPTreeException
+	 */
+	public List<Collection<DataPoint<T>>> queryTargets(List<TargetPoint<T>> targets,
+													   float radius,
+													   QueryStats stats){
+		ArrayList<ArrayList<QueryResult<T>>> results = new ArrayList<>(targets.size());
+		ArrayList<Integer> all_targets = new ArrayList<>(targets.size());
+		for (int i=0;i < targets.size();i++){
+			results.add(new ArrayList<QueryResult<T>>());
+			all_targets.add(i);
+		}
+		QueryStats query = startQuery(targets.size());
+
+		rwlock.readLock().lock();
+		try (StorageTransaction tx = nf.getBackend().beginTx()){
+			QueryNode<T> topnode = getTopQueryNode();
+
+			Hashtable<Integer,QueryNode<T>> currentnodes = new Hashtable<>(1);
+			Hashtable<Integer,ArrayList<Integer>> currenttargets = new Hashtable<>(1);
+			Hashtable<Integer,ArrayList<float[]>> currentqpaths = new Hashtable<>(1);
+			if (topnode != null && !targets.isEmpty()){
+				ArrayList<float[]> qpaths = new ArrayList<>(targets.size());
+				for (int i=0;i < targets.size();i++) qpaths.add(newQueryPath());
+				currentnodes.put(0,topnode);
+				currenttargets.put(0, all_targets);
+				currentqpaths.put(0, qpaths);
+			}
+
+			boolean done = currentnodes.isEmpty();
+			while (!done){
+				Hashtable<Integer,QueryNode<T>> childnodes = new Hashtable<>();
+				Hashtable<Integer,ArrayList<Integer>> childtargets = new Hashtable<>();
+				Hashtable<Integer,ArrayList<float[]>> childqpaths = new Hashtable<>();
 
-			int n = 0;
-			boolean done = false;
-			do {
-				int nbnodes = (int)Math.pow(bf,n);
-				int nbchildnodes = (int)Math.pow(bf,n+nl);
-				Hashtable<Integer,MVPNode<T>> childnodes = new Hashtable<>();
-				
 				for (Enumeration<Integer> e = currentnodes.keys();e.hasMoreElements();){
 					int node_index = e.nextElement();
-					MVPNode<T> mvpnode = currentnodes.get(node_index);
-					int numvps = mvpnode.getNumVantagePoints();
+					QueryNode<T> pending = currentnodes.get(node_index);
+					MVPNode<T> mvpnode = pending.node;
+					ArrayList<Integer> target_indices = currenttargets.get(node_index);
+					ArrayList<float[]> target_qpaths = currentqpaths.get(node_index);
 					if (MVPInternal.class.isInstance(mvpnode)){
-						MVPInternal<T> internal = (MVPInternal<T>)mvpnode;
-						selectChildNodesToQuery(internal, target, childnodes,
-												node_index, results, radius);
+						selectChildNodesToQuery(pending, targets, target_indices, target_qpaths,
+												childnodes, childtargets, childqpaths,
+												node_index, results, radius, query);
 					} else if (MVPLeaf.class.isInstance(mvpnode)){
 						MVPLeaf<T> leaf = (MVPLeaf<T>)mvpnode;
-						leaf.filterDataPoints(target, results, radius, metric, nf);
+						leaf.filterDataPoints(targets, target_indices, target_qpaths,
+											  results, radius, metric, nf, query);
 					} else {
 						throw new MVPNodeException("unrecognized node type");
 					}
 				}
 				currentnodes = childnodes;
-				n += nl;
+				currenttargets = childtargets;
+				currentqpaths = childqpaths;
 				if (childnodes.isEmpty())
 					done = true;
-			} while (!done);
+			}
+			tx.success();
+		} catch (Exception ex) {
+			throw new MVPTreeException("Unable to query batch", ex);
+		} finally {
+			rwlock.readLock().unlock();
+		}
+		ArrayList<Collection<DataPoint<T>>> points = new ArrayList<>(results.size());
+		for (ArrayList<QueryResult<T>> target_results : results){
+			points.add(getPoints(target_results));
+			query.n_results += target_results.size();
+		}
+		finishQuery(query, stats);
+		return points;
+	}
+
+	/* Calculate lower bounds on the distance from target to the points in each child
+	 * of an internal node and queue the children that may hold one of the k nearest
+	 * points.  At each level, a child slice (m[j-1], m[j]] of the vantage point's
+	 * distances cannot contain a point closer than max(m[j-1] - d, d - m[j]),
+	 * and a child's bound is never less than its parent slice's bound.
+	 * Vantage points are offered as candidates along the way.
+	 */
+	private void selectChildNodesByBound(QueryNode<T> next,
+										 TargetPoint<T> target,
+										 PriorityQueue<QueryNode<T>> pending,
+										 PriorityQueue<QueryResult<T>> nearest,
+										 int k,
+										 QueryStats stats){
+		SkeletonNode<T> skel = getSkeletonNode(next);
+		stats.n_internal++;
+		int bf = nf.getBranchFactor();
+		int lengthM = bf - 1;
+		int nl = nf.getNumLevelsPerNode();
+		int fanout = (int)Math.pow(bf,nl);
+		int n = 0;
+
+		float[] distances = new float[nl];
+		float[] current_bounds = { next.bound };
+		do {
+			int nbnodes = (int)Math.pow(bf, n);
+			int nbchildnodes = (int)Math.pow(bf, n+1);
+			float[] child_bounds = new float[nbchildnodes];
+			Arrays.fill(child_bounds, Float.POSITIVE_INFINITY);
+
+			DataPoint<T> vp = skel.vps[n];
+			float distance = (float)metric.primitiveDistance(skel.vpdata[n], target);
+			stats.n_distances++;
+			if (skel.active[n])
+				QueryResult.offer(nearest, k, vp, distance);
+			distances[n] = distance;
 
-			// results = sortResults(target, results);
+			int lengthMn = lengthM*nbnodes;
+			float[] msplits = skel.splits[n];
+			if (lengthMn != msplits.length)
+				throw new MVPNodeException("inconsistent splits array length");
+
+			for (int node_index=0;node_index < nbnodes;node_index++){
+				float b = current_bounds[node_index];
+				if (b != Float.POSITIVE_INFINITY && msplits[node_index*lengthM] >= 0){
+					for (int j=0;j < bf;j++){
+						float lo = (j > 0) ? msplits[node_index*lengthM+j-1] : 0.0f;
+						float hi = (j < lengthM) ? msplits[node_index*lengthM+j] : Float.MAX_VALUE;
+						child_bounds[node_index*bf+j] = Math.max(b, Math.max(lo - distance, distance - hi));
+					}
+				}
+			}
+			current_bounds = child_bounds;
+			n++;
+		} while (n < nl);
+
+		float radius = QueryResult.radius(nearest, k);
+		float[] childpath = extendQueryPath(next.qpath, next.level, distances);
+		for (int i=0;i < fanout;i++){
+			if (current_bounds[i] <= radius){
+				QueryNode<T> child = getChildQueryNode(next, skel, i, childpath, current_bounds[i]);
+				if (child != null){
+					pending.add(child);
+				}
+			}
+		}
+	}
+
+	/** Query tree for the k nearest DataPoints to a target.
+	 *  Nodes are visited in order of their lower bound distance to the target,
+	 *  and the search radius shrinks to the distance of the kth nearest point
+	 *  found so far, so that the traversal stops as soon as no unvisited node
+	 *  can hold a closer point.
+	 * @param TargetPoint<T> target data
+	 * @param int            k, number of nearest points to find
+	 * @return Collection<DataPoint<T>> points in order of increasing distance
+	 * @throws MVPTreeException
+	 */
+	public Collection<DataPoint<T>> queryNearest(TargetPoint<T> target, int k){
+		return queryNearest(target, k, null);
+	}
+
+	/** Query tree for the k nearest DataPoints to a target, counting the
+	 *  work done by the query.
+	 * @param TargetPoint<T> target data
+	 * @param int            k, number of nearest points to find
+	 * @param QueryStats     stats, counts of the query are added to it
+	 * @return Collection<DataPoint<T>> points in order of increasing distance
+	 * @throws MVPTreeException
+	 */
+	public Collection<DataPoint<T>> queryNearest(TargetPoint<T> target, int k, QueryStats stats){
+		if (k <= 0)
+			throw new IllegalArgumentException("k <= 0");
+
+		PriorityQueue<QueryResult<T>> nearest = new PriorityQueue<>(k, QueryResult.farthestFirst());
+		QueryStats query = startQuery(1);
+
+		rwlock.readLock().lock();
+		try (StorageTransaction tx = nf.getBackend().beginTx()){
+			QueryNode<T> topnode = getTopQueryNode();
+
+			PriorityQueue<QueryNode<T>> pending = new PriorityQueue<>(
+				(a, b) -> Float.compare(a.bound, b.bound));
+			if (topnode != null) pending.add(topnode);
+
+			while (!pending.isEmpty()){
+				QueryNode<T> next = pending.poll();
+				if (next.bound > QueryResult.radius(nearest, k))
+					break;
+				MVPNode<T> mvpnode = next.node;
+				if (MVPInternal.class.isInstance(mvpnode)){
+					selectChildNodesByBound(next, target, pending, nearest, k, query);
+				} else if (MVPLeaf.class.isInstance(mvpnode)){
+					MVPLeaf<T> leaf = (MVPLeaf<T>)mvpnode;
+					leaf.nearestDataPoints(target, next.qpath, nearest, k, metric, nf, query);
+				} else {
+					throw new MVPNodeException("unrecognized node type");
+				}
+			}
 			tx.success();
 		} catch (Exception ex) {
-			throw new MVPTreeException("Unable to query", ex);
+			throw new MVPTreeException("Unable to query nearest", ex);
+		} finally {
+			rwlock.readLock().unlock();
+		}
+		query.n_results = nearest.size();
+		finishQuery(query, stats);
+
+		ArrayList<DataPoint<T>> results = new ArrayList<>(nearest.size());
+		while (!nearest.isEmpty()){
+			results.add(nearest.poll().getPoint());
 		}
+		Collections.reverse(results);
 		return results;
 	}
 }
-	
+
@@ -0,0 +1,809 @@
+package org.phash.mvp;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * <h1>MappedBackend</h1>
+ * StorageBackend persisted to a single append-only file, memory-mapped
+ * in fixed size segments, so the OS page cache, rather than a database
+ * page cache, keeps the file resident.  The file is a checkpoint of the
+ * whole graph followed by a log of the changes made since.  Every change
+ * is appended as a record tagged with its transaction, while the graph
+ * itself is held as in HeapBackend, except that primitive array
+ * properties - data, paths, splits and ids - are held as references into
+ * the mapped file, and decoded from it on each access.
+ * A transaction that closes with success appends a commit record.  The
+ * records of a transaction take effect when the file is next opened only
+ * if its commit record follows them, so a transaction rolled back, or
+ * cut short by a crash, leaves nothing behind but dead records.  Opening
+ * the file replays the checkpoint and the committed records of the log
+ * without reading arrays, in time in proportion to the nodes of the graph
+ * and the changes since the checkpoint, not to the size of the data.
+ * The nodes, with their relationships, labels and the point index, are
+ * rebuilt on the heap rather than read in place, as reading them in place
+ * would take an on-disk store of nodes and relationships, indexed by id, in
+ * place of this log, so opening a large tree takes seconds, not milliseconds.
+ * Rewritten properties append a new value, so the log grows with each
+ * change; checkpoint() rewrites the file as a checkpoint of the graph
+ * alone, as shutdown() does once the log has outgrown the last one.
+ * @author dgs
+ * @version 0.1
+ */
+public class MappedBackend extends HeapBackend {
+
+	/* default size of each mapped segment of file */
+	protected static final int DefaultSegmentSize = 64*1024*1024;
+
+	private static final int Magic = 0x4d56504d;  /* "MVPM" */
+	private static final int Version = 2;
+	private static final int HeaderSize = 24;
+
+	/* state in header, set to Closed on shutdown */
+	private static final int StateOffset = 8;
+	private static final int Open = 0;
+	private static final int Closed = 1;
+
+	/* end of checkpoint in header, where the log starts */
+	private static final int CheckpointOffset = 16;
+
+	/* min. size of file that shutdown() checkpoints */
+	private static final long MinCheckpointSize = 1024*1024;
+
+	/* size of record length and transaction id before each record */
+	private static final int RecordHeaderSize = 12;
+
+	/* transaction id of records that take effect without a commit record,
+	 * those of a checkpoint or of changes made outside of any transaction */
+	private static final long AutoCommit = 0;
+
+	/* record lengths marking the end of file and a skip to the next segment */
+	private static final int EndMarker = 0;
+	private static final int SkipMarker = -1;
+
+	/* record types */
+	private static final byte CreateNodeOp = 1;
+	private static final byte DeleteNodeOp = 2;
+	private static final byte SetPropertyOp = 3;
+	private static final byte RemovePropertyOp = 4;
+	private static final byte AddLabelOp = 5;
+	private static final byte RemoveLabelOp = 6;
+	private static final byte CreateRelationshipOp = 7;
+	private static final byte DeleteRelationshipOp = 8;
+	private static final byte SetRelationshipPropertyOp = 9;
+	private static final byte IndexPointOp = 10;
+	private static final byte UnindexPointOp = 11;
+	private static final byte ClearIndexOp = 12;
+	private static final byte CommitOp = 13;
+
+	/* value types */
+	private static final byte BooleanType = 1;
+	private static final byte ByteType = 2;
+	private static final byte ShortType = 3;
+	private static final byte IntType = 4;
+	private static final byte LongType = 5;
+	private static final byte FloatType = 6;
+	private static final byte DoubleType = 7;
+	private static final byte StringType = 8;
+	private static final byte ByteArrayType = 16;
+	private static final byte ShortArrayType = 17;
+	private static final byte IntArrayType = 18;
+	private static final byte LongArrayType = 19;
+	private static final byte FloatArrayType = 20;
+	private static final byte DoubleArrayType = 21;
+
+	private static final MVPRelationshipTypes[] RelationshipTypes = MVPRelationshipTypes.values();
+
+	private final String filename;
+	private final int segment_size;
+	private RandomAccessFile file = null;
+	private FileChannel channel = null;
+	private final ArrayList<MappedByteBuffer> segments = new ArrayList<>();
+
+	/* flushes and closes the file if the JVM exits while it is open,
+	 * registered only meanwhile, so a closed backend is not kept reachable */
+	private Thread shutdown_hook = null;
+
+	/* position in file of next record */
+	private long position;
+
+	/* end of checkpoint in file */
+	private long checkpoint_end;
+
+	/* true while records are replayed, so they are not appended again */
+	private boolean replaying = false;
+
+	/* true while a checkpoint is written, so its records need no commit */
+	private boolean checkpointing = false;
+
+	/* max. ids of nodes, relationships and transactions replayed */
+	private long max_node_id, max_rel_id, max_tx_id;
+
+	/** Constructor
+	 *  Opens the file, creating it if it does not exist.
+	 * @param String filename
+	 **/
+	public MappedBackend(String filename){
+		this(filename, DefaultSegmentSize);
+	}
+
+	/** Constructor
+	 *  Opens the file, creating it if it does not exist.
+	 * @param String filename
+	 * @param int    size of each mapped segment of file in bytes, a multiple of 8.
+	 *               Every record must fit in a segment.
+	 **/
+	public MappedBackend(String filename, int segmentsize){
+		if (filename == null) throw new NullPointerException("filename is null");
+		if (segmentsize < 64 || segmentsize % 8 != 0)
+			throw new IllegalArgumentException("segment size < 64 or not a multiple of 8");
+		this.filename = filename;
+		this.segment_size = segmentsize;
+		init();
+	}
+
+	/** Get the file name
+	 * @return String
+	 **/
+	public String getFileName(){
+		return filename;
+	}
+
+	/** Get the no. bytes of records written to the file
+	 * @return long
+	 **/
+	public synchronized long getSize(){
+		return position;
+	}
+
+	/** Get the no. bytes of the file taken by its checkpoint
+	 * @return long
+	 **/
+	public synchronized long getCheckpointSize(){
+		return checkpoint_end;
+	}
+
+	@Override
+	public synchronized void init(){
+		if (channel != null)
+			return;
+		try {
+			File f = new File(filename);
+			File dir = f.getAbsoluteFile().getParentFile();
+			if (dir != null && !dir.exists()) dir.mkdirs();
+			file = new RandomAccessFile(f, "rw");
+			channel = file.getChannel();
+			long length = channel.size();
+			int nsegments = (int)((length + segment_size - 1)/segment_size);
+			for (int i=0;i < Math.max(nsegments, 1);i++){
+				segments.add(channel.map(FileChannel.MapMode.READ_WRITE, (long)i*segment_size, segment_size));
+			}
+			MappedByteBuffer first = segments.get(0);
+			if (length == 0 || first.getInt(0) == 0){
+				writeHeader(first);
+			} else if (first.getInt(0) != Magic){
+				throw new MVPTreeException("not an mvptree file: " + filename);
+			} else if (first.getInt(4) != Version){
+				throw new MVPTreeException("unsupported version " + first.getInt(4) + " of mvptree file: " + filename);
+			}
+			checkpoint_end = first.getLong(CheckpointOffset);
+			reset();
+			replay();
+			int seg = (int)(position/segment_size);
+			if (first.getInt(StateOffset) != Closed && seg < segments.size()){
+				/* not shut down, so clear any incomplete record left at the end */
+				ByteBuffer last = segments.get(seg);
+				for (int i=(int)(position%segment_size);i < segment_size;i += 8)
+					last.putLong(i, 0L);
+			}
+			first.putInt(StateOffset, Open);
+		} catch (IOException ex){
+			MVPTreeException failure = new MVPTreeException("unable to open " + filename + ": " + ex.getMessage());
+			closeAfterFailure(failure);
+			throw failure;
+		} catch (RuntimeException ex){
+			closeAfterFailure(ex);
+			throw ex;
+		}
+		shutdown_hook = new Thread(this::release, "mvptree-mapped-shutdown");
+		Runtime.getRuntime().addShutdownHook(shutdown_hook);
+	}
+
+	@Override
+	public synchronized void shutdown(){
+		if (channel == null)
+			return;
+		try {
+			if (position > MinCheckpointSize && position > 2*checkpoint_end)
+				checkpoint();
+		} finally {
+			try {
+				release();
+			} finally {
+				reset();
+			}
+		}
+	}
+
+	/* Flush and close the file, marked as shut down, and remove the shutdown
+	 * hook, unless running in it. */
+	private synchronized void release(){
+		if (channel == null)
+			return;
+		try {
+			if (shutdown_hook != null)
+				Runtime.getRuntime().removeShutdownHook(shutdown_hook);
+		} catch (IllegalStateException ex){
+			/* the JVM is exiting, and running the hook */
+		}
+		shutdown_hook = null;
+		for (MappedByteBuffer segment : segments){
+			segment.force();
+		}
+		segments.get(0).putInt(StateOffset, Closed);
+		segments.get(0).force();
+		try {
+			close();
+		} catch (IOException ex){
+			throw new MVPTreeException("unable to close " + filename + ": " + ex.getMessage());
+		}
+	}
+
+	private static void writeHeader(ByteBuffer first){
+		first.putInt(0, Magic);
+		first.putInt(4, Version);
+		first.putInt(StateOffset, Closed);
+		first.putLong(CheckpointOffset, HeaderSize);
+	}
+
+	/** Rewrite the file as a checkpoint of the graph alone, without the
+	 *  dead records of rewritten properties, deleted nodes and transactions
+	 *  not committed, so that it opens in time in proportion to the graph.
+	 *  The checkpoint is written to a new file, which then replaces the old
+	 *  one.  The graph must not be changed meanwhile, e.g. for a tree, call
+	 *  it while no points are added or removed.
+	 * @return void
+	 * @throws MVPTreeException
+	 **/
+	public synchronized void checkpoint(){
+		if (channel == null)
+			throw new MVPTreeException("file not open: " + filename);
+		File tmpfile = new File(filename + ".tmp");
+		RandomAccessFile oldfile = file;
+		FileChannel oldchannel = channel;
+		ArrayList<MappedByteBuffer> oldsegments = new ArrayList<>(segments);
+		long oldposition = position;
+		try {
+			file = new RandomAccessFile(tmpfile, "rw");
+			file.setLength(0);
+			channel = file.getChannel();
+			segments.clear();
+			segments.add(channel.map(FileChannel.MapMode.READ_WRITE, 0, segment_size));
+			writeHeader(segments.get(0));
+			segments.get(0).putInt(StateOffset, Open);
+			position = HeaderSize;
+			checkpointing = true;
+			try {
+				rewriteGraph();
+			} finally {
+				checkpointing = false;
+			}
+			segments.get(0).putLong(CheckpointOffset, position);
+			for (MappedByteBuffer segment : segments){
+				segment.force();
+			}
+			Files.move(tmpfile.toPath(), new File(filename).toPath(),
+					   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException|RuntimeException ex){
+			/* values rewritten so far refer to the new file, which stays mapped, and
+			 * hold the same as the records of the old one, which is kept */
+			closeAfterFailure(ex);
+			tmpfile.delete();
+			file = oldfile;
+			channel = oldchannel;
+			segments.addAll(oldsegments);
+			position = oldposition;
+			if (ex instanceof RuntimeException)
+				throw (RuntimeException)ex;
+			throw new MVPTreeException("unable to checkpoint " + filename + ": " + ex.getMessage());
+		}
+		checkpoint_end = position;
+		try {
+			oldfile.close();
+		} catch (IOException ex){
+			throw new MVPTreeException("checkpoint written, but unable to close replaced file "
+									   + filename + ": " + ex.getMessage());
+		}
+	}
+
+	/* Unmap and close the file, which is left closed even if closing fails. */
+	private void close() throws IOException {
+		segments.clear();
+		try {
+			if (file != null) file.close();
+		} finally {
+			file = null;
+			channel = null;
+		}
+	}
+
+	/* Close the file after a failure, adding a failure to close to it. */
+	private void closeAfterFailure(Exception failure){
+		try {
+			close();
+		} catch (IOException ex){
+			failure.addSuppressed(ex);
+		}
+	}
+
+	/* Replay the records of the file, to restore its graph: those of the
+	 * checkpoint, and those of each transaction of the log once its commit
+	 * record is reached, so that transactions are applied in the order they
+	 * committed, and those of transactions never committed are dropped. */
+	private void replay(){
+		replaying = true;
+		max_node_id = -1;
+		max_rel_id = -1;
+		max_tx_id = 0;
+		HashMap<Long,ArrayList<ByteBuffer>> pending = new HashMap<>();
+		try {
+			position = HeaderSize;
+			while (true){
+				int seg = (int)(position/segment_size);
+				int offset = (int)(position%segment_size);
+				if (offset == 0 && seg >= segments.size())
+					break;
+				ByteBuffer buf = segments.get(seg).duplicate();
+				int length = buf.getInt(offset);
+				if (length == SkipMarker){
+					position = (long)(seg + 1)*segment_size;
+					continue;
+				}
+				if (length < RecordHeaderSize - 4 || offset + 4 + length > segment_size)
+					break;
+				long txid = buf.getLong(offset + 4);
+				buf.position(offset + RecordHeaderSize);
+				buf.limit(offset + 4 + length);
+				if (txid == AutoCommit){
+					apply(buf);
+				} else if (buf.get(buf.position()) == CommitOp){
+					ArrayList<ByteBuffer> records = pending.remove(txid);
+					if (records != null){
+						for (ByteBuffer record : records) apply(record);
+					}
+				} else {
+					pending.computeIfAbsent(txid, id -> new ArrayList<>()).add(buf);
+				}
+				max_tx_id = Math.max(max_tx_id, txid);
+				position += align(4 + length);
+			}
+			setNextIds(max_node_id + 1, max_rel_id + 1);
+			setNextTransactionId(max_tx_id + 1);
+		} finally {
+			replaying = false;
+		}
+	}
+
+	/* Apply a record to the graph. */
+	private void apply(ByteBuffer buf){
+		byte op = buf.get();
+		switch (op){
+		case CreateNodeOp: {
+			long id = buf.getLong();
+			setNextIds(id, max_rel_id + 1);
+			createNode();
+			max_node_id = Math.max(max_node_id, id);
+			break;
+		}
+		case DeleteNodeOp:
+			getNodeById(buf.getLong()).delete();
+			break;
+		case SetPropertyOp: {
+			StorageNode node = getNodeById(buf.getLong());
+			String key = readString(buf);
+			node.setProperty(key, readValue(buf));
+			break;
+		}
+		case RemovePropertyOp: {
+			StorageNode node = getNodeById(buf.getLong());
+			node.removeProperty(readString(buf));
+			break;
+		}
+		case AddLabelOp: {
+			StorageNode node = getNodeById(buf.getLong());
+			node.addLabel(readString(buf));
+			break;
+		}
+		case RemoveLabelOp: {
+			StorageNode node = getNodeById(buf.getLong());
+			node.removeLabel(readString(buf));
+			break;
+		}
+		case CreateRelationshipOp: {
+			long relid = buf.getLong();
+			StorageNode start = getNodeById(buf.getLong());
+			StorageNode end = getNodeById(buf.getLong());
+			setNextIds(max_node_id + 1, relid);
+			start.createRelationshipTo(end, RelationshipTypes[buf.get()]);
+			max_rel_id = Math.max(max_rel_id, relid);
+			break;
+		}
+		case DeleteRelationshipOp: {
+			long relid = buf.getLong();
+			getRelationship(relid, buf.getLong()).delete();
+			break;
+		}
+		case SetRelationshipPropertyOp: {
+			long relid = buf.getLong();
+			StorageRelationship rel = getRelationship(relid, buf.getLong());
+			String key = readString(buf);
+			rel.setProperty(key, readValue(buf));
+			break;
+		}
+		case IndexPointOp: {
+			StorageNode node = getNodeById(buf.getLong());
+			indexPoint(node, readString(buf));
+			break;
+		}
+		case UnindexPointOp: {
+			StorageNode node = getNodeById(buf.getLong());
+			unindexPoint(node, readString(buf));
+			break;
+		}
+		case ClearIndexOp:
+			clearPointIndex();
+			break;
+		default:
+			throw new MVPTreeException("corrupt file " + filename + ": record type " + op);
+		}
+	}
+
+	private static long align(long n){
+		return (n + 7) & ~7L;
+	}
+
+	/* Reserve space for a record with a body of length bytes, of the transaction
+	 * of the current thread, and return a buffer positioned at its body.  The
+	 * record is complete once complete() is called. */
+	private ByteBuffer reserve(int length){
+		if (channel == null)
+			throw new MVPTreeException("file not open: " + filename);
+		length += RecordHeaderSize - 4;
+		if (4 + length > segment_size)
+			throw new MVPTreeException("record of " + length + " bytes exceeds segment size");
+		int offset = (int)(position%segment_size);
+		if (offset + 4 + length > segment_size){
+			segments.get((int)(position/segment_size)).putInt(offset, SkipMarker);
+			position = (position/segment_size + 1)*segment_size;
+			offset = 0;
+		}
+		int seg = (int)(position/segment_size);
+		try {
+			while (seg >= segments.size()){
+				segments.add(channel.map(FileChannel.MapMode.READ_WRITE,
+										 (long)segments.size()*segment_size, segment_size));
+			}
+		} catch (IOException ex){
+			throw new MVPTreeException("unable to extend " + filename + ": " + ex.getMessage());
+		}
+		ByteBuffer buf = segments.get(seg).duplicate();
+		buf.putLong(offset + 4, checkpointing ? AutoCommit : getTransactionId());
+		buf.position(offset + RecordHeaderSize);
+		buf.limit(offset + 4 + length);
+		return buf;
+	}
+
+	/* Complete the record reserved at the current position, by writing its length last. */
+	private void complete(ByteBuffer buf){
+		int offset = (int)(position%segment_size);
+		int length = buf.limit() - offset - 4;
+		if (buf.hasRemaining())
+			throw new IllegalStateException("record length mismatch");
+		segments.get((int)(position/segment_size)).putInt(offset, length);
+		position += align(4 + length);
+	}
+
+	private synchronized void append(byte op, long id){
+		if (replaying) return;
+		ByteBuffer buf = reserve(9);
+		buf.put(op).putLong(id);
+		complete(buf);
+	}
+
+	private synchronized void append(byte op, long id, String str){
+		if (replaying) return;
+		byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer buf = reserve(13 + bytes.length);
+		buf.put(op).putLong(id).putInt(bytes.length).put(bytes);
+		complete(buf);
+	}
+
+	/* Append a property record, returning the value to hold. */
+	private synchronized Object append(byte op, long id, long startid, String key, Object value){
+		if (replaying) return value;
+		byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+		int head = 1 + 8 + (op == SetRelationshipPropertyOp ? 8 : 0) + 4 + bytes.length;
+		ByteBuffer buf = reserve(head + sizeOf(value));
+		buf.put(op).putLong(id);
+		if (op == SetRelationshipPropertyOp) buf.putLong(startid);
+		buf.putInt(bytes.length).put(bytes);
+		Object held = writeValue(buf, value);
+		complete(buf);
+		return held;
+	}
+
+	@Override
+	protected void nodeCreated(long nodeid){
+		append(CreateNodeOp, nodeid);
+	}
+
+	@Override
+	protected void nodeDeleted(long nodeid){
+		append(DeleteNodeOp, nodeid);
+	}
+
+	@Override
+	protected Object nodePropertySet(long nodeid, String key, Object value){
+		return append(SetPropertyOp, nodeid, 0, key, value);
+	}
+
+	@Override
+	protected void nodePropertyRemoved(long nodeid, String key){
+		append(RemovePropertyOp, nodeid, key);
+	}
+
+	@Override
+	protected void labelAdded(long nodeid, String label){
+		append(AddLabelOp, nodeid, label);
+	}
+
+	@Override
+	protected void labelRemoved(long nodeid, String label){
+		append(RemoveLabelOp, nodeid, label);
+	}
+
+	@Override
+	protected synchronized void relationshipCreated(long relid, long startid, long endid, MVPRelationshipTypes type){
+		if (replaying) return;
+		ByteBuffer buf = reserve(26);
+		buf.put(CreateRelationshipOp).putLong(relid).putLong(startid).putLong(endid).put((byte)type.ordinal());
+		complete(buf);
+	}
+
+	@Override
+	protected synchronized void relationshipDeleted(long relid, long startid){
+		if (replaying) return;
+		ByteBuffer buf = reserve(17);
+		buf.put(DeleteRelationshipOp).putLong(relid).putLong(startid);
+		complete(buf);
+	}
+
+	@Override
+	protected Object relationshipPropertySet(long relid, long startid, String key, Object value){
+		return append(SetRelationshipPropertyOp, relid, startid, key, value);
+	}
+
+	@Override
+	protected void pointIndexed(long nodeid, String id){
+		append(IndexPointOp, nodeid, id);
+	}
+
+	@Override
+	protected void pointUnindexed(long nodeid, String id){
+		append(UnindexPointOp, nodeid, id);
+	}
+
+	@Override
+	protected synchronized void pointIndexCleared(){
+		if (replaying) return;
+		ByteBuffer buf = reserve(1);
+		buf.put(ClearIndexOp);
+		complete(buf);
+	}
+
+	@Override
+	protected synchronized void transactionCommitted(long txid){
+		if (replaying) return;
+		ByteBuffer buf = reserve(1);
+		buf.put(CommitOp);
+		complete(buf);
+	}
+
+	@Override
+	protected Object resolve(Object value){
+		if (value instanceof MappedArray)
+			return ((MappedArray)value).read();
+		return super.resolve(value);
+	}
+
+	/* encoded size of a value, with its type */
+	private static int sizeOf(Object value){
+		if (value instanceof Boolean || value instanceof Byte) return 2;
+		if (value instanceof Short) return 3;
+		if (value instanceof Integer || value instanceof Float) return 5;
+		if (value instanceof Long || value instanceof Double) return 9;
+		if (value instanceof String) return 5 + ((String)value).getBytes(StandardCharsets.UTF_8).length;
+		if (value instanceof byte[]) return 5 + ((byte[])value).length;
+		if (value instanceof short[]) return 5 + 2*((short[])value).length;
+		if (value instanceof int[]) return 5 + 4*((int[])value).length;
+		if (value instanceof long[]) return 5 + 8*((long[])value).length;
+		if (value instanceof float[]) return 5 + 4*((float[])value).length;
+		if (value instanceof double[]) return 5 + 8*((double[])value).length;
+		if (value instanceof MappedArray) return 5 + ((MappedArray)value).size();
+		throw new MVPTreeException("unsupported property type " + value.getClass().getName());
+	}
+
+	/* Write a value with its type, returning the value to hold: a reference
+	 * into the file for primitive arrays, else the value itself. */
+	private static Object writeValue(ByteBuffer buf, Object value){
+		if (value instanceof Boolean){
+			buf.put(BooleanType).put((byte)((Boolean)value ? 1 : 0));
+		} else if (value instanceof Byte){
+			buf.put(ByteType).put((Byte)value);
+		} else if (value instanceof Short){
+			buf.put(ShortType).putShort((Short)value);
+		} else if (value instanceof Integer){
+			buf.put(IntType).putInt((Integer)value);
+		} else if (value instanceof Long){
+			buf.put(LongType).putLong((Long)value);
+		} else if (value instanceof Float){
+			buf.put(FloatType).putFloat((Float)value);
+		} else if (value instanceof Double){
+			buf.put(DoubleType).putDouble((Double)value);
+		} else if (value instanceof String){
+			byte[] bytes = ((String)value).getBytes(StandardCharsets.UTF_8);
+			buf.put(StringType).putInt(bytes.length).put(bytes);
+		} else {
+			int start = buf.position();
+			if (value instanceof byte[]){
+				byte[] array = (byte[])value;
+				buf.put(ByteArrayType).putInt(array.length).put(array);
+			} else if (value instanceof short[]){
+				short[] array = (short[])value;
+				buf.put(ShortArrayType).putInt(array.length);
+				buf.asShortBuffer().put(array);
+			} else if (value instanceof int[]){
+				int[] array = (int[])value;
+				buf.put(IntArrayType).putInt(array.length);
+				buf.asIntBuffer().put(array);
+			} else if (value instanceof long[]){
+				long[] array = (long[])value;
+				buf.put(LongArrayType).putInt(array.length);
+				buf.asLongBuffer().put(array);
+			} else if (value instanceof float[]){
+				float[] array = (float[])value;
+				buf.put(FloatArrayType).putInt(array.length);
+				buf.asFloatBuffer().put(array);
+			} else if (value instanceof double[]){
+				double[] array = (double[])value;
+				buf.put(DoubleArrayType).putInt(array.length);
+				buf.asDoubleBuffer().put(array);
+			} else if (value instanceof MappedArray){
+				/* copied from file to file, e.g. by a checkpoint */
+				MappedArray array = (MappedArray)value;
+				buf.put(array.type).putInt(array.length);
+				buf.put(array.view());
+			} else {
+				throw new MVPTreeException("unsupported property type " + value.getClass().getName());
+			}
+			buf.position(start);
+			return readValue(buf);
+		}
+		return value;
+	}
+
+	/* Read a value with its type, leaving a primitive array in the file. */
+	private static Object readValue(ByteBuffer buf){
+		byte type = buf.get();
+		switch (type){
+		case BooleanType: return buf.get() != 0;
+		case ByteType: return buf.get();
+		case ShortType: return buf.getShort();
+		case IntType: return buf.getInt();
+		case LongType: return buf.getLong();
+		case FloatType: return buf.getFloat();
+		case DoubleType: return buf.getDouble();
+		case StringType: return readString(buf);
+		case ByteArrayType:
+		case ShortArrayType:
+		case IntArrayType:
+		case LongArrayType:
+		case FloatArrayType:
+		case DoubleArrayType: {
+			int length = buf.getInt();
+			MappedArray array = new MappedArray(buf, buf.position(), type, length);
+			buf.position(buf.position() + length*MappedArray.elementSize(type));
+			return array;
+		}
+		default:
+			throw new MVPTreeException("corrupt file: value type " + type);
+		}
+	}
+
+	private static String readString(ByteBuffer buf){
+		byte[] bytes = new byte[buf.getInt()];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/* primitive array property held in the mapped file, read on each access */
+	private static class MappedArray {
+		private final ByteBuffer segment;
+		private final int offset;
+		private final byte type;
+		private final int length;
+
+		MappedArray(ByteBuffer segment, int offset, byte type, int length){
+			this.segment = segment;
+			this.offset = offset;
+			this.type = type;
+			this.length = length;
+		}
+
+		static int elementSize(byte type){
+			switch (type){
+			case ByteArrayType: return 1;
+			case ShortArrayType: return 2;
+			case IntArrayType: case FloatArrayType: return 4;
+			default: return 8;
+			}
+		}
+
+		int size(){
+			return length*elementSize(type);
+		}
+
+		/* view of the array in the file */
+		ByteBuffer view(){
+			ByteBuffer buf = segment.duplicate();
+			buf.limit(offset + size());
+			buf.position(offset);
+			return buf;
+		}
+
+		Object read(){
+			ByteBuffer buf = view();
+			switch (type){
+			case ByteArrayType: {
+				byte[] array = new byte[length];
+				buf.get(array);
+				return array;
+			}
+			case ShortArrayType: {
+				short[] array = new short[length];
+				buf.asShortBuffer().get(array);
+				return array;
+			}
+			case IntArrayType: {
+				int[] array = new int[length];
+				buf.asIntBuffer().get(array);
+				return array;
+			}
+			case LongArrayType: {
+				long[] array = new long[length];
+				buf.asLongBuffer().get(array);
+				return array;
+			}
+			case FloatArrayType: {
+				float[] array = new float[length];
+				buf.asFloatBuffer().get(array);
+				return array;
+			}
+			default: {
+				double[] array = new double[length];
+				buf.asDoubleBuffer().get(array);
+				return array;
+			}
+			}
+		}
+	}
+}
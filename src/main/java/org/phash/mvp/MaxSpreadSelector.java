@@ -0,0 +1,79 @@
+package org.phash.mvp;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Vantage point selection of points spread far apart: farthest point
+ * selection over a random sample of the candidates.  The first vantage
+ * point is the sampled point farthest from a random sampled point, and
+ * each later one the sampled point farthest from those already chosen,
+ * by its least distance to them.  Costs no more than numvps*samplesize
+ * distance calculations.  The random choices for a node are derived from
+ * the seed and the node's points, as in RandomSelector.
+ *
+ * @author dgs
+ * @version 0.1
+ **/
+
+public class MaxSpreadSelector<T extends Number> implements VantagePointSelector<T> {
+
+	/** Default no. candidates sampled */
+	public static final int DefaultSampleSize = 64;
+
+	private final int samplesize;
+	private final long seed;
+
+	/** Constructor **/
+	public MaxSpreadSelector(){
+		this(DefaultSampleSize, new Random().nextLong());
+	}
+
+	/** Constructor
+	 * @param int  samplesize, no. candidates sampled
+	 * @param long seed of random numbers
+	 **/
+	public MaxSpreadSelector(int samplesize, long seed){
+		if (samplesize <= 0)
+			throw new IllegalArgumentException("samplesize <= 0");
+		this.samplesize = samplesize;
+		this.seed = seed;
+	}
+
+	@Override
+	public int[] select(List<? extends DataObject<T>> points, int numvps, MetricDistance<T> metric){
+		int[] vps = new int[numvps];
+		if (numvps == 0)
+			return vps;
+		Random rnd = RandomSelector.random(seed, points);
+		int[] sample = RandomSelector.sample(rnd, points.size(), Math.max(samplesize, numvps));
+
+		/* least distance of each sampled point to the vantage points chosen, -1 once chosen */
+		double[] mindists = new double[sample.length];
+		DataObject<T> start = points.get(sample[rnd.nextInt(sample.length)]);
+		for (int i=0;i < sample.length;i++){
+			mindists[i] = metric.primitiveDistance(start, points.get(sample[i]));
+		}
+		for (int n=0;n < numvps;n++){
+			int farthest = 0;
+			for (int i=1;i < sample.length;i++){
+				if (mindists[i] > mindists[farthest]) farthest = i;
+			}
+			vps[n] = sample[farthest];
+			if (n == 0)
+				Arrays.fill(mindists, Double.MAX_VALUE);
+			mindists[farthest] = -1;
+			if (n + 1 < numvps){
+				DataObject<T> vp = points.get(vps[n]);
+				for (int i=0;i < sample.length;i++){
+					if (mindists[i] < 0)
+						continue;
+					double d = metric.primitiveDistance(vp, points.get(sample[i]));
+					if (d < mindists[i]) mindists[i] = d;
+				}
+			}
+		}
+		return vps;
+	}
+}
@@ -0,0 +1,86 @@
+package org.phash.mvp;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Vantage point selection of the points whose distances to the others
+ * vary most, so that splits at their distances divide the points well.
+ * Of a random sample of candidates, the vantage points are those with
+ * the greatest variance of distances to a second random sample of the
+ * points, in order of decreasing variance.  Costs no more than
+ * ncandidates*samplesize distance calculations.  The random choices for
+ * a node are derived from the seed and the node's points, as in
+ * RandomSelector.
+ *
+ * @author dgs
+ * @version 0.1
+ **/
+
+public class MaxVarianceSelector<T extends Number> implements VantagePointSelector<T> {
+
+	/** Default no. candidates sampled */
+	public static final int DefaultCandidates = 16;
+
+	/** Default no. points sampled to measure the variance of each candidate */
+	public static final int DefaultSampleSize = 64;
+
+	private final int ncandidates, samplesize;
+	private final long seed;
+
+	/** Constructor **/
+	public MaxVarianceSelector(){
+		this(DefaultCandidates, DefaultSampleSize, new Random().nextLong());
+	}
+
+	/** Constructor
+	 * @param int  ncandidates, no. candidates sampled
+	 * @param int  samplesize, no. points sampled to measure variance of distances
+	 * @param long seed of random numbers
+	 **/
+	public MaxVarianceSelector(int ncandidates, int samplesize, long seed){
+		if (ncandidates <= 0)
+			throw new IllegalArgumentException("ncandidates <= 0");
+		if (samplesize <= 0)
+			throw new IllegalArgumentException("samplesize <= 0");
+		this.ncandidates = ncandidates;
+		this.samplesize = samplesize;
+		this.seed = seed;
+	}
+
+	@Override
+	public int[] select(List<? extends DataObject<T>> points, int numvps, MetricDistance<T> metric){
+		Random rnd = RandomSelector.random(seed, points);
+		int[] candidates = RandomSelector.sample(rnd, points.size(), Math.max(ncandidates, numvps));
+		int[] sample = RandomSelector.sample(rnd, points.size(), samplesize);
+
+		double[] variances = new double[candidates.length];
+		for (int c=0;c < candidates.length;c++){
+			DataObject<T> candidate = points.get(candidates[c]);
+			double sum = 0.0, sumsq = 0.0;
+			int n = 0;
+			for (int i=0;i < sample.length;i++){
+				if (sample[i] == candidates[c])
+					continue;
+				double d = metric.primitiveDistance(candidate, points.get(sample[i]));
+				sum += d;
+				sumsq += d*d;
+				n++;
+			}
+			variances[c] = (n > 0) ? sumsq/n - (sum/n)*(sum/n) : 0.0;
+		}
+
+		/* candidates of greatest variance, first of equal ones first */
+		int[] vps = new int[numvps];
+		boolean[] chosen = new boolean[candidates.length];
+		for (int n=0;n < numvps;n++){
+			int best = -1;
+			for (int c=0;c < candidates.length;c++){
+				if (!chosen[c] && (best < 0 || variances[c] > variances[best])) best = c;
+			}
+			chosen[best] = true;
+			vps[n] = candidates[best];
+		}
+		return vps;
+	}
+}
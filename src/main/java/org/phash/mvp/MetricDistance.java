@@ -11,4 +11,25 @@ public interface MetricDistance<T extends Number>{
 
 	public Double distance(DataObject<T> obj1, DataObject<T> obj2);;
 
+	/** Distance as a primitive double.  Overridden by PrimitiveMetricDistance
+	 *  to compute directly on primitive data arrays.
+	 * @param DataObject<T>  obj1
+	 * @param DataObject<T>  obj2
+	 * @return double
+	 **/
+	public default double primitiveDistance(DataObject<T> obj1, DataObject<T> obj2){
+		return distance(obj1, obj2).doubleValue();
+	}
+
+	/** Distance bounded above.  Returns the exact distance when it is no greater
+	 *  than bound; otherwise returns some value greater than bound, possibly
+	 *  without computing the full distance.
+	 * @param DataObject<T>  obj1
+	 * @param DataObject<T>  obj2
+	 * @param double         bound
+	 * @return double
+	 **/
+	public default double distance(DataObject<T> obj1, DataObject<T> obj2, double bound){
+		return primitiveDistance(obj1, obj2);
+	}
 }
@@ -0,0 +1,238 @@
+package org.phash.mvp;
+
+import org.neo4j.graphdb.Node;
+import org.neo4j.graphdb.GraphDatabaseService;
+import org.neo4j.graphdb.factory.GraphDatabaseFactory;
+import org.neo4j.graphdb.factory.GraphDatabaseBuilder;
+import org.neo4j.graphdb.Transaction;
+import org.neo4j.graphdb.Direction;
+import org.neo4j.graphdb.Relationship;
+import org.neo4j.graphdb.Label;
+import org.neo4j.graphdb.index.Index;
+import org.neo4j.graphdb.index.IndexHits;
+import org.neo4j.graphdb.ResourceIterator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * <h1>Neo4jBackend</h1>
+ * StorageBackend of an embedded Neo4j graph database, persisting the
+ * tree and its DataPoints to a directory.  DataPoints are indexed by
+ * String id in a legacy node index.
+ * @author dgs
+ * @version 0.1
+ */
+public class Neo4jBackend implements StorageBackend {
+
+	protected static final String DataPointIndexProperty = "DATAPOINTS";
+	protected static final String PointNameProperty = "POINTNAME";
+
+	private final String GraphdbDir;
+	private final String PropertiesFile;
+	private GraphDatabaseService graphdb = null;
+
+	/** Constructor
+	 *  Opens the graph database, and registers a hook to shut it down on exit.
+	 * @param String    graphdb directory
+	 * @param String    neo4j properties file (e.g. "conf/mvptree-neo4j.properties"), or null
+	 */
+	public Neo4jBackend(String graphdbdir, String propsFile){
+		this.GraphdbDir = graphdbdir;
+		this.PropertiesFile = propsFile;
+		init();
+		Runtime.getRuntime().addShutdownHook(new Thread(){
+				@Override public void run(){
+					shutdown();
+				}
+			});
+	}
+
+	protected String getGraphDBFile(){ return GraphdbDir;}
+	protected String getPropsFile(){ return PropertiesFile;}
+	protected GraphDatabaseService getGraphdb(){return graphdb;}
+
+	@Override
+	public synchronized void init(){
+		if (graphdb != null)
+			return;
+
+		File storeDir = new File(GraphdbDir);
+		if (!storeDir.exists()) storeDir.mkdirs();
+
+		GraphDatabaseBuilder builder = new GraphDatabaseFactory(
+                                       ).newEmbeddedDatabaseBuilder(storeDir);
+		if (PropertiesFile != null && !PropertiesFile.isEmpty())
+			builder.loadPropertiesFromFile(PropertiesFile);
+		graphdb = builder.newGraphDatabase();
+	}
+
+	@Override
+	public synchronized void shutdown(){
+		if (graphdb != null)
+			graphdb.shutdown();
+		graphdb = null;
+	}
+
+	@Override
+	public StorageTransaction beginTx(){
+		return new Neo4jTransaction(graphdb.beginTx());
+	}
+
+	@Override
+	public StorageNode createNode(){
+		return new Neo4jNode(graphdb.createNode(), this);
+	}
+
+	@Override
+	public StorageNode getNodeById(long id){
+		return new Neo4jNode(graphdb.getNodeById(id), this);
+	}
+
+	@Override
+	public List<StorageNode> findNodes(String label){
+		return wrapNodes(graphdb.findNodes(Label.label(label)));
+	}
+
+	@Override
+	public List<StorageNode> findNodes(String label, String key, Object value){
+		return wrapNodes(graphdb.findNodes(Label.label(label), key, value));
+	}
+
+	private List<StorageNode> wrapNodes(ResourceIterator<Node> nodes){
+		ArrayList<StorageNode> results = new ArrayList<>();
+		try {
+			while (nodes.hasNext()) results.add(new Neo4jNode(nodes.next(), this));
+		} finally {
+			nodes.close();
+		}
+		return results;
+	}
+
+	private Index<Node> getPointIndex(){
+		return graphdb.index().forNodes(DataPointIndexProperty);
+	}
+
+	@Override
+	public void indexPoint(StorageNode node, String id){
+		getPointIndex().add(((Neo4jNode)node).node, PointNameProperty, id);
+	}
+
+	@Override
+	public StorageNode lookupPoint(String id){
+		IndexHits<Node> hits = getPointIndex().get(PointNameProperty, id);
+		Node node = hits.getSingle();
+		return (node != null) ? new Neo4jNode(node, this) : null;
+	}
+
+	@Override
+	public void unindexPoint(StorageNode node, String id){
+		getPointIndex().remove(((Neo4jNode)node).node, PointNameProperty, id);
+	}
+
+	@Override
+	public void clearPointIndex(){
+		getPointIndex().delete();
+	}
+
+	@Override
+	public int countPointIndex(){
+		IndexHits<Node> points = getPointIndex().query(PointNameProperty, "*");
+		int count = points.size();
+		points.close();
+		return count;
+	}
+
+	/* neo4j transaction */
+	private static class Neo4jTransaction implements StorageTransaction {
+		private final Transaction tx;
+
+		Neo4jTransaction(Transaction tx){
+			this.tx = tx;
+		}
+
+		@Override
+		public void success(){
+			tx.success();
+		}
+
+		@Override
+		public void acquireWriteLock(StorageNode node){
+			tx.acquireWriteLock(((Neo4jNode)node).node);
+		}
+
+		@Override
+		public void close(){
+			tx.close();
+		}
+	}
+
+	/* neo4j node */
+	private static class Neo4jNode implements StorageNode {
+		private final Node node;
+		private final Neo4jBackend backend;
+
+		Neo4jNode(Node node, Neo4jBackend backend){
+			this.node = node;
+			this.backend = backend;
+		}
+
+		@Override public long getId(){ return node.getId();}
+		@Override public StorageBackend getBackend(){ return backend;}
+		@Override public Object getProperty(String key){ return node.getProperty(key);}
+		@Override public Object getProperty(String key, Object defaultValue){
+			return node.getProperty(key, defaultValue);
+		}
+		@Override public boolean hasProperty(String key){ return node.hasProperty(key);}
+		@Override public void setProperty(String key, Object value){ node.setProperty(key, value);}
+		@Override public void removeProperty(String key){ node.removeProperty(key);}
+		@Override public void addLabel(String label){ node.addLabel(Label.label(label));}
+		@Override public void removeLabel(String label){ node.removeLabel(Label.label(label));}
+		@Override public boolean hasLabel(String label){ return node.hasLabel(Label.label(label));}
+		@Override public void delete(){ node.delete();}
+
+		@Override
+		public StorageRelationship createRelationshipTo(StorageNode other, MVPRelationshipTypes type){
+			return new Neo4jRelationship(node.createRelationshipTo(((Neo4jNode)other).node, type), backend);
+		}
+
+		@Override
+		public Iterable<StorageRelationship> getRelationships(MVPRelationshipTypes type){
+			return wrapRelationships(node.getRelationships(type, Direction.OUTGOING));
+		}
+
+		@Override
+		public Iterable<StorageRelationship> getRelationships(){
+			return wrapRelationships(node.getRelationships());
+		}
+
+		private Iterable<StorageRelationship> wrapRelationships(Iterable<Relationship> rels){
+			return () -> new Iterator<StorageRelationship>(){
+				private final Iterator<Relationship> iter = rels.iterator();
+				@Override public boolean hasNext(){ return iter.hasNext();}
+				@Override public StorageRelationship next(){
+					return new Neo4jRelationship(iter.next(), backend);
+				}
+			};
+		}
+	}
+
+	/* neo4j relationship */
+	private static class Neo4jRelationship implements StorageRelationship {
+		private final Relationship rel;
+		private final Neo4jBackend backend;
+
+		Neo4jRelationship(Relationship rel, Neo4jBackend backend){
+			this.rel = rel;
+			this.backend = backend;
+		}
+
+		@Override public StorageNode getStartNode(){ return new Neo4jNode(rel.getStartNode(), backend);}
+		@Override public StorageNode getEndNode(){ return new Neo4jNode(rel.getEndNode(), backend);}
+		@Override public Object getProperty(String key){ return rel.getProperty(key);}
+		@Override public void setProperty(String key, Object value){ rel.setProperty(key, value);}
+		@Override public void delete(){ rel.delete();}
+	}
+}
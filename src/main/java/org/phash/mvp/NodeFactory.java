@@ -1,58 +1,44 @@
 package org.phash.mvp;
 
-import org.neo4j.graphdb.Node;
-import org.neo4j.graphdb.GraphDatabaseService;
-import org.neo4j.graphdb.factory.GraphDatabaseFactory;
-import org.neo4j.graphdb.factory.GraphDatabaseBuilder;
-import org.neo4j.graphdb.Transaction;
-import org.neo4j.graphdb.Direction;
-import org.neo4j.graphdb.Relationship;
-import org.neo4j.graphdb.Label;
-import org.neo4j.graphdb.index.IndexManager;
-import org.neo4j.graphdb.index.Index;
-import org.neo4j.graphdb.index.IndexHits;
-import org.neo4j.graphdb.ResourceIterator;
-import org.neo4j.graphdb.MultipleFoundException;
-
-import java.io.File;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * <h1>NodeFactory</h1>
  * Provide methods to access mvptree and DataObjects
- * in graph database.
+ * in its storage backend.
  * @author dgs
  * @version 0.1
  */
 public class NodeFactory<T extends Number> {
 
-	/* properties and labels in neo4j graph database */
+	/* properties and labels in storage backend */
 	protected static final String TopLabel = "TOP";
 	protected static final String TopProperty = "TOPN";
 	protected static final int TopN = 0;
 	protected static final String BranchFactorProperty = "BRANCHFACTOR";
 	protected static final String PathLengthProperty = "PATHLENGTH";
 	protected static final String LeafCapacityProperty = "LEAFCAPACITY";
-	protected static final String DataPointIndexProperty = "DATAPOINTS";
-	protected static final String PointNameProperty = "POINTNAME";
 	protected static final String LevelsPerNodeProperty = "NLEVELSPERNODE";
+	protected static final String NodeIdsProperty = "NODEIDS";
+	protected static final String PackedLeavesProperty = "PACKEDLEAVES";
+	protected static final String CounterLabel = "COUNTER";
+	protected static final String PointCountProperty = "POINTCOUNT";
+
+	/* default max. bytes of decoded data arrays to cache */
+	protected static final long DefaultVectorCacheBytes = 32L*1024*1024;
 
-	private String GraphdbDir;
-	private String PropertiesFile;
 	private int BranchFactor, PathLength, LeafMinimum, NumLevelsPerNode;
+	private boolean PackedLeaves = false;
 	private final Class<T> type;
-	private GraphDatabaseService graphdb;
-
-	private void registerShutdownHook(final GraphDatabaseService graphdb){
-		Runtime.getRuntime().addShutdownHook(new Thread(){
-				@Override public void run(){
-					graphdb.shutdown();
-				}
-			});
-	}
+	private final StorageBackend backend;
+	private volatile StorageNode counter = null;
+	private final VectorCache cache = new VectorCache(DefaultVectorCacheBytes);
 
 	/** Constructor
-	 * 
+	 *  Store tree in a Neo4j graph database.
 	 * @param String    graphdb directory
 	 * @param String    neo4j properties file (e.g. "conf/mvptree-neo4j.properties")
 	 * @param int       branchfactor (generally 2 or 3)
@@ -63,6 +49,21 @@ public class NodeFactory<T extends Number> {
 	 */
 	protected NodeFactory(String graphdbdir, String propsFile,
 						  int bf, int pl, int lm, int nl, Class<T> type){
+		this(new Neo4jBackend(graphdbdir, propsFile), bf, pl, lm, nl, type);
+	}
+
+	/** Constructor
+	 * 
+	 * @param StorageBackend backend
+	 * @param int       branchfactor (generally 2 or 3)
+	 * @param int       pathlength (e.g. 8)
+	 * @param int       leaf minimum (e.g. 30) no. DataPoints to a leaf.
+	 * @param int       number of levels per (internal) mvp node
+     * @param Class<T>  class of generic type (necessary to determine at runtime)
+	 */
+	protected NodeFactory(StorageBackend backend,
+						  int bf, int pl, int lm, int nl, Class<T> type){
+		if (backend == null) throw new NullPointerException("backend is null");
 		if (bf <= 0) throw new IllegalArgumentException("bf <= 0");
 		if (pl <= 0) throw new IllegalArgumentException("pl <= 0");
 		if (lm <= 0) throw new IllegalArgumentException("lc <= 0");
@@ -72,16 +73,15 @@ public class NodeFactory<T extends Number> {
 		this.PathLength   = pl;
 		this.LeafMinimum  = lm;
 		this.NumLevelsPerNode = nl;
-		this.GraphdbDir = graphdbdir;
-		this.PropertiesFile = propsFile;
-		this.graphdb = null;
+		this.backend = backend;
 		this.type = type;
-		initGraphDatabase();
-		try (Transaction tx = graphdb.beginTx()){
+		backend.init();
+		try (StorageTransaction tx = backend.beginTx()){
 			getParameters();
+			migrateNodeIds();
+			initPointCounter(tx);
 			tx.success();
 		}
-		registerShutdownHook(graphdb);
 	}
 
 	/** get fields **/
@@ -89,78 +89,106 @@ public class NodeFactory<T extends Number> {
 	protected int getPathLength(){return PathLength;}
 	protected int getLeafMinimum(){return LeafMinimum;}
 	protected int getNumLevelsPerNode(){return NumLevelsPerNode;}
-	protected String getGraphDBFile(){ return GraphdbDir;}
-	protected String getPropsFile(){ return PropertiesFile;}
-	protected GraphDatabaseService getGraphdb(){return graphdb;}
+	protected boolean isPackedLeaves(){return PackedLeaves;}
+	protected void setPackedLeaves(boolean packed){PackedLeaves = packed;}
+	protected Class<T> getType(){return type;}
+	protected StorageBackend getBackend(){return backend;}
+	protected VectorCache getVectorCache(){return cache;}
 	
 	protected void initGraphDatabase(){
-		if (graphdb != null)
-			return;
-		
-		File storeDir = new File(GraphdbDir);
-		if (!storeDir.exists()) storeDir.mkdirs();
-		
-		GraphDatabaseBuilder builder = new GraphDatabaseFactory(
-                                       ).newEmbeddedDatabaseBuilder(storeDir);
-		if (PropertiesFile != null && !PropertiesFile.isEmpty())
-			builder.loadPropertiesFromFile(PropertiesFile);
-		graphdb = builder.newGraphDatabase();
+		backend.init();
 	}
 
 	protected void shutdown(){
-		graphdb.shutdown();
-		graphdb = null;
+		backend.shutdown();
+		counter = null;
+		cache.clear();
 	}
 
 
-	/* Retrieve parameters from neo4j database, if there is a top reference node */
+	/* Retrieve parameters from store, if there is a top reference node */
 	protected void getParameters(){
-		Node top = getRefNode();
+		StorageNode top = getRefNode();
 		if (top != null){
 			BranchFactor = (int)top.getProperty(BranchFactorProperty);
 			PathLength = (int)top.getProperty(PathLengthProperty);
 			LeafMinimum = (int)top.getProperty(LeafCapacityProperty);
 			NumLevelsPerNode = (int)top.getProperty(LevelsPerNodeProperty);
+			PackedLeaves = (boolean)top.getProperty(PackedLeavesProperty, false);
 		}
 	}
 
+	/* Set parameters, e.g. those of a tree restored from a snapshot */
+	protected void setParameters(int bf, int pl, int lm, int nl, boolean packed){
+		if (bf <= 0) throw new IllegalArgumentException("bf <= 0");
+		if (pl <= 0) throw new IllegalArgumentException("pl <= 0");
+		if (lm <= 0) throw new IllegalArgumentException("lc <= 0");
+		if (nl <= 0) throw new IllegalArgumentException("nl <= 0");
+		BranchFactor = bf;
+		PathLength = pl;
+		LeafMinimum = lm;
+		NumLevelsPerNode = nl;
+		PackedLeaves = packed;
+	}
+
 	/* Save parameters as properties in reference node */ 
 	protected void saveParameters(){
-		Node top = getRefNode();
+		StorageNode top = getRefNode();
 		if (top != null){
 			top.setProperty(BranchFactorProperty, BranchFactor);
 			top.setProperty(PathLengthProperty, PathLength);
 			top.setProperty(LeafCapacityProperty, LeafMinimum);
 			top.setProperty(LevelsPerNodeProperty, NumLevelsPerNode);
+			top.setProperty(NodeIdsProperty, true);
+			top.setProperty(PackedLeavesProperty, PackedLeaves);
 		}
 	}
 
+	/* Record the ordinal-indexed vantage point and child node ids on every
+	 * MVP node of a tree stored before they were kept, so that lookups by
+	 * ordinal need not scan a node's relationships.  Done once per store. */
+	protected void migrateNodeIds(){
+		StorageNode top = getRefNode();
+		if (top == null || top.hasProperty(NodeIdsProperty))
+			return;
+		int fanout = (int)Math.pow(BranchFactor, NumLevelsPerNode);
+		ArrayDeque<MVPNode<T>> pending = new ArrayDeque<>();
+		pending.add(wrapNode(top));
+		while (!pending.isEmpty()){
+			MVPNode<T> mvpnode = pending.poll();
+			mvpnode.migrateNodeIds();
+			if (mvpnode instanceof MVPInternal){
+				MVPInternal<T> internal = (MVPInternal<T>)mvpnode;
+				for (int i=0;i < fanout;i++){
+					MVPNode<T> child = internal.getChildNode(i);
+					if (child != null) pending.add(child);
+				}
+			}
+		}
+		top.setProperty(NodeIdsProperty, true);
+	}
+
 	/* Get the Top node that exists below the reference node */
-	protected Node getRefNode(){
-		Node node = null;
+	protected StorageNode getRefNode(){
 		int count = 0;
-		while (count < 5){
+		while (true){
+			List<StorageNode> nodes = backend.findNodes(TopLabel, TopProperty, TopN);
+			if (nodes.size() <= 1)
+				return nodes.isEmpty() ? null : nodes.get(0);
+			if (++count >= 5)
+				throw new MVPTreeException("found more than one top node");
 			try {
-				node = graphdb.findNode(Label.label(NodeFactory.TopLabel),
-										TopProperty, TopN);
-				count += 5;
-			}catch (MultipleFoundException ex){
-				if (count >= 5)
-					throw new MVPTreeException("found more than one top node", ex);
-				try {
-					Thread.sleep(1000, 0);
-				} catch (InterruptedException ex2){
-					System.err.printf("interrupted: %s\n", ex2.getMessage());
-				}
+				Thread.sleep(1000, 0);
+			} catch (InterruptedException ex2){
+				System.err.printf("interrupted: %s\n", ex2.getMessage());
 			}
 		}
-		return node;
 	}
 	
 	/* get the top MVPNode of MVPTree */
 	protected MVPNode<T> getTopNode(){
 		MVPNode<T> resultnode = null;
-		Node refNode = getRefNode();
+		StorageNode refNode = getRefNode();
 		if (refNode != null){
 			resultnode  = wrapNode(refNode);
 		}
@@ -168,7 +196,7 @@ public class NodeFactory<T extends Number> {
 	}
 
 	/* utility function to wrap a node in MVPInternal or MVPLeaf node */
-	protected MVPNode<T> wrapNode(Node node){
+	protected MVPNode<T> wrapNode(StorageNode node){
 		MVPNode<T> resultNode = null;
 		int node_type = (int)node.getProperty(MVPNode.NodeTypeProperty);
 		if (node_type == NodeType.INTERNAL_NODE.ordinal()){
@@ -181,97 +209,147 @@ public class NodeFactory<T extends Number> {
 
 	/* Create MVPInternal node for a list of DataPoints */
 	protected MVPInternal<T> createInternalNode(ArrayList<DataPoint<T>> points){
-		Node new_node = graphdb.createNode();
+		StorageNode new_node = backend.createNode();
 		MVPInternal<T> internal = new MVPInternal<>(new_node);
 		internal.setNodeType();
 		internal.setLabel();
+		internal.initNodeIds();
 		internal.selectVantagePoints(points, 0, getNumLevelsPerNode());
 		return internal;
 	}
 
 	/* Create MVPLeaf node for a list of DataPoints */
 	protected MVPLeaf<T> createLeafNode(ArrayList<DataPoint<T>> points){
-		Node new_node = graphdb.createNode();
+		StorageNode new_node = backend.createNode();
 		MVPLeaf<T> leaf = new MVPLeaf<>(new_node);
 		leaf.setNodeType();
 		leaf.setLabel();
+		leaf.initNodeIds();
+		if (PackedLeaves) leaf.setPacked();
 		leaf.selectVantagePoints(points, 0, getPathLength());
 		return leaf;
 	}
 
+	/* Get the node holding the count of points in the index.  It is kept apart
+	 * from the tree, so that it survives the replacement of the top node. */
+	protected StorageNode getCounterNode(){
+		if (counter == null){
+			List<StorageNode> nodes = backend.findNodes(CounterLabel);
+			if (!nodes.isEmpty()) counter = nodes.get(0);
+		}
+		if (counter == null)
+			throw new MVPTreeException("no point counter node");
+		return counter;
+	}
+
+	/* Create the point counter, if none, counting the points in the index */
+	protected void initPointCounter(StorageTransaction tx){
+		List<StorageNode> nodes = backend.findNodes(CounterLabel);
+		if (!nodes.isEmpty()){
+			counter = nodes.get(0);
+			return;
+		}
+		StorageNode node = backend.createNode();
+		node.addLabel(CounterLabel);
+		node.setProperty(PointCountProperty, 0L);
+		counter = node;
+		recount(tx);
+	}
+
+	/* Add delta to the point count, locking the counter node until the transaction ends */
+	private void addToCount(StorageTransaction tx, long delta){
+		StorageNode node = getCounterNode();
+		tx.acquireWriteLock(node);
+		long count = (long)node.getProperty(PointCountProperty, 0L);
+		node.setProperty(PointCountProperty, count + delta);
+	}
+
 	/* Index DataPoints by String id */
-	protected void indexPoints(Iterable<DataPoint<T>> points){
-		IndexManager index = getGraphdb().index();
-		Index<Node> nodeIndex = index.forNodes(DataPointIndexProperty);
+	protected void indexPoints(Iterable<DataPoint<T>> points, StorageTransaction tx){
+		long count = 0;
 		for (DataPoint<?> point : points){
-			nodeIndex.add(point.getNode(), PointNameProperty, point.getId());
+			backend.indexPoint(point.getNode(), point.getIdWithoutTx());
 			point.setActive(true);
+			count++;
 		}
+		addToCount(tx, count);
 	}
 
 	/* Empty the index */
-	protected void clearDataPointIndex(){
-		IndexManager index = graphdb.index();
-		Index<Node> nodeIndex = index.forNodes(DataPointIndexProperty);
-		nodeIndex.delete();
+	protected void clearDataPointIndex(StorageTransaction tx){
+		backend.clearPointIndex();
+		StorageNode node = getCounterNode();
+		tx.acquireWriteLock(node);
+		node.setProperty(PointCountProperty, 0L);
 	}
 
 	/* Get total number of DataPoints indexed in tree */
 	protected int getCount(){
-		int count = 0;
-		Index<Node> nodeIndex = graphdb.index().forNodes(DataPointIndexProperty);
-		if (nodeIndex != null) {
-			IndexHits<Node>  points = nodeIndex.query(PointNameProperty, "*");
-			count = points.size();
-		}
+		return (int)(long)getCounterNode().getProperty(PointCountProperty, 0L);
+	}
+
+	/* Count the DataPoints indexed in tree by a query of the whole index,
+	 * and reset the point count to it. */
+	protected int recount(StorageTransaction tx){
+		int count = backend.countPointIndex();
+		StorageNode node = getCounterNode();
+		tx.acquireWriteLock(node);
+		node.setProperty(PointCountProperty, (long)count);
 		return count;
 	}
 
 	/* Look up DataPoint by String id */
 	protected DataPoint<T> lookupDataPoint(String id){
 		DataPoint<T> pnt = null;
-		IndexManager index = graphdb.index();
-		Index<Node> nodeIndex = index.forNodes(DataPointIndexProperty);
-		IndexHits<Node> hits = nodeIndex.get(PointNameProperty, id);
-		Node dpnode = hits.getSingle();
+		StorageNode dpnode = backend.lookupPoint(id);
 		if (dpnode != null)
-			pnt = new DataPoint<>(dpnode, getPathLength(), type);
+			pnt = new DataPoint<>(dpnode, getPathLength(), type, cache);
 		return pnt;
 	}
 
-	/* Delete a DataPoint with String id */
-	protected void deleteDataPoint(String id){
-		IndexManager index = graphdb.index();
-		Index<Node> nodeIndex = index.forNodes(DataPointIndexProperty);
-		IndexHits<Node> hits = nodeIndex.get(PointNameProperty, id);
-		Node node = hits.getSingle();
-		if (node != null) {
-			DataPoint<?> point = new DataPoint<>(node, getPathLength(), type);
-			point.setActive(false);
-		}
-		nodeIndex.remove(node, PointNameProperty, id);
+	/* Delete a DataPoint with String id, returning its node id, or -1 if not found */
+	protected long deleteDataPoint(String id, StorageTransaction tx){
+		StorageNode node = backend.lookupPoint(id);
+		if (node == null)
+			return -1L;
+		DataPoint<?> point = new DataPoint<>(node, getPathLength(), type, cache);
+		point.setActive(false);
+		backend.unindexPoint(node, id);
+		addToCount(tx, -1);
+		return node.getId();
 	}
 
-	/* Create a new DataPoint object in neo4j database */
+	/* Create a new DataPoint object in store */
 	/* setId() and setData() must still be called on DataPoint */
 	protected DataPoint<T> createDataPoint(){
-		Node new_node = getGraphdb().createNode();
-		DataPoint<T> pnt = new DataPoint(new_node, getPathLength(), type);
+		StorageNode new_node = backend.createNode();
+		DataPoint<T> pnt = new DataPoint(new_node, getPathLength(), type, cache);
 		pnt.setActive(true);
 		pnt.setLabel();
 		return pnt;
 	}
 
-	/* Wrap a neo4j node object in a DataPoint */
-	protected DataPoint<T> wrapDataPoint(Node node){
-		DataPoint<T> dp = new DataPoint<>(node, getPathLength(), type);
+	/* Wrap a node in a DataPoint */
+	protected DataPoint<T> wrapDataPoint(StorageNode node){
+		DataPoint<T> dp = new DataPoint<>(node, getPathLength(), type, cache);
 		return dp;
 	}
 
-	/* Wrap a neo4j node object in a DataPoint with a path of float[] */
-	protected DataPoint<T> wrapDataPoint(Node node, float[] path){
-		
-		DataPoint<T> dp = new DataPoint<>(node, path, type);
+	/* Wrap a vantage point's node in a DataPoint whose data is read through the cache */
+	protected DataPoint<T> wrapVantagePoint(StorageNode node){
+		return new DataPoint<>(node, getPathLength(), type, cache, true);
+	}
+
+	/* Wrap a node in a DataPoint with a path of float[] */
+	/* Paths stored without ancestor distances are extended with unknown (-1) entries */
+	protected DataPoint<T> wrapDataPoint(StorageNode node, float[] path){
+		int pl = getPathLength();
+		if (path.length < 2*pl){
+			float[] extended = Arrays.copyOf(path, 2*pl);
+			Arrays.fill(extended, path.length, 2*pl, -1.0f);
+			path = extended;
+		}
+		DataPoint<T> dp = new DataPoint<>(node, path, type, cache);
 		return dp;
 	}
 
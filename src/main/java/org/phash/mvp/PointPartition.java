@@ -0,0 +1,173 @@
+package org.phash.mvp;
+
+/** PointPartition
+ * In place split point calculation and partition of a range of points by
+ * their distances to a vantage point, and moving of the vantage points
+ * chosen from a range to its front.  The distances are held in a primitive
+ * array in parallel with the points, whatever holds them, and every swap of
+ * two distances is made to the points as well, through a Swap.  Split points
+ * are found by quickselect of the order statistics they need, rather than a
+ * full sort of a copy of the distances.  The same swaps are made for the same
+ * distances, so a dataset is partitioned the same way by MVPTree and BulkBuilder.
+ * @author dgs
+ * @version 0.1
+ **/
+class PointPartition {
+
+	/* Swap of two points, in parallel with their distances */
+	interface Swap {
+		void swap(int i, int j);
+	}
+
+	private PointPartition(){}
+
+	private static void swap(float[] dists, int i, int j, Swap swap){
+		float d = dists[i];
+		dists[i] = dists[j];
+		dists[j] = d;
+		swap.swap(i, j);
+	}
+
+	/** Move the points at the given positions of a range of n points to the
+	 *  front of the range, in order, by a swap for each one not already in place.
+	 * @param int[] positions, distinct, from 0 to n-1
+	 * @param int   k, no. positions
+	 * @param int   n, no. points
+	 * @param Swap  swap
+	 * @return void
+	 **/
+	protected static void moveToFront(int[] positions, int k, int n, Swap swap){
+		if (positions == null || positions.length != k)
+			throw new MVPTreeException("expected " + k + " vantage points chosen");
+		int[] pos = positions.clone();
+		for (int i=0;i < k;i++){
+			if (pos[i] < 0 || pos[i] >= n)
+				throw new MVPTreeException("vantage point chosen at position " + pos[i] + " of " + n);
+			for (int j=0;j < i;j++){
+				if (pos[j] == pos[i])
+					throw new MVPTreeException("vantage point chosen twice at position " + pos[i]);
+			}
+		}
+		for (int i=0;i < k;i++){
+			int p = pos[i];
+			if (p == i)
+				continue;
+			swap.swap(i, p);
+			for (int j=i+1;j < k;j++){
+				if (pos[j] == i) pos[j] = p;
+			}
+		}
+	}
+
+	/** Select the kth smallest distance of dists[from, to) into position k, with
+	 *  no greater distances before it and no smaller ones after it.  Three way
+	 *  partitions, so ranges of equal distances are settled in one pass.
+	 * @param float[] dists
+	 * @param int     from
+	 * @param int     to
+	 * @param int     k, from <= k < to
+	 * @param Swap    swap
+	 * @return void
+	 **/
+	protected static void select(float[] dists, int from, int to, int k, Swap swap){
+		int lo = from, hi = to - 1;
+		while (hi > lo){
+			float a = dists[lo], b = dists[(lo + hi) >>> 1], c = dists[hi];
+			float pivot = Math.max(Math.min(a, b), Math.min(Math.max(a, b), c));
+			int lt = lo, i = lo, gt = hi;
+			while (i <= gt){
+				if (dists[i] < pivot)
+					swap(dists, lt++, i++, swap);
+				else if (dists[i] > pivot)
+					swap(dists, i, gt--, swap);
+				else
+					i++;
+			}
+			if (k < lt)
+				hi = lt - 1;
+			else if (k > gt)
+				lo = gt + 1;
+			else
+				return;
+		}
+	}
+
+	/** Calculate the bf-1 split points that divide dists[from, to) into bf slices
+	 *  of an equal number of points, into splits[offset, offset+bf-1).  Each split
+	 *  is the mean of the two distances either side of its slice boundary in sorted
+	 *  order, which are selected in place in ascending order, each from the range
+	 *  after the last.
+	 * @param float[] dists
+	 * @param int     from
+	 * @param int     to, > from
+	 * @param int     bf
+	 * @param float[] splits (out)
+	 * @param int     offset
+	 * @param Swap    swap
+	 * @return void
+	 **/
+	protected static void calcSplitPoints(float[] dists, int from, int to, int bf,
+										  float[] splits, int offset, Swap swap){
+		int length = to - from;
+		int lengthM = bf - 1;
+		float factor = (float)length/(float)bf;
+		int[] lo = new int[lengthM];
+		int[] hi = new int[lengthM];
+		for (int i=0;i < lengthM;i++){
+			float pos = (float)(i+1)*factor;
+			hi[i] = (pos <= length-1) ? (int)Math.ceil(pos) : 0;
+			lo[i] = (int)Math.floor(pos);
+		}
+
+		/* select each position needed once, in ascending order */
+		int selected = -1;
+		while (true){
+			int next = Integer.MAX_VALUE;
+			for (int i=0;i < lengthM;i++){
+				if (lo[i] > selected && lo[i] < next) next = lo[i];
+				if (hi[i] > selected && hi[i] < next) next = hi[i];
+			}
+			if (next == Integer.MAX_VALUE)
+				break;
+			select(dists, from + selected + 1, to, from + next, swap);
+			selected = next;
+		}
+
+		for (int i=0;i < lengthM;i++){
+			splits[offset + i] = (dists[from + lo[i]] + dists[from + hi[i]])/2.0f;
+		}
+	}
+
+	/** Partition dists[from, to) in place into bf slices, each point into the first
+	 *  slice whose split is no less than its distance, or else into the last one.
+	 *  The start of slice j is written to bounds[boundsoffset + j], and to to
+	 *  bounds[boundsoffset + bf].
+	 * @param float[] dists
+	 * @param int     from
+	 * @param int     to
+	 * @param int     bf
+	 * @param float[] splits
+	 * @param int     offset of bf-1 splits in splits
+	 * @param int[]   bounds (out)
+	 * @param int     boundsoffset
+	 * @param Swap    swap
+	 * @return void
+	 **/
+	protected static void partition(float[] dists, int from, int to, int bf,
+									float[] splits, int offset,
+									int[] bounds, int boundsoffset, Swap swap){
+		int start = from;
+		for (int j=0;j < bf-1;j++){
+			bounds[boundsoffset + j] = start;
+			float split = splits[offset + j];
+			for (int i=start;i < to;i++){
+				if (dists[i] <= split){
+					if (i != start) swap(dists, start, i, swap);
+					start++;
+				}
+			}
+		}
+		bounds[boundsoffset + bf - 1] = start;
+		bounds[boundsoffset + bf] = to;
+	}
+}
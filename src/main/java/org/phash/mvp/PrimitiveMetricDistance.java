@@ -0,0 +1,156 @@
+package org.phash.mvp;
+
+import java.util.Arrays;
+
+/**
+ * Interface for Metric distance implementations over primitive
+ * data arrays, avoiding the boxing of T[] data and Double sums.
+ * The tree uses the primitive overloads whenever its metric implements
+ * this interface.
+ *
+ * @author dgs   
+ * @version 0.1
+ **/
+
+public interface PrimitiveMetricDistance<T extends Number> extends MetricDistance<T>{
+
+	public double distance(float[] x, float[] y);
+
+	public double distance(double[] x, double[] y);
+
+	public double distance(long[] x, long[] y);
+
+	public double distance(int[] x, int[] y);
+
+	public double distance(byte[] x, byte[] y);
+
+	/* Bounded distances, returning the exact distance when no greater than bound,
+	 * or else any value greater than bound.  Implementations may stop summing
+	 * once a partial sum exceeds the bound. */
+	public default double distance(float[] x, float[] y, double bound){
+		return distance(x, y);
+	}
+
+	public default double distance(double[] x, double[] y, double bound){
+		return distance(x, y);
+	}
+
+	public default double distance(long[] x, long[] y, double bound){
+		return distance(x, y);
+	}
+
+	public default double distance(int[] x, int[] y, double bound){
+		return distance(x, y);
+	}
+
+	public default double distance(byte[] x, byte[] y, double bound){
+		return distance(x, y);
+	}
+
+	/* Bounded distances from the range of x starting at xoffset, of the length
+	 * of y, e.g. one point of a packed leaf.  The defaults copy the range. */
+	public default double distance(float[] x, int xoffset, float[] y, double bound){
+		if (xoffset < 0 || xoffset + y.length > x.length)
+			throw new DataPointException("data range outside array");
+		return distance(Arrays.copyOfRange(x, xoffset, xoffset + y.length), y, bound);
+	}
+
+	public default double distance(double[] x, int xoffset, double[] y, double bound){
+		if (xoffset < 0 || xoffset + y.length > x.length)
+			throw new DataPointException("data range outside array");
+		return distance(Arrays.copyOfRange(x, xoffset, xoffset + y.length), y, bound);
+	}
+
+	public default double distance(long[] x, int xoffset, long[] y, double bound){
+		if (xoffset < 0 || xoffset + y.length > x.length)
+			throw new DataPointException("data range outside array");
+		return distance(Arrays.copyOfRange(x, xoffset, xoffset + y.length), y, bound);
+	}
+
+	public default double distance(int[] x, int xoffset, int[] y, double bound){
+		if (xoffset < 0 || xoffset + y.length > x.length)
+			throw new DataPointException("data range outside array");
+		return distance(Arrays.copyOfRange(x, xoffset, xoffset + y.length), y, bound);
+	}
+
+	public default double distance(byte[] x, int xoffset, byte[] y, double bound){
+		if (xoffset < 0 || xoffset + y.length > x.length)
+			throw new DataPointException("data range outside array");
+		return distance(Arrays.copyOfRange(x, xoffset, xoffset + y.length), y, bound);
+	}
+
+	/** Distance between two primitive data arrays of the same type.
+	 * @param Object   x, one of float[], double[], long[], int[], byte[]
+	 * @param Object   y, array of the same type as x
+	 * @return double
+	 **/
+	public default double arrayDistance(Object x, Object y){
+		if (x instanceof float[] && y instanceof float[]){
+			return distance((float[])x, (float[])y);
+		} else if (x instanceof double[] && y instanceof double[]){
+			return distance((double[])x, (double[])y);
+		} else if (x instanceof long[] && y instanceof long[]){
+			return distance((long[])x, (long[])y);
+		} else if (x instanceof int[] && y instanceof int[]){
+			return distance((int[])x, (int[])y);
+		} else if (x instanceof byte[] && y instanceof byte[]){
+			return distance((byte[])x, (byte[])y);
+		}
+		throw new DataPointException("datatype not float, double, int, byte, long");
+	}
+
+	/** Bounded distance between two primitive data arrays of the same type.
+	 * @param Object   x, one of float[], double[], long[], int[], byte[]
+	 * @param Object   y, array of the same type as x
+	 * @param double   bound
+	 * @return double
+	 **/
+	public default double arrayDistance(Object x, Object y, double bound){
+		if (x instanceof float[] && y instanceof float[]){
+			return distance((float[])x, (float[])y, bound);
+		} else if (x instanceof double[] && y instanceof double[]){
+			return distance((double[])x, (double[])y, bound);
+		} else if (x instanceof long[] && y instanceof long[]){
+			return distance((long[])x, (long[])y, bound);
+		} else if (x instanceof int[] && y instanceof int[]){
+			return distance((int[])x, (int[])y, bound);
+		} else if (x instanceof byte[] && y instanceof byte[]){
+			return distance((byte[])x, (byte[])y, bound);
+		}
+		throw new DataPointException("datatype not float, double, int, byte, long");
+	}
+
+	/** Bounded distance from a range of one primitive data array to another.
+	 * @param Object   x, one of float[], double[], long[], int[], byte[]
+	 * @param int      xoffset, start of the range of x, of the length of y
+	 * @param Object   y, array of the same type as x
+	 * @param double   bound
+	 * @return double
+	 **/
+	public default double arrayDistance(Object x, int xoffset, Object y, double bound){
+		if (x instanceof float[] && y instanceof float[]){
+			return distance((float[])x, xoffset, (float[])y, bound);
+		} else if (x instanceof double[] && y instanceof double[]){
+			return distance((double[])x, xoffset, (double[])y, bound);
+		} else if (x instanceof long[] && y instanceof long[]){
+			return distance((long[])x, xoffset, (long[])y, bound);
+		} else if (x instanceof int[] && y instanceof int[]){
+			return distance((int[])x, xoffset, (int[])y, bound);
+		} else if (x instanceof byte[] && y instanceof byte[]){
+			return distance((byte[])x, xoffset, (byte[])y, bound);
+		}
+		throw new DataPointException("datatype not float, double, int, byte, long");
+	}
+
+	public default Double distance(DataObject<T> obj1, DataObject<T> obj2){
+		return primitiveDistance(obj1, obj2);
+	}
+
+	public default double primitiveDistance(DataObject<T> obj1, DataObject<T> obj2){
+		return arrayDistance(obj1.getPrimitiveDataWithoutTx(), obj2.getPrimitiveDataWithoutTx());
+	}
+
+	public default double distance(DataObject<T> obj1, DataObject<T> obj2, double bound){
+		return arrayDistance(obj1.getPrimitiveDataWithoutTx(), obj2.getPrimitiveDataWithoutTx(), bound);
+	}
+}
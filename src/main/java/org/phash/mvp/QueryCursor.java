@@ -0,0 +1,23 @@
+package org.phash.mvp;
+
+import java.util.Iterator;
+
+/**
+ * <h1>QueryCursor</h1>
+ * Iterator over the results of a query that finds results lazily,
+ * one node of the tree at a time, as they are consumed.  A cursor holds
+ * the tree's read lock and a read transaction open until it is exhausted,
+ * has returned the number of results it was limited to, or is closed, so it
+ * must be used and closed on the thread that opened it, preferably with
+ * try-with-resources.
+ * @author dgs
+ * @version 0.1
+ */
+public interface QueryCursor<T extends Number> extends Iterator<QueryResult<T>>, AutoCloseable {
+
+	/** Release the cursor's transaction.  No more results are returned. 
+	 * @return void
+	 **/
+	@Override
+	public void close();
+}
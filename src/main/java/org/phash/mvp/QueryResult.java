@@ -0,0 +1,81 @@
+package org.phash.mvp;
+
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * <h1>QueryResult</h1>
+ * A DataPoint found by a query, along with its distance from the
+ * query target, as already computed during the query.  Results
+ * compare by distance, nearest first.
+ * @author dgs
+ * @version 0.1
+ */
+public class QueryResult<T extends Number> implements Comparable<QueryResult<T>> {
+
+	private final DataPoint<T> point;
+	private final float distance;
+
+	/** Constructor
+	 * @param DataPoint<T>  point
+	 * @param float         distance from query target
+	 **/
+	protected QueryResult(DataPoint<T> point, float distance){
+		this.point = point;
+		this.distance = distance;
+	}
+
+	/** Get the DataPoint.
+	 * @return DataPoint<T>
+	 **/
+	public DataPoint<T> getPoint(){
+		return point;
+	}
+
+	/** Get distance of DataPoint from query target.
+	 * @return float
+	 **/
+	public float getDistance(){
+		return distance;
+	}
+
+	@Override
+	public int compareTo(QueryResult<T> other){
+		return Float.compare(distance, other.distance);
+	}
+
+	/* order results with the farthest at the head of the queue */
+	static <T extends Number> Comparator<QueryResult<T>> farthestFirst(){
+		return (a, b) -> Float.compare(b.distance, a.distance);
+	}
+
+	/* Offer a point to a bounded queue of the k nearest points (farthest first).
+	 * @return boolean   true if point was kept
+	 */
+	static <T extends Number> boolean offer(PriorityQueue<QueryResult<T>> nearest, int k,
+											DataPoint<T> point, float distance){
+		return offer(nearest, k, new QueryResult<>(point, distance));
+	}
+
+	static <T extends Number> boolean offer(PriorityQueue<QueryResult<T>> nearest, int k,
+											QueryResult<T> result){
+		if (nearest.size() < k){
+			nearest.add(result);
+			return true;
+		}
+		if (result.distance < nearest.peek().distance){
+			nearest.poll();
+			nearest.add(result);
+			return true;
+		}
+		return false;
+	}
+
+	/* Current search radius: distance of the kth nearest point, if k points
+	 * have been found, otherwise unbounded. */
+	static <T extends Number> float radius(PriorityQueue<QueryResult<T>> nearest, int k){
+		if (nearest.size() < k)
+			return Float.MAX_VALUE;
+		return nearest.peek().distance;
+	}
+}
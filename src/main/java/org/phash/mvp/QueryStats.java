@@ -0,0 +1,55 @@
+package org.phash.mvp;
+
+/**
+ * Counts of the work done by queries, either for a single query,
+ * or totalled over all queries on a tree.
+ * @author dgs
+ * @version 1.0
+ */
+public class QueryStats {
+
+	/** No. queries (targets queried) */
+	public long n_queries;
+
+	/** No. internal nodes visited */
+	public long n_internal;
+
+	/** No. leaf nodes visited */
+	public long n_leaf;
+
+	/** No. leaf points rejected by path of distances without a distance evaluation */
+	public long n_rejected;
+
+	/** No. distance evaluations */
+	public long n_distances;
+
+	/** No. results */
+	public long n_results;
+
+	/** Wall time in nanoseconds */
+	public long elapsed_nanos;
+
+	/** Constructor */
+	public QueryStats(){}
+
+	/** Add another set of counts to this one.
+	 * @param QueryStats  other
+	 * @return void
+	 **/
+	public void add(QueryStats other){
+		n_queries     += other.n_queries;
+		n_internal    += other.n_internal;
+		n_leaf        += other.n_leaf;
+		n_rejected    += other.n_rejected;
+		n_distances   += other.n_distances;
+		n_results     += other.n_results;
+		elapsed_nanos += other.elapsed_nanos;
+	}
+
+	@Override
+	public String toString(){
+		return String.format("queries %d, internal %d, leaf %d, rejected %d, distances %d, results %d, %.3f ms",
+							 n_queries, n_internal, n_leaf, n_rejected, n_distances, n_results,
+							 elapsed_nanos/1000000.0);
+	}
+}
@@ -0,0 +1,93 @@
+package org.phash.mvp;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Vantage point selection of points chosen uniformly at random.
+ * Costs no distance calculations.  The random choices for a node are
+ * derived from the seed and the node's points, so that the same points
+ * are given the same vantage points whichever thread chooses them, and
+ * in whatever order the nodes of a tree are built.
+ *
+ * @author dgs
+ * @version 0.1
+ **/
+
+public class RandomSelector<T extends Number> implements VantagePointSelector<T> {
+
+	private final long seed;
+
+	/** Constructor **/
+	public RandomSelector(){
+		this(new Random().nextLong());
+	}
+
+	/** Constructor
+	 * @param long seed of random numbers
+	 **/
+	public RandomSelector(long seed){
+		this.seed = seed;
+	}
+
+	@Override
+	public int[] select(List<? extends DataObject<T>> points, int numvps, MetricDistance<T> metric){
+		return sample(random(seed, points), points.size(), numvps);
+	}
+
+	/** Get random numbers for the choices made among a node's points, derived
+	 *  from a seed, the number of points and the data of the first point.
+	 * @param long                          seed
+	 * @param List<? extends DataObject<?>> points
+	 * @return Random
+	 **/
+	protected static Random random(long seed, List<? extends DataObject<?>> points){
+		long h = 31*seed + points.size();
+		if (!points.isEmpty()){
+			Object data = points.get(0).getPrimitiveDataWithoutTx();
+			if (data instanceof float[]) h = 31*h + Arrays.hashCode((float[])data);
+			else if (data instanceof double[]) h = 31*h + Arrays.hashCode((double[])data);
+			else if (data instanceof int[]) h = 31*h + Arrays.hashCode((int[])data);
+			else if (data instanceof byte[]) h = 31*h + Arrays.hashCode((byte[])data);
+			else if (data instanceof long[]) h = 31*h + Arrays.hashCode((long[])data);
+		}
+		return new Random(h);
+	}
+
+	/** Sample k distinct positions of n uniformly at random, or all n if k >= n.
+	 * @param Random rnd
+	 * @param int    n
+	 * @param int    k
+	 * @return int[] positions
+	 **/
+	protected static int[] sample(Random rnd, int n, int k){
+		if (k >= n){
+			int[] all = new int[n];
+			for (int i=0;i < n;i++){
+				all[i] = i;
+			}
+			return all;
+		}
+		int[] positions = new int[k];
+		if (2*k > n){
+			/* partial shuffle */
+			int[] all = sample(rnd, n, n);
+			for (int i=0;i < k;i++){
+				int j = i + rnd.nextInt(n - i);
+				int t = all[i];
+				all[i] = all[j];
+				all[j] = t;
+			}
+			return Arrays.copyOf(all, k);
+		}
+		HashSet<Integer> chosen = new HashSet<>(2*k);
+		int i = 0;
+		while (i < k){
+			int p = rnd.nextInt(n);
+			if (chosen.add(p)) positions[i++] = p;
+		}
+		return positions;
+	}
+}
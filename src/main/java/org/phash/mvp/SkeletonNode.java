@@ -0,0 +1,149 @@
+package org.phash.mvp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Map;
+
+/** SkeletonNode
+ * Heap copy of an internal node's vantage points, their decoded data,
+ * whether they are active, and its splits at each level, so that queries
+ * can select child nodes without reading the node's relationships and
+ * properties.  Within a loaded skeleton of the tree, child nodes are
+ * linked as well, down to the leaves, which hold no copy of their own.
+ * (Stored node objects are not bound to a transaction, so the nodes
+ *  and points held can be used in the transaction of any later query.)
+ * @author dgs
+ * @version 0.1
+ **/
+class SkeletonNode<T extends Number> {
+
+	protected final MVPNode<T> node;
+
+	/* vantage points, their decoded data, and whether active, of internal node */
+	protected final DataPoint<T>[] vps;
+	protected final TargetPoint<T>[] vpdata;
+	protected final boolean[] active;
+
+	/* splits at each level of internal node */
+	protected final float[][] splits;
+
+	/* child nodes, null where no child, or null if not linked */
+	protected SkeletonNode<T>[] children = null;
+
+	/** Constructor
+	 *  Copy an internal node's vantage points and splits, without its child nodes.
+	 *  Leaf nodes are wrapped without a copy.
+	 * @param MVPNode<T>     node
+	 * @param NodeFactory<T> nf
+	 **/
+	@SuppressWarnings("unchecked")
+	protected SkeletonNode(MVPNode<T> node, NodeFactory<T> nf){
+		this.node = node;
+		if (MVPInternal.class.isInstance(node)){
+			MVPInternal<T> internal = (MVPInternal<T>)node;
+			int nl = nf.getNumLevelsPerNode();
+			ArrayList<DataPoint<T>> points = internal.getVantagePoints(nl, nf);
+			vps = (DataPoint<T>[])new DataPoint<?>[nl];
+			vpdata = (TargetPoint<T>[])new TargetPoint<?>[nl];
+			active = new boolean[nl];
+			splits = new float[nl][];
+			for (int n=0;n < nl;n++){
+				vps[n] = points.get(n);
+				vpdata[n] = new TargetPoint<>(vps[n]);
+				active[n] = vps[n].isActive();
+				splits[n] = internal.getSplitsAtLevel(n);
+			}
+		} else {
+			vps = null;
+			vpdata = null;
+			active = null;
+			splits = null;
+		}
+	}
+
+	protected boolean isInternal(){
+		return vps != null;
+	}
+
+	/* Mark the vantage point with node id inactive, as removed from the tree */
+	protected void deactivate(long vpid){
+		for (int n=0;n < vps.length;n++){
+			if (vps[n].getNode().getId() == vpid)
+				active[n] = false;
+		}
+	}
+
+	/* Create an array of n skeleton nodes; arrays of a generic type can only be created raw */
+	@SuppressWarnings("unchecked")
+	private static <T extends Number> SkeletonNode<T>[] newArray(int n){
+		return (SkeletonNode<T>[])new SkeletonNode<?>[n];
+	}
+
+	/** Load the skeleton beneath a node, linking every internal node to its
+	 *  child nodes, and adding each internal node to nodes, by its node id,
+	 *  and to vps, by the node ids of its vantage points.  Must be called
+	 *  within a transaction.
+	 * @param MVPNode<T>     topnode, or null for none
+	 * @param NodeFactory<T> nf
+	 * @param Map<Long,SkeletonNode<T>> nodes, internal nodes by node id
+	 * @param Map<Long,SkeletonNode<T>> vps, internal nodes by vantage point node id
+	 * @return SkeletonNode<T> top of skeleton, or null for no node
+	 **/
+	protected static <T extends Number> SkeletonNode<T> load(MVPNode<T> topnode, NodeFactory<T> nf,
+															 Map<Long,SkeletonNode<T>> nodes,
+															 Map<Long,SkeletonNode<T>> vps){
+		if (topnode == null)
+			return null;
+		int fanout = (int)Math.pow(nf.getBranchFactor(), nf.getNumLevelsPerNode());
+		SkeletonNode<T> top = new SkeletonNode<>(topnode, nf);
+		ArrayDeque<SkeletonNode<T>> pending = new ArrayDeque<>();
+		pending.add(top);
+		while (!pending.isEmpty()){
+			SkeletonNode<T> skel = pending.poll();
+			if (!skel.isInternal())
+				continue;
+			nodes.put(skel.node.getNode().getId(), skel);
+			for (DataPoint<T> vp : skel.vps){
+				vps.put(vp.getNode().getId(), skel);
+			}
+			MVPInternal<T> internal = (MVPInternal<T>)skel.node;
+			skel.children = newArray(fanout);
+			for (int i=0;i < fanout;i++){
+				MVPNode<T> child = internal.getChildNode(i);
+				if (child != null){
+					skel.children[i] = new SkeletonNode<>(child, nf);
+					pending.add(skel.children[i]);
+				}
+			}
+		}
+		return top;
+	}
+
+	/** Remove the internal nodes of the skeleton beneath a node from nodes and vps,
+	 *  as added by load().
+	 * @param SkeletonNode<T> top, or null for none
+	 * @param Map<Long,SkeletonNode<T>> nodes
+	 * @param Map<Long,SkeletonNode<T>> vps
+	 * @return void
+	 **/
+	protected static <T extends Number> void unload(SkeletonNode<T> top,
+													Map<Long,SkeletonNode<T>> nodes,
+													Map<Long,SkeletonNode<T>> vps){
+		ArrayDeque<SkeletonNode<T>> pending = new ArrayDeque<>();
+		if (top != null)
+			pending.add(top);
+		while (!pending.isEmpty()){
+			SkeletonNode<T> skel = pending.poll();
+			if (!skel.isInternal())
+				continue;
+			nodes.remove(skel.node.getNode().getId());
+			for (DataPoint<T> vp : skel.vps){
+				vps.remove(vp.getNode().getId());
+			}
+			for (int i=0;skel.children != null && i < skel.children.length;i++){
+				if (skel.children[i] != null)
+					pending.add(skel.children[i]);
+			}
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package org.phash.mvp;
+
+import java.util.List;
+
+/**
+ * <h1>StorageBackend</h1>
+ * Storage of the nodes of an mvptree and its DataPoints as a graph of nodes
+ * with properties and labels, joined by relationships, with an index of
+ * DataPoints by String id.  The tree's algorithms are written against this
+ * interface, so the same tree can be kept in a Neo4j graph database
+ * (Neo4jBackend), in a memory-mapped file (MappedBackend), or held in
+ * memory only (HeapBackend).
+ * All access is made within a transaction from beginTx().
+ * @author dgs
+ * @version 0.1
+ */
+public interface StorageBackend {
+
+	/** Open the store, if not open.
+	 * @return void
+	 **/
+	public void init();
+
+	/** Close the store.
+	 * @return void
+	 **/
+	public void shutdown();
+
+	/** Begin a transaction, to be closed by the calling thread.
+	 * @return StorageTransaction
+	 **/
+	public StorageTransaction beginTx();
+
+	/** Create a node with no properties.
+	 * @return StorageNode
+	 **/
+	public StorageNode createNode();
+
+	/** Get a node by its id.
+	 * @param long id
+	 * @return StorageNode
+	 **/
+	public StorageNode getNodeById(long id);
+
+	/** Find the nodes with a label.
+	 * @param String label
+	 * @return List<StorageNode>
+	 **/
+	public List<StorageNode> findNodes(String label);
+
+	/** Find the nodes with a label and a property value.
+	 * @param String label
+	 * @param String key
+	 * @param Object value
+	 * @return List<StorageNode>
+	 **/
+	public List<StorageNode> findNodes(String label, String key, Object value);
+
+	/** Add a DataPoint node to the index by its String id.
+	 * @param StorageNode node
+	 * @param String      id
+	 * @return void
+	 **/
+	public void indexPoint(StorageNode node, String id);
+
+	/** Look up a DataPoint node in the index by its String id.
+	 * @param String id
+	 * @return StorageNode, or null if not found
+	 **/
+	public StorageNode lookupPoint(String id);
+
+	/** Remove a DataPoint node from the index.
+	 * @param StorageNode node
+	 * @param String      id
+	 * @return void
+	 **/
+	public void unindexPoint(StorageNode node, String id);
+
+	/** Remove all DataPoint nodes from the index.
+	 * @return void
+	 **/
+	public void clearPointIndex();
+
+	/** Count the DataPoint nodes in the index.  May be slow.
+	 * @return int
+	 **/
+	public int countPointIndex();
+}
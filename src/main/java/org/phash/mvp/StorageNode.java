@@ -0,0 +1,45 @@
+package org.phash.mvp;
+
+/**
+ * A node in a StorageBackend, with properties of primitive values,
+ * Strings or primitive arrays, labels, and relationships to other nodes.
+ * Arrays are copied when set and when read, so a caller may change an
+ * array it set or read without changing the stored value, and a change
+ * only takes effect, and is undone on rollback, through setProperty.
+ * @author dgs
+ * @version 0.1
+ */
+public interface StorageNode {
+
+	public long getId();
+
+	public StorageBackend getBackend();
+
+	/** Get a property value, throwing if there is none **/
+	public Object getProperty(String key);
+
+	public Object getProperty(String key, Object defaultValue);
+
+	public boolean hasProperty(String key);
+
+	public void setProperty(String key, Object value);
+
+	public void removeProperty(String key);
+
+	public void addLabel(String label);
+
+	public void removeLabel(String label);
+
+	public boolean hasLabel(String label);
+
+	public StorageRelationship createRelationshipTo(StorageNode other, MVPRelationshipTypes type);
+
+	/** Get the outgoing relationships of a type **/
+	public Iterable<StorageRelationship> getRelationships(MVPRelationshipTypes type);
+
+	/** Get all relationships, in either direction **/
+	public Iterable<StorageRelationship> getRelationships();
+
+	/** Delete the node, which must have no relationships **/
+	public void delete();
+}
@@ -0,0 +1,20 @@
+package org.phash.mvp;
+
+/**
+ * A relationship from one StorageNode to another, with properties,
+ * whose arrays are copied when set and when read, as for a StorageNode.
+ * @author dgs
+ * @version 0.1
+ */
+public interface StorageRelationship {
+
+	public StorageNode getStartNode();
+
+	public StorageNode getEndNode();
+
+	public Object getProperty(String key);
+
+	public void setProperty(String key, Object value);
+
+	public void delete();
+}
@@ -0,0 +1,19 @@
+package org.phash.mvp;
+
+/**
+ * A transaction of a StorageBackend.  Changes are committed on close()
+ * if success() was called, else rolled back, where the backend supports it.
+ * @author dgs
+ * @version 0.1
+ */
+public interface StorageTransaction extends AutoCloseable {
+
+	/** Mark the transaction to be committed on close **/
+	public void success();
+
+	/** Lock a node for writing until the transaction is closed **/
+	public void acquireWriteLock(StorageNode node);
+
+	@Override
+	public void close();
+}
@@ -1,5 +1,8 @@
 package org.phash.mvp;
 
+import java.lang.reflect.Array;
+import org.apache.commons.lang3.ArrayUtils;
+
 /**
  * <h1>TargetPoint</hh>
  * TargetPoint is Used for querying the tree for a given
@@ -10,38 +13,84 @@ package org.phash.mvp;
  */
 public class TargetPoint<T extends Number> implements DataObject<T> {
 
-	T[] data;
+	private T[] data;
+
+	/* primitive copy of data, converted when the data is set */
+	private Object primdata;
 
 	/** constructor **/
 	public TargetPoint(){};
 
 	/** consturctor 
-	 * @param T[]   data
+	 * @param T[]   data, converted to a primitive array once, so that later
+	 *              changes to its elements are not seen by queries
 	 **/
 	public TargetPoint(T[] data){
-		this.data = data;
+		setData(data);
+	}
+
+	/* Share the primitive data of another DataObject, e.g. an array held by the
+	 * VectorCache or the storage backend, which must not be modified.  Boxed only
+	 * if getData() is called. */
+	TargetPoint(DataObject<T> obj){
+		this.primdata = obj.getPrimitiveDataWithoutTx();
+	}
+
+	/* Copy a range of a packed primitive array, boxed only if getData() is called.
+	 * Only for metrics without primitive overloads, see PrimitiveMetricDistance. */
+	TargetPoint(Object array, int offset, int length){
+		this.primdata = Array.newInstance(array.getClass().getComponentType(), length);
+		System.arraycopy(array, offset, this.primdata, 0, length);
 	}
 
 	/** Set the data.
-	 *  @param T[]   data
+	 *  @param T[]   data, converted to a primitive array once, so that later
+	 *               changes to its elements are not seen by queries
 	 *  @return void
 	 **/
 	public void setData(T[] data){
 		this.data = data;
+		this.primdata = (data != null) ? DataObject.super.getPrimitiveDataWithoutTx() : null;
 	}
 
 	/** Get the Data 
 	 *  @return T[]
 	 **/
 	public T[] getData(){
+		if (data == null && primdata != null)
+			data = toObject(primdata);
 		return data;
 	}
 
+	/* Box a primitive array.  The boxed type is the element type the primitive
+	 * data was converted from, or read for, as T. */
+	@SuppressWarnings("unchecked")
+	private static <T extends Number> T[] toObject(Object primdata){
+		if (primdata instanceof float[])
+			return (T[])ArrayUtils.toObject((float[])primdata);
+		else if (primdata instanceof double[])
+			return (T[])ArrayUtils.toObject((double[])primdata);
+		else if (primdata instanceof int[])
+			return (T[])ArrayUtils.toObject((int[])primdata);
+		else if (primdata instanceof byte[])
+			return (T[])ArrayUtils.toObject((byte[])primdata);
+		else if (primdata instanceof long[])
+			return (T[])ArrayUtils.toObject((long[])primdata);
+		throw new DataPointException("datatype not float, double, int, byte, long");
+	}
+
 	/** Get the data 
 	 * (identical to getData() but necessary for symmetry with DataPoint class)
 	 * @return T[]
 	 **/
 	public T[] getDataWithoutTx(){
-		return data;
+		return getData();
+	}
+
+	/** Get the data as a primitive array, as converted when the data was set
+	 * @return Object
+	 **/
+	public Object getPrimitiveDataWithoutTx(){
+		return primdata;
 	}
 }
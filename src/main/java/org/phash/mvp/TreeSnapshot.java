@@ -0,0 +1,272 @@
+package org.phash.mvp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/** TreeSnapshot
+ * Binary snapshot of a tree, independent of its storage backend: the tree's
+ * parameters, followed by its MVP nodes in breadth first order, each with
+ * its vantage points, splits, child slots, and, for a leaf, its active
+ * points with their paths.  Every point is written with its String id,
+ * active flag and data.  Node ids are not written, since a restored tree
+ * has new ones; the order of nodes links each child to its parent.  Inactive
+ * leaf points are dropped, so a restored tree holds no deleted points other
+ * than vantage points.
+ * @author dgs
+ * @version 0.1
+ **/
+class TreeSnapshot {
+
+	private static final int Magic = 0x4d565053;  /* "MVPS" */
+	private static final int Version = 1;
+
+	/* node record types */
+	private static final byte EndRecord = 0;
+	private static final byte InternalRecord = 1;
+	private static final byte LeafRecord = 2;
+
+	/** Write a snapshot of a tree.  Must be called within a transaction.
+	 * @param NodeFactory<T>   nf
+	 * @param DataOutputStream out
+	 * @return long  no. points written
+	 **/
+	protected static <T extends Number> long write(NodeFactory<T> nf, DataOutputStream out) throws IOException {
+		int nl = nf.getNumLevelsPerNode();
+		int fanout = (int)Math.pow(nf.getBranchFactor(), nl);
+		out.writeInt(Magic);
+		out.writeInt(Version);
+		out.writeUTF(nf.getType().getName());
+		out.writeInt(nf.getBranchFactor());
+		out.writeInt(nf.getPathLength());
+		out.writeInt(nf.getLeafMinimum());
+		out.writeInt(nl);
+		out.writeBoolean(nf.isPackedLeaves());
+
+		long npoints = 0;
+		ArrayDeque<MVPNode<T>> pending = new ArrayDeque<>();
+		MVPNode<T> top = nf.getTopNode();
+		if (top != null) pending.add(top);
+		while (!pending.isEmpty()){
+			MVPNode<T> mvpnode = pending.poll();
+			boolean internal = MVPInternal.class.isInstance(mvpnode);
+			out.writeByte(internal ? InternalRecord : LeafRecord);
+
+			int numvps = mvpnode.getNumVantagePoints();
+			out.writeInt(numvps);
+			for (DataPoint<T> vp : mvpnode.getVantagePoints(numvps, nf)){
+				writePoint(vp, out);
+				npoints++;
+			}
+
+			if (internal){
+				MVPInternal<T> node = (MVPInternal<T>)mvpnode;
+				for (int n=0;n < nl;n++){
+					writeArray(node.getSplitsAtLevel(n), out);
+				}
+				out.writeInt(fanout);
+				for (int i=0;i < fanout;i++){
+					MVPNode<T> child = node.getChildNode(i);
+					out.writeBoolean(child != null);
+					if (child != null) pending.add(child);
+				}
+			} else {
+				ArrayList<DataPoint<T>> points = ((MVPLeaf<T>)mvpnode).getActiveDataPoints(nf);
+				out.writeInt(points.size());
+				for (DataPoint<T> pnt : points){
+					writeArray(pnt.getPath(), out);
+					writePoint(pnt, out);
+					npoints++;
+				}
+			}
+		}
+		out.writeByte(EndRecord);
+		out.writeLong(npoints);
+		return npoints;
+	}
+
+	/** Restore a tree from a snapshot into an empty tree, replacing its parameters.
+	 *  Points are committed in transactions of TreeWriter.BatchSize points, so the
+	 *  tree is left partly restored if this fails.
+	 * @param NodeFactory<T>  nf
+	 * @param DataInputStream in
+	 * @return long  no. points restored
+	 **/
+	protected static <T extends Number> long read(NodeFactory<T> nf, DataInputStream in) throws IOException {
+		if (in.readInt() != Magic)
+			throw new MVPTreeException("not an mvptree snapshot");
+		int version = in.readInt();
+		if (version != Version)
+			throw new MVPTreeException("unsupported snapshot version " + version);
+		String typename = in.readUTF();
+		if (!typename.equals(nf.getType().getName()))
+			throw new MVPTreeException("snapshot of type " + typename + " not " + nf.getType().getName());
+		int bf = in.readInt();
+		int pl = in.readInt();
+		int lm = in.readInt();
+		int nl = in.readInt();
+		boolean packed = in.readBoolean();
+
+		try (TreeWriter<T> writer = new TreeWriter<>(nf)){
+			if (nf.getTopNode() != null)
+				throw new MVPTreeException("tree not empty");
+			nf.setParameters(bf, pl, lm, nl, packed);
+
+			byte record;
+			while ((record = in.readByte()) != EndRecord){
+				if (record != InternalRecord && record != LeafRecord)
+					throw new MVPTreeException("corrupt snapshot: record type " + record);
+
+				MVPNode<T> mvpnode = writer.createNode(record == InternalRecord);
+				int numvps = in.readInt();
+				for (int i=0;i < numvps;i++){
+					DataPoint<T> vp = readPoint(writer, in);
+					mvpnode.setVantagePoint(vp, i);
+				}
+
+				if (record == InternalRecord){
+					MVPInternal<T> node = (MVPInternal<T>)mvpnode;
+					for (int n=0;n < nl;n++){
+						float[] splits = (float[])readArray(in);
+						if (splits != null) node.setSplitsAtLevel(splits, n);
+					}
+					int fanout = in.readInt();
+					for (int i=0;i < fanout;i++){
+						if (in.readBoolean())
+							writer.addChildSlot(node, i);
+					}
+				} else {
+					int n = in.readInt();
+					ArrayList<DataPoint<T>> points = new ArrayList<>(n);
+					for (int i=0;i < n;i++){
+						float[] path = (float[])readArray(in);
+						DataPoint<T> pnt = readPoint(writer, in);
+						pnt.setPath(path);
+						points.add(pnt);
+					}
+					((MVPLeaf<T>)mvpnode).addDataPoints(points);
+				}
+				writer.endNode();
+			}
+			long expected = in.readLong();
+			long npoints = writer.finish();
+			if (expected != npoints)
+				throw new MVPTreeException("corrupt snapshot: " + npoints + " of " + expected + " points");
+			return npoints;
+		}
+	}
+
+	/* Write a point's id, active flag and data */
+	private static <T extends Number> void writePoint(DataPoint<T> pnt, DataOutputStream out) throws IOException {
+		out.writeUTF(pnt.getIdWithoutTx());
+		out.writeBoolean(pnt.isActive());
+		writeArray(pnt.getPrimitiveDataWithoutTx(), out);
+	}
+
+	/* Create a point from its id, active flag and data */
+	private static <T extends Number> DataPoint<T> readPoint(TreeWriter<T> writer, DataInputStream in) throws IOException {
+		String id = in.readUTF();
+		boolean active = in.readBoolean();
+		Object data = readArray(in);
+		if (data == null)
+			throw new MVPTreeException("corrupt snapshot: point without data");
+		return writer.createPoint(id, active, data);
+	}
+
+	/* array types */
+	private static final byte NullArray = 0;
+	private static final byte FloatArray = 1;
+	private static final byte DoubleArray = 2;
+	private static final byte IntArray = 3;
+	private static final byte ByteArray = 4;
+	private static final byte LongArray = 5;
+
+	/* Write a primitive array, or null, with its type and length, in one write */
+	private static void writeArray(Object array, DataOutputStream out) throws IOException {
+		if (array == null){
+			out.writeByte(NullArray);
+			return;
+		}
+		ByteBuffer buf;
+		if (array instanceof float[]){
+			float[] a = (float[])array;
+			buf = ByteBuffer.allocate(4*a.length);
+			buf.asFloatBuffer().put(a);
+			out.writeByte(FloatArray);
+			out.writeInt(a.length);
+		} else if (array instanceof double[]){
+			double[] a = (double[])array;
+			buf = ByteBuffer.allocate(8*a.length);
+			buf.asDoubleBuffer().put(a);
+			out.writeByte(DoubleArray);
+			out.writeInt(a.length);
+		} else if (array instanceof int[]){
+			int[] a = (int[])array;
+			buf = ByteBuffer.allocate(4*a.length);
+			buf.asIntBuffer().put(a);
+			out.writeByte(IntArray);
+			out.writeInt(a.length);
+		} else if (array instanceof byte[]){
+			byte[] a = (byte[])array;
+			buf = ByteBuffer.wrap(a);
+			out.writeByte(ByteArray);
+			out.writeInt(a.length);
+		} else if (array instanceof long[]){
+			long[] a = (long[])array;
+			buf = ByteBuffer.allocate(8*a.length);
+			buf.asLongBuffer().put(a);
+			out.writeByte(LongArray);
+			out.writeInt(a.length);
+		} else
+			throw new DataPointException("datatype not float, double, int, byte, long");
+		out.write(buf.array(), buf.arrayOffset(), buf.capacity());
+	}
+
+	/* Read a primitive array, or null, written by writeArray */
+	private static Object readArray(DataInputStream in) throws IOException {
+		byte type = in.readByte();
+		if (type == NullArray)
+			return null;
+		int length = in.readInt();
+		if (length < 0)
+			throw new MVPTreeException("corrupt snapshot: array length " + length);
+		switch (type){
+		case FloatArray: {
+			float[] a = new float[length];
+			readBuffer(in, 4*length).asFloatBuffer().get(a);
+			return a;
+		}
+		case DoubleArray: {
+			double[] a = new double[length];
+			readBuffer(in, 8*length).asDoubleBuffer().get(a);
+			return a;
+		}
+		case IntArray: {
+			int[] a = new int[length];
+			readBuffer(in, 4*length).asIntBuffer().get(a);
+			return a;
+		}
+		case ByteArray: {
+			byte[] a = new byte[length];
+			in.readFully(a);
+			return a;
+		}
+		case LongArray: {
+			long[] a = new long[length];
+			readBuffer(in, 8*length).asLongBuffer().get(a);
+			return a;
+		}
+		default:
+			throw new MVPTreeException("corrupt snapshot: array type " + type);
+		}
+	}
+
+	private static ByteBuffer readBuffer(DataInputStream in, int nbytes) throws IOException {
+		byte[] bytes = new byte[nbytes];
+		in.readFully(bytes);
+		return ByteBuffer.wrap(bytes);
+	}
+}
@@ -0,0 +1,124 @@
+package org.phash.mvp;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/** TreeWriter
+ * Writes a whole tree into an empty store in one pass, node by node in
+ * breadth first order, as when restoring a snapshot or writing a tree
+ * built in memory.  The first node written becomes the top node, and each
+ * later node is linked to the next of the child slots added by the nodes
+ * before it.  Points are committed in transactions of BatchSize points,
+ * the active ones being indexed before each commit, so the tree is left
+ * partly written if writing fails.
+ * @author dgs
+ * @version 0.1
+ **/
+class TreeWriter<T extends Number> implements AutoCloseable {
+
+	/* no. points written in each transaction */
+	protected static final int BatchSize = 10000;
+
+	private final NodeFactory<T> nf;
+	private StorageTransaction tx;
+
+	/* parents and slots of the child nodes still to be written, in order */
+	private final ArrayDeque<MVPInternal<T>> parents = new ArrayDeque<>();
+	private final ArrayDeque<Integer> slots = new ArrayDeque<>();
+
+	/* active points of current transaction, still to be indexed */
+	private final ArrayList<DataPoint<T>> indexed = new ArrayList<>();
+
+	private MVPNode<T> top = null;
+	private long npoints = 0, nbatch = 0;
+
+	/** Constructor
+	 *  Begins the first transaction.
+	 * @param NodeFactory<T> nf
+	 **/
+	protected TreeWriter(NodeFactory<T> nf){
+		this.nf = nf;
+		this.tx = nf.getBackend().beginTx();
+	}
+
+	/** Create the next node, as the top node or linked to its parent.
+	 * @param boolean internal, true for an internal node, false for a leaf
+	 * @return MVPNode<T>
+	 **/
+	protected MVPNode<T> createNode(boolean internal){
+		MVPNode<T> mvpnode = internal
+			? nf.createInternalNode(new ArrayList<DataPoint<T>>())
+			: nf.createLeafNode(new ArrayList<DataPoint<T>>());
+		if (top == null){
+			top = mvpnode;
+			mvpnode.setAsTop(nf);
+		} else if (parents.isEmpty()){
+			throw new MVPTreeException("node without parent");
+		} else {
+			parents.poll().setChildNodeAt(mvpnode, slots.poll());
+		}
+		return mvpnode;
+	}
+
+	/** Add a child slot of an internal node, to be filled by a later node.
+	 * @param MVPInternal<T> node
+	 * @param int            slot
+	 * @return void
+	 **/
+	protected void addChildSlot(MVPInternal<T> node, int slot){
+		parents.add(node);
+		slots.add(slot);
+	}
+
+	/** Create a point, to be indexed if active.
+	 * @param String  id
+	 * @param boolean active
+	 * @param Object  data, primitive array
+	 * @return DataPoint<T>
+	 **/
+	protected DataPoint<T> createPoint(String id, boolean active, Object data){
+		DataPoint<T> pnt = nf.createDataPoint();
+		pnt.setIdWithoutTx(id);
+		pnt.setPrimitiveDataWithoutTx(data);
+		if (active)
+			indexed.add(pnt);
+		else
+			pnt.setActive(false);
+		npoints++;
+		nbatch++;
+		return pnt;
+	}
+
+	/** End the current node, committing the transaction once it holds BatchSize points.
+	 * @return void
+	 **/
+	protected void endNode(){
+		if (nbatch >= BatchSize){
+			nf.indexPoints(indexed, tx);
+			indexed.clear();
+			tx.success();
+			tx.close();
+			tx = null;
+			tx = nf.getBackend().beginTx();
+			nbatch = 0;
+		}
+	}
+
+	/** Commit the last transaction, once every child slot is filled.
+	 * @return long  no. points written
+	 **/
+	protected long finish(){
+		if (!parents.isEmpty())
+			throw new MVPTreeException("missing child nodes");
+		nf.indexPoints(indexed, tx);
+		indexed.clear();
+		tx.success();
+		return npoints;
+	}
+
+	@Override
+	public void close(){
+		if (tx != null)
+			tx.close();
+	}
+}
@@ -0,0 +1,27 @@
+package org.phash.mvp;
+
+import java.util.List;
+
+/**
+ * Interface for vantage point selection strategies.  When a node is
+ * created, or a leaf short of vantage points takes new points, the
+ * strategy chooses its vantage points from the points being added to it.
+ * Implementations must be safe to call from several threads at once,
+ * and should choose the same vantage points from the same points in
+ * whatever order they are called, so that a tree whose nodes are built
+ * in parallel, as by MVPTree.bulkLoad(), is the same from run to run.
+ *
+ * @author dgs
+ * @version 0.1
+ **/
+
+public interface VantagePointSelector<T extends Number> {
+
+	/** Choose vantage points from a list of candidate points.
+	 * @param List<? extends DataObject<T>> points, candidates, not to be modified
+	 * @param int               numvps, no. vantage points to choose, no more than points.size()
+	 * @param MetricDistance<T> metric, to compute distances between candidates
+	 * @return int[] positions in points of numvps distinct vantage points, in order
+	 **/
+	public int[] select(List<? extends DataObject<T>> points, int numvps, MetricDistance<T> metric);
+}
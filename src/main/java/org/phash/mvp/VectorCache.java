@@ -0,0 +1,204 @@
+package org.phash.mvp;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <h1>VectorCache</h1>
+ * A bounded cache of decoded primitive data arrays of vantage points,
+ * keyed by neo4j node id, so that the data of the vantage points of the
+ * top levels of the tree, visited by every query, is not read from the
+ * database on every query.  Points scanned in leaves are not cached, so
+ * a wide scan does not evict the vantage points.  Lookups do not take a
+ * lock, so concurrent queries do not wait on each other.  Once the cached
+ * arrays exceed a budget of bytes, entries not looked up since the last
+ * eviction pass are evicted first (second chance).  Cached arrays are
+ * shared and must not be modified.
+ * @author dgs
+ * @version 0.1
+ */
+public class VectorCache {
+
+	/* approx. overhead per entry of array header, key and map entry */
+	private static final long EntryOverhead = 96;
+
+	private static final class Entry {
+		final Object array;
+		final long size;
+		volatile boolean referenced = true;
+
+		Entry(Object array, long size){
+			this.array = array;
+			this.size = size;
+		}
+	}
+
+	private final ConcurrentHashMap<Long,Entry> entries = new ConcurrentHashMap<>(1024);
+	private volatile long capacity;
+	private final AtomicLong bytes = new AtomicLong();
+
+	/* incremented on every invalidation, so that a value read from the database
+	 * before an invalidation is not cached after it */
+	private final AtomicLong generation = new AtomicLong();
+
+	/* held only to evict entries, never to look them up */
+	private final Object evictLock = new Object();
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	/** Constructor
+	 * @param long   capacity, max. bytes of cached arrays (0 disables cache)
+	 **/
+	protected VectorCache(long capacity){
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity < 0");
+		this.capacity = capacity;
+	}
+
+	/* approx. size in bytes of a primitive array */
+	private static long sizeOf(Object array){
+		if (array instanceof float[]) return EntryOverhead + 4L*((float[])array).length;
+		if (array instanceof double[]) return EntryOverhead + 8L*((double[])array).length;
+		if (array instanceof long[]) return EntryOverhead + 8L*((long[])array).length;
+		if (array instanceof int[]) return EntryOverhead + 4L*((int[])array).length;
+		if (array instanceof byte[]) return EntryOverhead + ((byte[])array).length;
+		throw new DataPointException("datatype not float, double, int, byte, long");
+	}
+
+	/* Get cached array for node id, or null if not cached. */
+	protected Object get(long id){
+		Entry entry = entries.get(id);
+		if (entry == null){
+			misses.increment();
+			return null;
+		}
+		if (!entry.referenced)
+			entry.referenced = true;
+		hits.increment();
+		return entry.array;
+	}
+
+	/* Get the current generation, to be passed to put() with a value read afterwards. */
+	protected long getGeneration(){
+		return generation.get();
+	}
+
+	/* Cache array for node id, unless an invalidation has happened since generation. */
+	protected void put(long id, Object array, long generation){
+		long cap = capacity;
+		if (generation != this.generation.get() || cap == 0)
+			return;
+		long size = sizeOf(array);
+		if (size > cap)
+			return;
+		Entry entry = new Entry(array, size);
+		Entry previous = entries.put(id, entry);
+		bytes.addAndGet(previous != null ? size - previous.size : size);
+		/* an invalidation between the check above and the put must not leave it cached */
+		if (generation != this.generation.get())
+			remove(id, entry);
+		if (bytes.get() > capacity)
+			evict();
+	}
+
+	/* Remove entry, if still mapped to id */
+	private void remove(long id, Entry entry){
+		if (entries.remove(id, entry))
+			bytes.addAndGet(-entry.size);
+	}
+
+	/* Evict entries until within capacity.  An entry looked up since the last
+	 * pass over it is spared and its referenced flag cleared; the last pass
+	 * evicts regardless, so that concurrent lookups cannot keep it over capacity. */
+	private void evict(){
+		synchronized (evictLock){
+			for (int pass=0;pass<3 && bytes.get() > capacity;pass++){
+				for (Map.Entry<Long,Entry> e : entries.entrySet()){
+					if (bytes.get() <= capacity)
+						break;
+					Entry entry = e.getValue();
+					if (entry.referenced && pass < 2)
+						entry.referenced = false;
+					else
+						remove(e.getKey(), entry);
+				}
+			}
+		}
+	}
+
+	/* Remove node id from cache. */
+	protected void invalidate(long id){
+		generation.incrementAndGet();
+		Entry previous = entries.remove(id);
+		if (previous != null)
+			bytes.addAndGet(-previous.size);
+	}
+
+	/** Remove all entries from cache. Hit and miss counts are kept.
+	 * @return void
+	 **/
+	public void clear(){
+		generation.incrementAndGet();
+		for (Map.Entry<Long,Entry> e : entries.entrySet()){
+			remove(e.getKey(), e.getValue());
+		}
+	}
+
+	/** Set max. bytes of cached arrays, evicting entries as needed.
+	 *  A capacity of 0 disables the cache.
+	 * @param long capacity
+	 * @return void
+	 **/
+	public void setCapacity(long capacity){
+		if (capacity < 0)
+			throw new IllegalArgumentException("capacity < 0");
+		this.capacity = capacity;
+		evict();
+	}
+
+	/** Get max. bytes of cached arrays
+	 * @return long
+	 **/
+	public long getCapacity(){
+		return capacity;
+	}
+
+	/** Get approx. bytes of cached arrays
+	 * @return long
+	 **/
+	public long getBytes(){
+		return bytes.get();
+	}
+
+	/** Get number of cached arrays
+	 * @return int
+	 **/
+	public int size(){
+		return entries.size();
+	}
+
+	/** Get number of lookups found in cache
+	 * @return long
+	 **/
+	public long getHitCount(){
+		return hits.sum();
+	}
+
+	/** Get number of lookups not found in cache
+	 * @return long
+	 **/
+	public long getMissCount(){
+		return misses.sum();
+	}
+
+	/** Reset hit and miss counts to zero
+	 * @return void
+	 **/
+	public void resetCounts(){
+		hits.reset();
+		misses.reset();
+	}
+}
@@ -0,0 +1,213 @@
+package org.phash.mvp;
+
+import org.junit.Test;
+import org.junit.BeforeClass;
+import org.junit.Assert;
+import org.junit.runner.RunWith;
+import org.junit.runners.MethodSorters;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameter;
+import org.junit.runners.Parameterized.Parameters;
+import org.junit.FixMethodOrder;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+/**
+ * Compare primitive metric distances against boxed reference
+ * implementations, and bounded distances against unbounded ones,
+ * including over a range of a packed array, and benchmark each.
+ */
+@RunWith(Parameterized.class)
+@FixMethodOrder(MethodSorters.NAME_ASCENDING)
+public class TestDistanceFunctions {
+
+	@Parameters(name = "Test:{index}:distance(ndims={0})")
+	public static Collection<Object[]> data() {
+		return Arrays.asList(new Object[][] {
+				{20}, {64}, {128}, {256}, {512}
+			});
+	}
+
+	@Parameter (value = 0)
+	public int ndims;
+
+	public final int npoints = 1000;
+	public final int nreps = 20;
+
+	public static Random rnd;
+
+	public TestDistanceFunctions(){}
+
+	@BeforeClass
+	public static void setUp(){
+		rnd = new Random(28341);
+	}
+
+	private Float[] randomFloats(){
+		Float[] data = new Float[ndims];
+		for (int i=0;i<ndims;i++) data[i] = rnd.nextFloat();
+		return data;
+	}
+
+	private Long[] randomLongs(){
+		Long[] data = new Long[ndims];
+		for (int i=0;i<ndims;i++) data[i] = rnd.nextLong();
+		return data;
+	}
+
+	private Byte[] randomBytes(){
+		Byte[] data = new Byte[ndims];
+		for (int i=0;i<ndims;i++) data[i] = (byte)rnd.nextInt();
+		return data;
+	}
+
+	/* boxed distance computations as computed before the primitive metrics */
+	private static <T extends Number> double boxedL1(T[] x, T[] y){
+		Double sum = 0.0;
+		for (int i=0;i<x.length;i++){
+			sum = sum + Math.abs(x[i].doubleValue() - y[i].doubleValue());
+		}
+		return sum/x.length;
+	}
+
+	private static <T extends Number> double boxedL2(T[] x, T[] y){
+		Double sum = 0.0;
+		for (int i=0;i<x.length;i++){
+			sum = sum + Math.pow(x[i].doubleValue() - y[i].doubleValue(), 2.0);
+		}
+		return Math.sqrt(sum)/x.length;
+	}
+
+	private static <T extends Number> double boxedHamming(T[] x, T[] y){
+		int nbits = 0;
+		for (int i=0;i<x.length;i++){
+			nbits += Long.bitCount(x[i].longValue() ^ y[i].longValue());
+		}
+		return (double)nbits;
+	}
+
+	@Test
+	public void test0(){
+		System.out.printf("Test primitive distances against boxed, ndims = %d\n", ndims);
+		L1Distance<Float> l1 = new L1Distance<>();
+		L2Distance<Float> l2 = new L2Distance<>();
+		HammingDistance<Long> hamming = new HammingDistance<>();
+		HammingDistance<Byte> bytehamming = new HammingDistance<>();
+		for (int i=0;i<100;i++){
+			Float[] x = randomFloats();
+			Float[] y = randomFloats();
+			TargetPoint<Float> a = new TargetPoint<>(x);
+			TargetPoint<Float> b = new TargetPoint<>(y);
+			Assert.assertEquals(boxedL1(x, y), l1.primitiveDistance(a, b), 1e-9);
+			Assert.assertEquals(boxedL2(x, y), l2.primitiveDistance(a, b), 1e-9);
+			Assert.assertEquals(boxedL1(x, y), l1.distance(a, b), 1e-9);
+
+			Long[] u = randomLongs();
+			Long[] v = randomLongs();
+			Assert.assertEquals(boxedHamming(u, v),
+								hamming.primitiveDistance(new TargetPoint<>(u), new TargetPoint<>(v)), 0.0);
+
+			Byte[] s = randomBytes();
+			Byte[] t = randomBytes();
+			Assert.assertEquals(boxedHamming(s, t),
+								bytehamming.primitiveDistance(new TargetPoint<>(s), new TargetPoint<>(t)), 0.0);
+		}
+	}
+
+	@Test
+	public void test1(){
+		System.out.printf("Benchmark boxed vs primitive distances, ndims = %d\n", ndims);
+		Float[][] data = new Float[npoints][];
+		TargetPoint<Float>[] points = new TargetPoint[npoints];
+		for (int i=0;i<npoints;i++){
+			data[i] = randomFloats();
+			points[i] = new TargetPoint<>(data[i]);
+			points[i].getPrimitiveDataWithoutTx();
+		}
+		L2Distance<Float> l2 = new L2Distance<>();
+
+		double boxedsum = 0.0, primsum = 0.0;
+		long boxedtime = 0, primtime = 0;
+		for (int r=0;r<nreps;r++){
+			long start = System.nanoTime();
+			for (int i=1;i<npoints;i++){
+				boxedsum += boxedL2(data[0], data[i]);
+			}
+			boxedtime += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i=1;i<npoints;i++){
+				primsum += l2.primitiveDistance(points[0], points[i]);
+			}
+			primtime += System.nanoTime() - start;
+		}
+		int nops = nreps*(npoints-1);
+		System.out.printf("  boxed:     %.1f ns/op\n", (double)boxedtime/nops);
+		System.out.printf("  primitive: %.1f ns/op\n", (double)primtime/nops);
+		Assert.assertEquals(boxedsum, primsum, 1e-6*Math.abs(boxedsum));
+	}
+
+	/* check bounded distance is exact within bound and exceeds bound otherwise */
+	private <T extends Number> void checkBounded(PrimitiveMetricDistance<T> metric,
+												 TargetPoint<T> a, TargetPoint<T> b){
+		double d = metric.primitiveDistance(a, b);
+		Assert.assertEquals(d, metric.distance(a, b, d), 0.0);
+		Assert.assertEquals(d, metric.distance(a, b, 2*d), 0.0);
+		Assert.assertTrue(metric.distance(a, b, 0.5*d) > 0.5*d);
+
+		/* the same from the middle of a packed array of b, a, b */
+		Object x = a.getPrimitiveDataWithoutTx();
+		Object y = b.getPrimitiveDataWithoutTx();
+		int n = Array.getLength(x);
+		Object packed = Array.newInstance(x.getClass().getComponentType(), 3*n);
+		System.arraycopy(y, 0, packed, 0, n);
+		System.arraycopy(x, 0, packed, n, n);
+		System.arraycopy(y, 0, packed, 2*n, n);
+		Assert.assertEquals(d, metric.arrayDistance(packed, n, y, d), 0.0);
+		Assert.assertTrue(metric.arrayDistance(packed, n, y, 0.5*d) > 0.5*d);
+		Assert.assertEquals(0.0, metric.arrayDistance(packed, 2*n, y, d), 0.0);
+	}
+
+	@Test
+	public void test2(){
+		System.out.printf("Benchmark unbounded vs bounded distances, ndims = %d\n", ndims);
+		TargetPoint<Float>[] points = new TargetPoint[npoints];
+		TargetPoint<Long>[] hashes = new TargetPoint[npoints];
+		for (int i=0;i<npoints;i++){
+			points[i] = new TargetPoint<>(randomFloats());
+			points[i].getPrimitiveDataWithoutTx();
+			hashes[i] = new TargetPoint<>(randomLongs());
+			hashes[i].getPrimitiveDataWithoutTx();
+		}
+		for (int i=1;i<100;i++){
+			checkBounded(new L1Distance<Float>(), points[0], points[i]);
+			checkBounded(new L2Distance<Float>(), points[0], points[i]);
+			checkBounded(new HammingDistance<Long>(), hashes[0], hashes[i]);
+		}
+
+		/* a radius around a tenth of the typical distance, as for most leaf candidates */
+		L2Distance<Float> l2 = new L2Distance<>();
+		double bound = 0.1*l2.primitiveDistance(points[0], points[1]);
+		int count = 0;
+		long fulltime = 0, boundedtime = 0;
+		for (int r=0;r<nreps;r++){
+			long start = System.nanoTime();
+			for (int i=1;i<npoints;i++){
+				if (l2.primitiveDistance(points[0], points[i]) <= bound) count++;
+			}
+			fulltime += System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i=1;i<npoints;i++){
+				if (l2.distance(points[0], points[i], bound) <= bound) count--;
+			}
+			boundedtime += System.nanoTime() - start;
+		}
+		int nops = nreps*(npoints-1);
+		System.out.printf("  L2 unbounded: %.1f ns/op, bounded: %.1f ns/op\n",
+						  (double)fulltime/nops, (double)boundedtime/nops);
+		Assert.assertEquals(0, count);
+	}
+}
@@ -18,7 +18,9 @@ import org.junit.FixMethodOrder;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.net.URL;
 import java.io.File;
 import java.io.PrintStream;
@@ -209,19 +211,28 @@ public class TestLongMVPTree {
 		
 		try {
 			float radius = 5.0f;
-			int sum_ops = 0;
+			QueryStats stats = new QueryStats();
+			QueryStats before = tree.getQueryStats();
+			int sum_results = 0;
 			for (int i=0;i<ncenters;i++){
 				TargetPoint<Long> target = new TargetPoint<>(centers[i]);
 
-				DataPoint.reset();
-				Collection<DataPoint<Long>> results = tree.queryTarget(target, radius);
-				sum_ops += DataPoint.getNumOpsCount();
+				Collection<DataPoint<Long>> results = tree.queryTarget(target, radius, stats);
+				sum_results += results.size();
 
 				System.out.printf("  Found %d points\n", results.size());
 				Assert.assertTrue(results.size() >= 10);
 			}
-			double pct_ops = (double)sum_ops/(double)ncenters/(double)total;
+			double pct_ops = (double)stats.n_distances/(double)ncenters/(double)total;
 			System.out.printf(" %.4f distance calculations\n", pct_ops);
+			System.out.printf(" %s\n", stats);
+			Assert.assertEquals(ncenters, stats.n_queries);
+			Assert.assertEquals(sum_results, stats.n_results);
+			Assert.assertTrue(stats.n_leaf > 0 && stats.n_distances >= stats.n_results);
+
+			QueryStats after = tree.getQueryStats();
+			Assert.assertEquals(stats.n_queries, after.n_queries - before.n_queries);
+			Assert.assertEquals(stats.n_distances, after.n_distances - before.n_distances);
 		} catch (Exception ex){
 			System.out.println("test 3 failed: " + ex.getMessage());
 			ex.printStackTrace();
@@ -229,6 +240,129 @@ public class TestLongMVPTree {
 		}
 	}
 
+	@Test public void test4a(){
+		int k = 10;
+		System.out.printf("Test Nearest Neighbor Query - %d queries for %d nearest\n", ncenters, k);
+		try {
+			for (int i=0;i<ncenters;i++){
+				TargetPoint<Long> target = new TargetPoint<>(centers[i]);
+				ArrayList<DataPoint<Long>> results = new ArrayList<>(tree.queryNearest(target, k));
+				Assert.assertEquals(k, results.size());
+
+				double prev = 0.0;
+				for (DataPoint<Long> pnt : results){
+					double d = tree.distanceBetweenPoints(pnt, target);
+					Assert.assertTrue(d >= prev);
+					prev = d;
+				}
+				Assert.assertEquals(0.0, tree.distanceBetweenPoints(results.get(0), target), 0.0);
+
+				Collection<DataPoint<Long>> inrange = tree.queryTarget(target, (float)prev);
+				System.out.printf("  kth nearest at %.4f, %d points within\n", prev, inrange.size());
+				Assert.assertTrue(inrange.size() >= k);
+			}
+		} catch (Exception ex){
+			System.out.println("test 4a failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
+	@Test public void test4b(){
+		int nclusters = 40;
+		int n = 100;
+		int epsilon = 5;
+		float radius = 5.0f;
+		System.out.printf("Vantage Point Selection - %d clusters of %d points, added in order\n",
+						  nclusters, n);
+		try {
+			/* same clustered data for each strategy */
+			Long[][] clustercenters = new Long[nclusters][];
+			ArrayList<Long[]> data = new ArrayList<>(nclusters*n);
+			for (int c=0;c<nclusters;c++){
+				clustercenters[c] = new Long[ndims];
+				fill(clustercenters[c]);
+				data.add(clustercenters[c]);
+				for (int i=1;i<n;i++){
+					Long[] pnt = clustercenters[c].clone();
+					for (int j=0;j<epsilon;j++){
+						flip_bit(pnt, rnd.nextInt(Long.SIZE*ndims));
+					}
+					data.add(pnt);
+				}
+			}
+
+			String[] names = { "first", "random", "max-spread", "max-variance" };
+			ArrayList<VantagePointSelector<Long>> selectors = new ArrayList<>();
+			selectors.add(new FirstSelector<Long>());
+			selectors.add(new RandomSelector<Long>(1L));
+			selectors.add(new MaxSpreadSelector<Long>(MaxSpreadSelector.DefaultSampleSize, 1L));
+			selectors.add(new MaxVarianceSelector<Long>(MaxVarianceSelector.DefaultCandidates,
+														MaxVarianceSelector.DefaultSampleSize, 1L));
+			ArrayList<HashSet<String>> expected = null;
+			for (int s=0;s<selectors.size();s++){
+				MVPTree<Long> mvptree = new MVPTree<>(new HeapBackend(), bf, pl, lm, nl,
+													  new HammingDistance<Long>(), selectors.get(s),
+													  Long.class);
+				Assert.assertEquals(selectors.get(s), mvptree.getVantagePointSelector());
+				for (int c=0;c<nclusters;c++){
+					ArrayList<DataPoint<Long>> cluster = mvptree.createDataPoints(n);
+					for (int i=0;i<n;i++){
+						cluster.get(i).setId("Cluster" + c + "Point" + i);
+						cluster.get(i).setData(data.get(c*n + i));
+					}
+					mvptree.addPoints(cluster);
+				}
+				Assert.assertEquals(nclusters*n, mvptree.getDataPointCount());
+
+				QueryStats stats = new QueryStats();
+				ArrayList<HashSet<String>> results = new ArrayList<>();
+				for (int c=0;c<nclusters;c++){
+					TargetPoint<Long> target = new TargetPoint<>(clustercenters[c]);
+					HashSet<String> ids = new HashSet<>();
+					for (DataPoint<Long> pnt : mvptree.queryTarget(target, radius, stats)){
+						ids.add(pnt.getId());
+					}
+					Assert.assertTrue(ids.size() >= n);
+					results.add(ids);
+				}
+				if (expected == null)
+					expected = results;
+				Assert.assertEquals(expected, results);
+				System.out.printf("  %-12s %8.1f distance ops per query (%.4f of points)\n", names[s],
+								  (double)stats.n_distances/nclusters,
+								  (double)stats.n_distances/nclusters/(nclusters*n));
+				mvptree.shutdown();
+
+				/* bulk loaded in parallel, the same tree from run to run */
+				BulkPoints<Long> bulkpoints = new BulkPoints<>(data.size());
+				for (int i=0;i<data.size();i++){
+					bulkpoints.add("Point" + i, data.get(i));
+				}
+				long[] distances = new long[2];
+				ForkJoinPool pool = new ForkJoinPool(4);
+				for (int r=0;r<distances.length;r++){
+					MVPTree<Long> loaded = new MVPTree<>(new HeapBackend(), bf, pl, lm, nl,
+														 new HammingDistance<Long>(), selectors.get(s),
+														 Long.class);
+					loaded.bulkLoad(bulkpoints, pool);
+					QueryStats loaded_stats = new QueryStats();
+					for (int c=0;c<nclusters;c++){
+						loaded.queryTarget(new TargetPoint<>(clustercenters[c]), radius, loaded_stats);
+					}
+					distances[r] = loaded_stats.n_distances;
+					loaded.shutdown();
+				}
+				pool.shutdown();
+				Assert.assertEquals(distances[0], distances[1]);
+			}
+		} catch (Exception ex){
+			System.out.println("test 4b failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
 	@Test public void test5(){
 		System.out.printf("Test Tree Statistics.\n");
 		try {
@@ -18,7 +18,18 @@ import org.junit.FixMethodOrder;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 import java.net.URL;
 import java.io.File;
 import java.io.PrintStream;
@@ -29,10 +40,12 @@ import java.io.PrintStream;
 @FixMethodOrder(MethodSorters.NAME_ASCENDING)
 public class TestMVPTree {
 
-	@Parameters(name = "Test:{index}:mvp(bf={0},pl={1},lm={2},nl={3})")
+	@Parameters(name = "Test:{index}:mvp(bf={0},pl={1},lm={2},nl={3},backend={4})")
 	public static Collection<Object[]> data() {
 		return Arrays.asList(new Object[][] {
-				{3, 6, 10, 3}
+				{3, 6, 10, 3, "neo4j"},
+				{3, 6, 10, 3, "heap"},
+				{3, 6, 10, 3, "mapped"}
 			});
 	}
 	
@@ -48,11 +61,15 @@ public class TestMVPTree {
 	@Parameter (value = 3)
 	public int nl;
 
+	@Parameter (value = 4)
+	public String backend;
+
 	public final int ncenters = 10;
 	public final int ndims = 20;
 	
 	public String dbstore = "var/graphdb";
 	public String propsfile = "/conf/mvptree-neo4j.properties";
+	public String mapfile = "var/mvptree.map";
 
 	public static Float[][] centers;
 
@@ -60,6 +77,7 @@ public class TestMVPTree {
 	public static int center_id = 1;
 	public static Random rnd;
 	public static MVPTree<Float> tree;
+	public static HeapBackend heapstore;
 
 	public TestMVPTree(){}
 	
@@ -131,12 +149,24 @@ public class TestMVPTree {
 
 	@Test public void test0(){
 		System.out.printf("----------Test--with Float[] data ------\n");
-		System.out.printf("-------(bf=%d, pl=%d, lm=%d, nl=%d)-----\n", bf, pl, lm, nl);
+		System.out.printf("-------(bf=%d, pl=%d, lm=%d, nl=%d, %s)-----\n", bf, pl, lm, nl, backend);
 
-		String conffile = getClass().getResource(propsfile).getFile();
-		tree = new MVPTree<>(dbstore, conffile, bf, pl, lm, nl,
-							 DistanceFunction.L1,
-							 Float.class);
+		if (backend.equals("heap")){
+			heapstore = new HeapBackend();
+			tree = new MVPTree<>(heapstore, bf, pl, lm, nl,
+								 new L1Distance<Float>(),
+								 Float.class);
+		} else if (backend.equals("mapped")){
+			new File(mapfile).delete();
+			tree = new MVPTree<>(new MappedBackend(mapfile), bf, pl, lm, nl,
+								 new L1Distance<Float>(),
+								 Float.class);
+		} else {
+			String conffile = getClass().getResource(propsfile).getFile();
+			tree = new MVPTree<>(dbstore, conffile, bf, pl, lm, nl,
+								 DistanceFunction.L1,
+								 Float.class);
+		}
 		Assert.assertNotNull(tree);
 	}
 
@@ -199,20 +229,28 @@ public class TestMVPTree {
 		int total = tree.getDataPointCount();
 		try {
 			float radius = 0.10f;
-			int sum_ops = 0;
+			QueryStats stats = new QueryStats();
+			QueryStats before = tree.getQueryStats();
+			int sum_results = 0;
 			for (int i=0;i<ncenters;i++){
 				TargetPoint<Float> target = new TargetPoint<>(centers[i]);
 
-				DataPoint.reset();
-				Collection<DataPoint<Float>> results = tree.queryTarget(target, radius);
-				sum_ops += DataPoint.getNumOpsCount();
+				Collection<DataPoint<Float>> results = tree.queryTarget(target, radius, stats);
+				sum_results += results.size();
 
-				double pct_ops = (double)sum_ops/(double)total;
 				System.out.printf("  Found %d points\n", results.size());
 				Assert.assertTrue(results.size() >= 10);
 			}
-			double pct_ops = (double)sum_ops/(double)ncenters/(double)total;
+			double pct_ops = (double)stats.n_distances/(double)ncenters/(double)total;
 			System.out.printf(" %.4f distance calculations\n", pct_ops);
+			System.out.printf(" %s\n", stats);
+			Assert.assertEquals(ncenters, stats.n_queries);
+			Assert.assertEquals(sum_results, stats.n_results);
+			Assert.assertTrue(stats.n_leaf > 0 && stats.n_distances >= stats.n_results);
+
+			QueryStats after = tree.getQueryStats();
+			Assert.assertEquals(stats.n_queries, after.n_queries - before.n_queries);
+			Assert.assertEquals(stats.n_distances, after.n_distances - before.n_distances);
 		} catch (Exception ex){
 			System.out.println("test 3 failed: " + ex.getMessage());
 			ex.printStackTrace();
@@ -220,6 +258,996 @@ public class TestMVPTree {
 		}
 	}
 
+	@Test public void test4a(){
+		int k = 10;
+		System.out.printf("Test Nearest Neighbor Query - %d queries for %d nearest\n", ncenters, k);
+		try {
+			for (int i=0;i<ncenters;i++){
+				TargetPoint<Float> target = new TargetPoint<>(centers[i]);
+				ArrayList<DataPoint<Float>> results = new ArrayList<>(tree.queryNearest(target, k));
+				Assert.assertEquals(k, results.size());
+
+				double prev = 0.0;
+				for (DataPoint<Float> pnt : results){
+					double d = tree.distanceBetweenPoints(pnt, target);
+					Assert.assertTrue(d >= prev);
+					prev = d;
+				}
+				Assert.assertEquals(0.0, tree.distanceBetweenPoints(results.get(0), target), 0.0);
+
+				Collection<DataPoint<Float>> inrange = tree.queryTarget(target, (float)prev);
+				System.out.printf("  kth nearest at %.4f, %d points within\n", prev, inrange.size());
+				Assert.assertTrue(inrange.size() >= k);
+			}
+		} catch (Exception ex){
+			System.out.println("test 4a failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
+	@Test public void test4b(){
+		int nqueries = 100;
+		float radius = 0.10f;
+		System.out.printf("Test Concurrent Query - %d queries per run\n", nqueries);
+		try {
+			for (int nthreads=1;nthreads<=8;nthreads*=2){
+				ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+				ArrayList<Future<Integer>> futures = new ArrayList<>();
+				long start = System.nanoTime();
+				for (int i=0;i<nqueries;i++){
+					final TargetPoint<Float> target = new TargetPoint<>(centers[i%ncenters]);
+					futures.add(executor.submit(() -> tree.queryTarget(target, radius).size()));
+				}
+				for (Future<Integer> f : futures){
+					Assert.assertTrue(f.get() >= 10);
+				}
+				double secs = (double)(System.nanoTime() - start)/1.0e9;
+				executor.shutdown();
+				System.out.printf("  %d threads: %.1f queries/sec\n", nthreads, nqueries/secs);
+			}
+
+			/* a query completes while another reader is held inside its query */
+			CountDownLatch entered = new CountDownLatch(1);
+			CountDownLatch release = new CountDownLatch(1);
+			L1Distance<Float> blocking = new L1Distance<Float>(){
+					@Override
+					public double distance(float[] x, float[] y){
+						if (Thread.currentThread().getName().equals("blocked reader")){
+							entered.countDown();
+							try {
+								release.await(60, TimeUnit.SECONDS);
+							} catch (InterruptedException ex){
+								Thread.currentThread().interrupt();
+							}
+						}
+						return super.distance(x, y);
+					}
+				};
+			MVPTree<Float> small = new MVPTree<>(new HeapBackend(), bf, pl, lm, nl, blocking, Float.class);
+			small.addPoints(generateUniformRandomDataPoints(100, small));
+			TargetPoint<Float> target = new TargetPoint<>(centers[0]);
+			Thread reader = new Thread(() -> small.queryTarget(target, radius), "blocked reader");
+			ExecutorService executor = Executors.newSingleThreadExecutor();
+			try {
+				reader.start();
+				Assert.assertTrue(entered.await(30, TimeUnit.SECONDS));
+				Future<Integer> other = executor.submit(() -> small.queryTarget(target, radius).size());
+				other.get(30, TimeUnit.SECONDS);
+				Assert.assertTrue(reader.isAlive());
+			} finally {
+				release.countDown();
+				reader.join();
+				executor.shutdown();
+				small.shutdown();
+			}
+		} catch (Exception ex){
+			System.out.println("test 4b failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
+	@Test public void test4c(){
+		float radius = 0.10f;
+		System.out.printf("Test Batch Query - %d targets\n", ncenters);
+		try {
+			ArrayList<TargetPoint<Float>> targets = new ArrayList<>();
+			for (int i=0;i<ncenters;i++){
+				targets.add(new TargetPoint<>(centers[i]));
+			}
+			List<Collection<DataPoint<Float>>> results = tree.queryTargets(targets, radius);
+			Assert.assertEquals(ncenters, results.size());
+			for (int i=0;i<ncenters;i++){
+				Collection<DataPoint<Float>> single = tree.queryTarget(targets.get(i), radius);
+				HashSet<String> ids = new HashSet<>();
+				for (DataPoint<Float> pnt : single) ids.add(pnt.getId());
+				HashSet<String> batchids = new HashSet<>();
+				for (DataPoint<Float> pnt : results.get(i)) batchids.add(pnt.getId());
+				System.out.printf("  Found %d points\n", results.get(i).size());
+				Assert.assertEquals(ids, batchids);
+			}
+		} catch (Exception ex){
+			System.out.println("test 4c failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
+	@Test public void test4d(){
+		float radius = 0.10f;
+		System.out.printf("Test Parallel Query - %d queries\n", ncenters);
+		try {
+			for (int i=0;i<ncenters;i++){
+				TargetPoint<Float> target = new TargetPoint<>(centers[i]);
+				HashSet<String> ids = new HashSet<>();
+				for (DataPoint<Float> pnt : tree.queryTarget(target, radius)) ids.add(pnt.getId());
+				for (int threshold=1;threshold<=27;threshold*=3){
+					Collection<DataPoint<Float>> results = tree.queryTarget(target, radius, threshold);
+					HashSet<String> parallelids = new HashSet<>();
+					for (DataPoint<Float> pnt : results) parallelids.add(pnt.getId());
+					Assert.assertEquals(ids.size(), results.size());
+					Assert.assertEquals(ids, parallelids);
+				}
+				System.out.printf("  Found %d points\n", ids.size());
+			}
+		} catch (Exception ex){
+			System.out.println("test 4d failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
+	@Test public void test4e(){
+		float radius = 0.10f;
+		int limit = 5;
+		System.out.printf("Test Ranked Query - %d queries\n", ncenters);
+		try {
+			for (int i=0;i<ncenters;i++){
+				TargetPoint<Float> target = new TargetPoint<>(centers[i]);
+				List<QueryResult<Float>> results = tree.queryResultsSorted(target, radius);
+				Assert.assertEquals(tree.queryTarget(target, radius).size(), results.size());
+				float prev = 0.0f;
+				for (QueryResult<Float> result : results){
+					Assert.assertTrue(result.getDistance() >= prev);
+					Assert.assertTrue(result.getDistance() <= radius);
+					Assert.assertEquals(tree.distanceBetweenPoints(result.getPoint(), target),
+										result.getDistance(), 0.00001);
+					prev = result.getDistance();
+				}
+
+				List<QueryResult<Float>> nearest = tree.queryResultsSorted(target, radius, limit);
+				Assert.assertEquals(Math.min(limit, results.size()), nearest.size());
+				for (int j=0;j<nearest.size();j++){
+					Assert.assertEquals(results.get(j).getDistance(), nearest.get(j).getDistance(), 0.0f);
+				}
+				System.out.printf("  Found %d points, nearest at %.4f\n", results.size(),
+								  results.get(0).getDistance());
+			}
+		} catch (Exception ex){
+			System.out.println("test 4e failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
+	@Test public void test4f(){
+		float radius = 0.10f;
+		int limit = 3;
+		System.out.printf("Test Streaming Query - %d queries\n", ncenters);
+		try {
+			for (int i=0;i<ncenters;i++){
+				TargetPoint<Float> target = new TargetPoint<>(centers[i]);
+				int expected = tree.queryTarget(target, radius).size();
+				try (Stream<DataPoint<Float>> stream = tree.streamTarget(target, radius, Integer.MAX_VALUE)){
+					Assert.assertEquals(expected, stream.count());
+				}
+				try (Stream<DataPoint<Float>> stream = tree.streamTarget(target, radius, limit)){
+					Assert.assertEquals(limit, stream.count());
+				}
+
+				/* a stream consumed to its limit, or a cursor once it has returned
+				 * limit results, releases the read lock before it is closed, so a
+				 * writer on another thread is not blocked */
+				Stream<DataPoint<Float>> unclosed = tree.streamTarget(target, radius, limit);
+				try {
+					Assert.assertEquals(limit, unclosed.count());
+					CompletableFuture.runAsync(() -> tree.removePoint("NoSuchPoint")).get(30, TimeUnit.SECONDS);
+				} finally {
+					unclosed.close();
+				}
+				try (QueryCursor<Float> limited = tree.openCursor(target, radius, limit)){
+					for (int j=0;j<limit;j++){
+						Assert.assertTrue(limited.hasNext());
+						limited.next();
+					}
+					CompletableFuture.runAsync(() -> tree.removePoint("NoSuchPoint")).get(30, TimeUnit.SECONDS);
+					Assert.assertFalse(limited.hasNext());
+				}
+
+				int count = 0;
+				try (QueryCursor<Float> cursor = tree.openCursor(target, radius)){
+					while (cursor.hasNext()){
+						Assert.assertTrue(cursor.next().getDistance() <= radius);
+						count++;
+					}
+				}
+				Assert.assertEquals(expected, count);
+				System.out.printf("  Found %d points\n", count);
+			}
+		} catch (Exception ex){
+			System.out.println("test 4f failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
+	@Test public void test4g(){
+		float radius = 0.10f;
+		System.out.println("Test Vector Cache");
+		try {
+			VectorCache cache = tree.getVectorCache();
+			TargetPoint<Float> target = new TargetPoint<>(centers[0]);
+			tree.queryTarget(target, radius);
+			cache.resetCounts();
+			tree.queryTarget(target, radius);
+			System.out.printf("  %d hits, %d misses, %d arrays, %d bytes\n", cache.getHitCount(),
+							  cache.getMissCount(), cache.size(), cache.getBytes());
+			Assert.assertTrue(cache.getHitCount() > 0);
+			Assert.assertTrue(cache.getBytes() <= cache.getCapacity());
+
+			/* cached data is replaced by setData */
+			DataPoint<Float> pnt = tree.createDataPoint();
+			Float[] data = new Float[ndims];
+			fill(data);
+			pnt.setId("cachepoint");
+			pnt.setData(data);
+			Assert.assertArrayEquals(data, pnt.getData());
+			fill(data);
+			pnt.setData(data);
+			Assert.assertArrayEquals(data, pnt.getData());
+			tree.deletePoint(pnt);
+
+			/* capacity of 0 empties and disables cache */
+			cache.setCapacity(0);
+			tree.queryTarget(target, radius);
+			Assert.assertEquals(0, cache.size());
+			cache.setCapacity(32L*1024*1024);
+		} catch (Exception ex){
+			System.out.println("test 4g failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
+	private HashSet<String> getIds(Collection<DataPoint<Float>> points){
+		HashSet<String> ids = new HashSet<>();
+		for (DataPoint<Float> pnt : points){
+			ids.add(pnt.getId());
+		}
+		return ids;
+	}
+
+	@Test public void test4h(){
+		float radius = 0.10f;
+		int k = 5;
+		System.out.printf("Test Tree Skeleton - %d queries\n", ncenters);
+		try {
+			ArrayList<TargetPoint<Float>> targets = new ArrayList<>();
+			ArrayList<HashSet<String>> expected = new ArrayList<>();
+			ArrayList<HashSet<String>> expected_nearest = new ArrayList<>();
+			for (int i=0;i<ncenters;i++){
+				TargetPoint<Float> target = new TargetPoint<>(centers[i]);
+				targets.add(target);
+				expected.add(getIds(tree.queryTarget(target, radius)));
+				expected_nearest.add(getIds(tree.queryNearest(target, k)));
+			}
+
+			tree.setSkeletonEnabled(true);
+			Assert.assertTrue(tree.isSkeletonEnabled());
+			QueryStats stats = new QueryStats();
+			for (int i=0;i<ncenters;i++){
+				Assert.assertEquals(expected.get(i), getIds(tree.queryTarget(targets.get(i), radius, stats)));
+				Assert.assertEquals(expected_nearest.get(i), getIds(tree.queryNearest(targets.get(i), k)));
+			}
+			List<Collection<DataPoint<Float>>> batch = tree.queryTargets(targets, radius);
+			for (int i=0;i<ncenters;i++){
+				Assert.assertEquals(expected.get(i), getIds(batch.get(i)));
+			}
+			System.out.printf("  %s\n", stats);
+
+			/* skeleton is updated in place as points are added, splitting leaves, and removed */
+			int n = 300;
+			ArrayList<DataPoint<Float>> cluster = generateCluster(n, radius, tree);
+			TargetPoint<Float> target = new TargetPoint<>(cluster.get(0).getData());
+			HashSet<String> cluster_ids = getIds(cluster);
+			tree.addPoints(cluster);
+			HashSet<String> ids = getIds(tree.queryTarget(target, radius));
+			Assert.assertTrue(ids.containsAll(cluster_ids));
+			for (String id : cluster_ids){
+				tree.removePoint(id);
+			}
+			ids.removeAll(cluster_ids);
+			Assert.assertEquals(ids, getIds(tree.queryTarget(target, radius)));
+			targets.add(target);
+			ArrayList<HashSet<String>> skeleton_ids = new ArrayList<>();
+			ArrayList<HashSet<String>> skeleton_nearest = new ArrayList<>();
+			for (TargetPoint<Float> t : targets){
+				skeleton_ids.add(getIds(tree.queryTarget(t, radius)));
+				skeleton_nearest.add(getIds(tree.queryNearest(t, k)));
+			}
+
+			tree.setSkeletonEnabled(false);
+			Assert.assertFalse(tree.isSkeletonEnabled());
+			for (int i=0;i < targets.size();i++){
+				Assert.assertEquals(skeleton_ids.get(i), getIds(tree.queryTarget(targets.get(i), radius)));
+				Assert.assertEquals(skeleton_nearest.get(i), getIds(tree.queryNearest(targets.get(i), k)));
+			}
+
+			/* a removed vantage point of an internal node is skipped by queries through the skeleton */
+			HeapBackend store = new HeapBackend();
+			MVPTree<Float> small = new MVPTree<>(store, bf, pl, lm, nl, new L1Distance<Float>(), Float.class);
+			small.setSkeletonEnabled(true);
+			small.addPoints(generateUniformRandomDataPoints(1000, small));
+			String vpid;
+			try (StorageTransaction tx = store.beginTx()){
+				StorageNode top = store.findNodes(NodeFactory.TopLabel).get(0);
+				Assert.assertTrue(top.hasLabel(MVPInternal.InternalLabel));
+				StorageNode vp = store.getNodeById(((long[])top.getProperty(MVPNode.VPIdsProperty))[0]);
+				vpid = (String)vp.getProperty("ID");
+				tx.success();
+			}
+			TargetPoint<Float> vptarget = new TargetPoint<>(small.lookup(vpid).getData());
+			Assert.assertTrue(getIds(small.queryTarget(vptarget, 0.0f)).contains(vpid));
+			small.removePoint(vpid);
+			Assert.assertFalse(getIds(small.queryTarget(vptarget, 0.0f)).contains(vpid));
+			small.shutdown();
+		} catch (Exception ex){
+			System.out.println("test 4h failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
+	@Test public void test4i(){
+		System.out.println("Test Point Count");
+		try {
+			int count = tree.getDataPointCount();
+			Assert.assertEquals(count, tree.recountDataPoints());
+
+			ArrayList<DataPoint<Float>> points = generateUniformRandomDataPoints(5, tree);
+			String id = points.get(0).getId();
+			tree.addPoints(points);
+			Assert.assertEquals(count + 5, tree.getDataPointCount());
+
+			tree.removePoint(id);
+			tree.removePoint(id);
+			Assert.assertEquals(count + 4, tree.getDataPointCount());
+			Assert.assertEquals(count + 4, tree.recountDataPoints());
+			System.out.printf("  %d points\n", tree.getDataPointCount());
+		} catch (Exception ex){
+			System.out.println("test 4i failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
+	@Test public void test4j(){
+		float radius = 0.10f;
+		int k = 5;
+		int n = 1000;
+		System.out.printf("Test Packed Leaves - %d queries\n", ncenters);
+		try {
+			ArrayList<TargetPoint<Float>> targets = new ArrayList<>();
+			ArrayList<HashSet<String>> expected = new ArrayList<>();
+			for (int i=0;i<ncenters;i++){
+				TargetPoint<Float> target = new TargetPoint<>(centers[i]);
+				targets.add(target);
+				expected.add(getIds(tree.queryTarget(target, radius)));
+			}
+
+			/* leaves are packed as points are added to them */
+			tree.setPackedLeaves(true);
+			Assert.assertTrue(tree.isPackedLeaves());
+			ArrayList<DataPoint<Float>> points = generateUniformRandomDataPoints(n, tree);
+			L1Distance<Float> l1 = new L1Distance<>();
+			for (DataPoint<Float> pnt : points){
+				TargetPoint<Float> pntdata = new TargetPoint<>(pnt.getData());
+				for (int i=0;i<ncenters;i++){
+					if (l1.distance(pntdata, targets.get(i)) <= radius)
+						expected.get(i).add(pnt.getId());
+				}
+			}
+			String removed = points.get(0).getId();
+			ArrayList<DataPoint<Float>> changed = new ArrayList<>(points.subList(1, 6));
+			tree.addPoints(points);
+			tree.removePoint(removed);
+			for (int i=0;i<ncenters;i++){
+				expected.get(i).remove(removed);
+			}
+
+			List<Collection<DataPoint<Float>>> batch = tree.queryTargets(targets, radius);
+			for (int i=0;i<ncenters;i++){
+				TargetPoint<Float> target = targets.get(i);
+				Assert.assertEquals(expected.get(i), getIds(tree.queryTarget(target, radius)));
+				Assert.assertEquals(expected.get(i), getIds(batch.get(i)));
+				List<QueryResult<Float>> sorted = tree.queryResultsSorted(target, Float.MAX_VALUE, k);
+				Collection<DataPoint<Float>> nearest = tree.queryNearest(target, k);
+				Assert.assertEquals(k, nearest.size());
+				int j = 0;
+				for (DataPoint<Float> pnt : nearest){
+					Assert.assertEquals(sorted.get(j++).getDistance(),
+										tree.distanceBetweenPoints(pnt, target), 0.00001);
+				}
+				System.out.printf("  Found %d points\n", expected.get(i).size());
+			}
+
+			/* new data of points in packed leaves is found by queries */
+			for (DataPoint<Float> pnt : changed){
+				Float[] data = new Float[ndims];
+				fill(data);
+				pnt.setData(data);
+				List<QueryResult<Float>> nearest = tree.queryResultsSorted(new TargetPoint<>(data), Float.MAX_VALUE, 1);
+				Assert.assertEquals(pnt.getId(), nearest.get(0).getPoint().getId());
+				Assert.assertEquals(0.0f, nearest.get(0).getDistance(), 0.0f);
+			}
+
+			/* a packed leaf with paths stored without ancestor distances takes longer paths */
+			HeapBackend heap = new HeapBackend();
+			try (StorageTransaction tx = heap.beginTx()){
+				MVPLeaf<Float> leaf = new MVPLeaf<>(heap.createNode());
+				leaf.setPacked();
+				DataPoint<Float> shortpath = new DataPoint<>(heap.createNode(), new float[] {0.5f}, Float.class);
+				shortpath.setPrimitiveDataWithoutTx(new float[] {1.0f});
+				leaf.addDataPoint(shortpath);
+				DataPoint<Float> longpath = new DataPoint<>(heap.createNode(), new float[] {0.25f, 0.75f}, Float.class);
+				longpath.setPrimitiveDataWithoutTx(new float[] {2.0f});
+				leaf.addDataPoint(longpath);
+				Assert.assertArrayEquals(new float[] {0.5f, -1.0f, 0.25f, 0.75f},
+										 (float[])leaf.getNode().getProperty("PACKEDPATHS"), 0.0f);
+			}
+		} catch (Exception ex){
+			System.out.println("test 4j failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
+	@Test public void test4k(){
+		float radius = 0.10f;
+		System.out.printf("Test Reopen - %d queries\n", ncenters);
+		try {
+			int count = tree.getDataPointCount();
+			ArrayList<HashSet<String>> expected = new ArrayList<>();
+			for (int i=0;i<ncenters;i++){
+				expected.add(getIds(tree.queryTarget(new TargetPoint<>(centers[i]), radius)));
+			}
+
+			tree.shutdown();
+			long start = System.nanoTime();
+			tree.initGraphdb();
+			System.out.printf("  reopened in %.3f ms\n", (System.nanoTime() - start)/1000000.0);
+
+			Assert.assertEquals(count, tree.getDataPointCount());
+			Assert.assertEquals(count, tree.recountDataPoints());
+			for (int i=0;i<ncenters;i++){
+				Assert.assertEquals(expected.get(i), getIds(tree.queryTarget(new TargetPoint<>(centers[i]), radius)));
+			}
+
+			ArrayList<DataPoint<Float>> points = generateUniformRandomDataPoints(10, tree);
+			String id = points.get(0).getId();
+			tree.addPoints(points);
+			Assert.assertEquals(count + 10, tree.getDataPointCount());
+			Assert.assertNotNull(tree.lookup(id));
+		} catch (Exception ex){
+			System.out.println("test 4k failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
+	@Test public void test4l(){
+		float radius = 0.10f;
+		int k = 5;
+		System.out.printf("Test Snapshot - %d queries\n", ncenters);
+		try {
+			File file = new File("var/mvptree.snapshot");
+			long start = System.nanoTime();
+			long n = tree.exportSnapshot(file.toPath());
+			System.out.printf("  exported %d points, %d bytes in %.3f ms\n", n, file.length(),
+							  (System.nanoTime() - start)/1000000.0);
+
+			MVPTree<Float> restored = new MVPTree<>(new HeapBackend(), 2, 4, 5, 2,
+													new L1Distance<Float>(), Float.class);
+			start = System.nanoTime();
+			Assert.assertEquals(n, restored.importSnapshot(file.toPath()));
+			System.out.printf("  imported in %.3f ms\n", (System.nanoTime() - start)/1000000.0);
+
+			Assert.assertEquals(tree.getDataPointCount(), restored.getDataPointCount());
+			Assert.assertEquals(tree.getDataPointCount(), restored.recountDataPoints());
+			for (int i=0;i<ncenters;i++){
+				TargetPoint<Float> target = new TargetPoint<>(centers[i]);
+				Assert.assertEquals(getIds(tree.queryTarget(target, radius)),
+									getIds(restored.queryTarget(target, radius)));
+				Assert.assertEquals(getIds(tree.queryNearest(target, k)),
+									getIds(restored.queryNearest(target, k)));
+			}
+
+			/* a snapshot is only restored into an empty tree */
+			try {
+				restored.importSnapshot(file.toPath());
+				Assert.assertTrue(false);
+			} catch (MVPTreeException ex){}
+			Assert.assertEquals(tree.getDataPointCount(), restored.getDataPointCount());
+
+			/* restored tree takes new points */
+			ArrayList<DataPoint<Float>> points = generateUniformRandomDataPoints(10, restored);
+			String id = points.get(0).getId();
+			restored.addPoints(points);
+			Assert.assertNotNull(restored.lookup(id));
+			restored.shutdown();
+			file.delete();
+		} catch (Exception ex){
+			System.out.println("test 4l failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
+	@Test public void test4m(){
+		float radius = 0.10f;
+		int k = 5;
+		System.out.printf("Test Compaction - %d queries\n", ncenters);
+		try {
+			/* remove clusters of points, including vantage points, then compact */
+			int count = tree.getDataPointCount();
+			int nremoved = 0;
+			for (int i=0;i<3;i++){
+				for (String id : getIds(tree.queryTarget(new TargetPoint<>(centers[i]), 2*radius))){
+					tree.removePoint(id);
+					nremoved++;
+				}
+			}
+			Assert.assertEquals(count - nremoved, tree.getDataPointCount());
+
+			ArrayList<HashSet<String>> expected = new ArrayList<>();
+			ArrayList<HashSet<String>> expected_nearest = new ArrayList<>();
+			for (int i=0;i<ncenters;i++){
+				TargetPoint<Float> target = new TargetPoint<>(centers[i]);
+				expected.add(getIds(tree.queryTarget(target, radius)));
+				expected_nearest.add(getIds(tree.queryNearest(target, k)));
+			}
+
+			CompactionStats stats = tree.compact();
+			System.out.printf("  removed %d points, %s\n", nremoved, stats);
+			Assert.assertTrue(stats.n_leaf > 0);
+			Assert.assertTrue(stats.n_removed > 0);
+			Assert.assertEquals(count - nremoved, tree.getDataPointCount());
+			Assert.assertEquals(count - nremoved, tree.recountDataPoints());
+			for (int i=0;i<ncenters;i++){
+				TargetPoint<Float> target = new TargetPoint<>(centers[i]);
+				Assert.assertEquals(expected.get(i), getIds(tree.queryTarget(target, radius)));
+				Assert.assertEquals(expected_nearest.get(i), getIds(tree.queryNearest(target, k)));
+			}
+			Assert.assertEquals(0, tree.compact().n_removed);
+
+			/* compact in background */
+			tree.startCompaction(10, TimeUnit.MILLISECONDS);
+			Assert.assertTrue(tree.isCompactionStarted());
+			long compactions = tree.getCompactionStats().n_compactions;
+			for (String id : getIds(tree.queryTarget(new TargetPoint<>(centers[3]), radius))){
+				tree.removePoint(id);
+			}
+			while (tree.getCompactionStats().n_compactions < compactions + 2){
+				Thread.sleep(10);
+			}
+			tree.stopCompaction();
+			Assert.assertFalse(tree.isCompactionStarted());
+			Assert.assertEquals(0, getIds(tree.queryTarget(new TargetPoint<>(centers[3]), radius)).size());
+			Assert.assertEquals(0, tree.compact().n_removed);
+			Assert.assertEquals(0, tree.getCompactionStats().n_failures);
+			Assert.assertNull(tree.getCompactionFailure());
+			System.out.printf("  totals %s\n", tree.getCompactionStats());
+
+			/* a leaf left under the leaf minimum by removing points other than its
+			 * vantage points is rebuilt */
+			HeapBackend store = new HeapBackend();
+			MVPTree<Float> small = new MVPTree<>(store, 2, 2, 10, 2, new L1Distance<Float>(), Float.class);
+			ArrayList<DataPoint<Float>> points = generateUniformRandomDataPoints(20, small);
+			HashSet<String> ids = getIds(points);
+			small.addPoints(points);
+			try (StorageTransaction tx = store.beginTx()){
+				StorageNode top = store.findNodes(NodeFactory.TopLabel).get(0);
+				Assert.assertTrue(top.hasLabel(MVPLeaf.LeafLabel));
+				for (long vpid : (long[])top.getProperty(MVPNode.VPIdsProperty)){
+					ids.remove((String)store.getNodeById(vpid).getProperty("ID"));
+				}
+				tx.success();
+			}
+			Iterator<String> iter = ids.iterator();
+			for (int i=0;i < 12;i++){
+				small.removePoint(iter.next());
+			}
+			stats = small.compact();
+			Assert.assertEquals(12, stats.n_removed);
+			Assert.assertEquals(1, stats.n_rebuilt);
+			Assert.assertEquals(8, small.getDataPointCount());
+			small.shutdown();
+		} catch (Exception ex){
+			System.out.println("test 4m failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
+	@Test public void test4n(){
+		int n = 2500;
+		int chunksize = 300;
+		System.out.printf("Test Chunked Insert - %d points in chunks of %d\n", n, chunksize);
+		try {
+			int count = tree.getDataPointCount();
+			ArrayList<Long> progress = new ArrayList<>();
+			TargetPoint<Float> target = new TargetPoint<>(centers[0]);
+
+			/* points are created as the stream is read, a chunk at a time */
+			Stream<DataPoint<Float>> points = Stream.generate(() -> generateRandomDataPoint(tree)).limit(n);
+			long added = tree.addPoints(points, chunksize, total -> {
+					progress.add(total);
+					Assert.assertEquals(count + total, tree.getDataPointCount());
+					tree.queryTarget(target, 0.10f);
+				});
+			Assert.assertEquals(n, added);
+			Assert.assertEquals((n + chunksize - 1)/chunksize, progress.size());
+			Assert.assertEquals(n, (long)progress.get(progress.size()-1));
+			Assert.assertEquals(count + n, tree.getDataPointCount());
+			Assert.assertEquals(count + n, tree.recountDataPoints());
+			Assert.assertEquals(0, tree.addPoints(new ArrayList<DataPoint<Float>>().iterator(), chunksize, null));
+		} catch (Exception ex){
+			System.out.println("test 4n failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
+	@Test public void test4o(){
+		float radius = 0.10f;
+		int k = 5;
+		int n = 3000;
+		System.out.printf("Test Bulk Load - %d points\n", n);
+		try {
+			MVPTree<Float> added = new MVPTree<>(new HeapBackend(), bf, pl, lm, nl,
+												 new L1Distance<Float>(), Float.class);
+			MVPTree<Float> loaded = new MVPTree<>(new HeapBackend(), bf, pl, lm, nl,
+												  new L1Distance<Float>(), Float.class);
+			ArrayList<DataPoint<Float>> points = new ArrayList<>(n);
+			BulkPoints<Float> bulkpoints = new BulkPoints<>(n);
+			for (int i=0;i<n;i++){
+				Float[] data = new Float[ndims];
+				fill(data);
+				DataPoint<Float> pnt = added.createDataPoint();
+				pnt.setId("Point" + point_id);
+				pnt.setData(data);
+				points.add(pnt);
+				if (i % 2 == 0){
+					bulkpoints.add("Point" + point_id++, data);
+				} else {
+					float[] primdata = new float[ndims];
+					for (int j=0;j<ndims;j++) primdata[j] = data[j];
+					bulkpoints.add("Point" + point_id++, primdata);
+				}
+			}
+			added.addPoints(points);
+			try {
+				bulkpoints.add("Mismatched", new double[ndims]);
+				Assert.assertTrue(false);
+			} catch (IllegalArgumentException ex){}
+			Assert.assertEquals(n, bulkpoints.size());
+
+			long start = System.nanoTime();
+			Assert.assertEquals(n, loaded.bulkLoad(bulkpoints));
+			System.out.printf("  loaded in %.3f ms\n", (System.nanoTime() - start)/1000000.0);
+			Assert.assertEquals(n, loaded.getDataPointCount());
+			Assert.assertEquals(n, loaded.recountDataPoints());
+
+			/* same tree as adding the points at once */
+			MVPTreeStats stats = new MVPTreeStats(), loaded_stats = new MVPTreeStats();
+			added.stats(stats);
+			loaded.stats(loaded_stats);
+			Assert.assertEquals(stats.n_internal, loaded_stats.n_internal);
+			Assert.assertEquals(stats.n_leaf, loaded_stats.n_leaf);
+			Assert.assertEquals(stats.n_points, loaded_stats.n_points);
+			Assert.assertEquals(stats.depth, loaded_stats.depth);
+			for (int i=0;i<ncenters;i++){
+				TargetPoint<Float> target = new TargetPoint<>(centers[i]);
+				Assert.assertEquals(getIds(added.queryTarget(target, radius)),
+									getIds(loaded.queryTarget(target, radius)));
+				Assert.assertEquals(getIds(added.queryNearest(target, k)),
+									getIds(loaded.queryNearest(target, k)));
+			}
+
+			/* only an empty tree is bulk loaded */
+			try {
+				loaded.bulkLoad(bulkpoints);
+				Assert.assertTrue(false);
+			} catch (MVPTreeException ex){}
+			Assert.assertEquals(n, loaded.getDataPointCount());
+
+			/* loaded tree takes new points */
+			points = generateUniformRandomDataPoints(10, loaded);
+			String id = points.get(0).getId();
+			loaded.addPoints(points);
+			Assert.assertNotNull(loaded.lookup(id));
+			added.shutdown();
+			loaded.shutdown();
+		} catch (Exception ex){
+			System.out.println("test 4o failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
+	@Test public void test4p(){
+		float radius = 0.10f;
+		int k = 5;
+		int n = 3000;
+		System.out.printf("Test Parallel Distances - %d points\n", n);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			MVPTree<Float> sequential = new MVPTree<>(new HeapBackend(), bf, pl, lm, nl,
+													  new L1Distance<Float>(), Float.class);
+			MVPTree<Float> parallel = new MVPTree<>(new HeapBackend(), bf, pl, lm, nl,
+													new L1Distance<Float>(), Float.class);
+			sequential.setParallelDistances(null, 1);
+			parallel.setParallelDistances(executor, 64);
+			Assert.assertNull(sequential.getParallelDistanceExecutor());
+			Assert.assertEquals(executor, parallel.getParallelDistanceExecutor());
+			Assert.assertEquals(64, parallel.getParallelDistanceThreshold());
+
+			ArrayList<DataPoint<Float>> points = new ArrayList<>(n);
+			ArrayList<DataPoint<Float>> points2 = new ArrayList<>(n);
+			for (int i=0;i<n;i++){
+				Float[] data = new Float[ndims];
+				fill(data);
+				DataPoint<Float> pnt = sequential.createDataPoint();
+				pnt.setId("Point" + point_id);
+				pnt.setData(data);
+				points.add(pnt);
+				pnt = parallel.createDataPoint();
+				pnt.setId("Point" + point_id++);
+				pnt.setData(data);
+				points2.add(pnt);
+			}
+			sequential.addPoints(points);
+			long start = System.nanoTime();
+			parallel.addPoints(points2);
+			System.out.printf("  added in %.3f ms\n", (System.nanoTime() - start)/1000000.0);
+
+			/* same splits and partitions as on one thread */
+			MVPTreeStats stats = new MVPTreeStats(), parallel_stats = new MVPTreeStats();
+			sequential.stats(stats);
+			parallel.stats(parallel_stats);
+			Assert.assertEquals(stats.n_internal, parallel_stats.n_internal);
+			Assert.assertEquals(stats.n_leaf, parallel_stats.n_leaf);
+			Assert.assertEquals(stats.max_leaf_size, parallel_stats.max_leaf_size);
+			Assert.assertEquals(stats.min_leaf_size, parallel_stats.min_leaf_size);
+			Assert.assertEquals(stats.depth, parallel_stats.depth);
+			for (int i=0;i<ncenters;i++){
+				TargetPoint<Float> target = new TargetPoint<>(centers[i]);
+				Assert.assertEquals(getIds(sequential.queryTarget(target, radius)),
+									getIds(parallel.queryTarget(target, radius)));
+				Assert.assertEquals(getIds(sequential.queryNearest(target, k)),
+									getIds(parallel.queryNearest(target, k)));
+			}
+			sequential.shutdown();
+			parallel.shutdown();
+		} catch (Exception ex){
+			System.out.println("test 4p failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test public void test4q(){
+		System.out.printf("Test Transactions - rollback, recovery and checkpoint\n");
+		if (backend.equals("neo4j")){
+			System.out.printf("  not for neo4j\n");
+			return;
+		}
+		String txfile = "var/mvptree-tx.map";
+		new File(txfile).delete();
+		StorageBackend store = backend.equals("heap") ? new HeapBackend() : new MappedBackend(txfile, 4096);
+		try {
+			long kept, dropped;
+			try (StorageTransaction tx = store.beginTx()){
+				StorageNode node = store.createNode();
+				node.setProperty("data", new float[] {1.0f, 2.0f});
+				node.addLabel("point");
+				kept = node.getId();
+				tx.success();
+			}
+			/* arrays are copied when read, so changing one leaves the stored value */
+			((float[])store.getNodeById(kept).getProperty("data"))[0] = 9.0f;
+			try (StorageTransaction tx = store.beginTx()){
+				StorageNode node = store.createNode();
+				node.setProperty("data", new float[] {3.0f});
+				store.getNodeById(kept).setProperty("data", new float[] {4.0f});
+				store.indexPoint(node, "dropped");
+				dropped = node.getId();
+			}
+			Assert.assertArrayEquals(new float[] {1.0f, 2.0f},
+									 (float[])store.getNodeById(kept).getProperty("data"), 0.0f);
+			Assert.assertNull(store.lookupPoint("dropped"));
+			Assert.assertEquals(1, store.findNodes("point").size());
+			try {
+				store.getNodeById(dropped);
+				Assert.assertTrue(false);
+			} catch (MVPNodeException ex){
+			}
+
+			/* a rolled back change to a node id array leaves the stored array as it was */
+			StorageNode holder;
+			try (StorageTransaction tx = store.beginTx()){
+				holder = store.createNode();
+				holder.setProperty("ids", new long[] {1L, 2L});
+				tx.success();
+			}
+			try (StorageTransaction tx = store.beginTx()){
+				long[] ids = (long[])holder.getProperty("ids");
+				holder.setProperty("ids", MVPNode.setNodeIdAt(ids, 0, 7L));
+			}
+			Assert.assertArrayEquals(new long[] {1L, 2L}, (long[])holder.getProperty("ids"));
+			try (StorageTransaction tx = store.beginTx()){
+				holder.delete();
+				tx.success();
+			}
+			if (!backend.equals("mapped"))
+				return;
+
+			MappedBackend mapped = (MappedBackend)store;
+			for (int i=0;i < 100;i++){
+				try (StorageTransaction tx = mapped.beginTx()){
+					mapped.getNodeById(kept).setProperty("data", new float[] {i, i});
+					tx.success();
+				}
+			}
+			long size = mapped.getSize();
+			mapped.checkpoint();
+			Assert.assertTrue(mapped.getSize() < size);
+			Assert.assertEquals(mapped.getSize(), mapped.getCheckpointSize());
+
+			/* a transaction cut short, as by a crash, is dropped on opening the file */
+			StorageTransaction open = mapped.beginTx();
+			mapped.getNodeById(kept).setProperty("data", new float[] {5.0f});
+			mapped.createNode();
+			MappedBackend reopened = new MappedBackend(txfile, 4096);
+			Assert.assertEquals(1, reopened.getNodeCount());
+			Assert.assertArrayEquals(new float[] {99.0f, 99.0f},
+									 (float[])reopened.getNodeById(kept).getProperty("data"), 0.0f);
+			Assert.assertEquals(1, reopened.findNodes("point").size());
+			reopened.shutdown();
+			open.close();
+		} catch (Exception ex){
+			System.out.println("test 4q failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		} finally {
+			store.shutdown();
+			new File(txfile).delete();
+		}
+	}
+
+	/* Open the tree's store by itself, with the tree shut down */
+	private StorageBackend openStore(){
+		if (backend.equals("heap"))
+			return heapstore;
+		if (backend.equals("mapped"))
+			return new MappedBackend(mapfile);
+		return new Neo4jBackend(dbstore, getClass().getResource(propsfile).getFile());
+	}
+
+	/* Reopen the tree on its store */
+	private MVPTree<Float> openTree(){
+		if (backend.equals("heap"))
+			return new MVPTree<>(heapstore, bf, pl, lm, nl, new L1Distance<Float>(), Float.class);
+		if (backend.equals("mapped"))
+			return new MVPTree<>(new MappedBackend(mapfile), bf, pl, lm, nl, new L1Distance<Float>(), Float.class);
+		return new MVPTree<>(dbstore, getClass().getResource(propsfile).getFile(), bf, pl, lm, nl,
+							 DistanceFunction.L1, Float.class);
+	}
+
+	/* Assert two ordinal-indexed id arrays hold the same ids, -1 for none */
+	private void assertSameIds(long[] expected, long[] actual){
+		Assert.assertNotNull(actual);
+		for (int i=0;i < Math.max(expected.length, actual.length);i++){
+			Assert.assertEquals((i < expected.length) ? expected[i] : -1L,
+								(i < actual.length) ? actual[i] : -1L);
+		}
+	}
+
+	@Test public void test4r(){
+		float radius = 0.10f;
+		System.out.printf("Test Migration - node id arrays rebuilt from relationships\n");
+		try {
+			int count = tree.getDataPointCount();
+			ArrayList<HashSet<String>> expected = new ArrayList<>();
+			for (int i=0;i<ncenters;i++){
+				expected.add(getIds(tree.queryTarget(new TargetPoint<>(centers[i]), radius)));
+			}
+			tree.shutdown();
+
+			/* strip the id arrays, as of a store from before they were kept, and link a child twice */
+			HashMap<Long,long[]> vpids = new HashMap<>();
+			HashMap<Long,long[]> childids = new HashMap<>();
+			long duplicated = -1;
+			int nchildren = 0;
+			StorageBackend store = openStore();
+			try (StorageTransaction tx = store.beginTx()){
+				ArrayList<StorageNode> mvpnodes = new ArrayList<>(store.findNodes(MVPInternal.InternalLabel));
+				mvpnodes.addAll(store.findNodes(MVPLeaf.LeafLabel));
+				for (StorageNode node : mvpnodes){
+					vpids.put(node.getId(), (long[])node.getProperty(MVPNode.VPIdsProperty));
+					node.removeProperty(MVPNode.VPIdsProperty);
+					if (node.hasLabel(MVPInternal.InternalLabel)){
+						childids.put(node.getId(), (long[])node.getProperty(MVPInternal.ChildIdsProperty));
+						node.removeProperty(MVPInternal.ChildIdsProperty);
+						if (duplicated < 0){
+							for (StorageRelationship rel : node.getRelationships(MVPRelationshipTypes.TO_CHILD)){
+								if (nchildren++ > 0)
+									continue;
+								StorageRelationship dup = node.createRelationshipTo(rel.getEndNode(),
+																					MVPRelationshipTypes.TO_CHILD);
+								dup.setProperty(MVPInternal.ChildOrdinalProperty, rel.getProperty(MVPInternal.ChildOrdinalProperty));
+							}
+							duplicated = node.getId();
+						}
+					}
+				}
+				for (StorageNode node : store.findNodes(NodeFactory.TopLabel)){
+					node.removeProperty(NodeFactory.NodeIdsProperty);
+				}
+				tx.success();
+			}
+			store.shutdown();
+			Assert.assertTrue(duplicated >= 0);
+			System.out.printf("  stripped %d nodes\n", vpids.size());
+
+			/* reopened, the tree migrates the store */
+			tree = openTree();
+			Assert.assertEquals(count, tree.getDataPointCount());
+			for (int i=0;i<ncenters;i++){
+				Assert.assertEquals(expected.get(i), getIds(tree.queryTarget(new TargetPoint<>(centers[i]), radius)));
+			}
+			tree.shutdown();
+
+			store = openStore();
+			try (StorageTransaction tx = store.beginTx()){
+				for (Long id : vpids.keySet()){
+					StorageNode node = store.getNodeById(id);
+					assertSameIds(vpids.get(id), (long[])node.getProperty(MVPNode.VPIdsProperty, null));
+					if (childids.containsKey(id))
+						assertSameIds(childids.get(id), (long[])node.getProperty(MVPInternal.ChildIdsProperty, null));
+				}
+				int nlinks = 0;
+				for (StorageRelationship rel : store.getNodeById(duplicated).getRelationships(MVPRelationshipTypes.TO_CHILD))
+					nlinks++;
+				Assert.assertEquals(nchildren, nlinks);
+				for (StorageNode node : store.findNodes(NodeFactory.TopLabel)){
+					Assert.assertTrue(node.hasProperty(NodeFactory.NodeIdsProperty));
+				}
+				tx.success();
+			}
+			store.shutdown();
+			tree = openTree();
+			Assert.assertEquals(count, tree.getDataPointCount());
+		} catch (Exception ex){
+			System.out.println("test 4r failed: " + ex.getMessage());
+			ex.printStackTrace();
+			Assert.assertTrue(false);
+		}
+	}
+
 	@Test public void test5(){
 		try {
 			MVPTreeStats stats = new MVPTreeStats();